@@ -0,0 +1,155 @@
+package org.onepf.oms;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.onepf.oms.appstore.googleUtils.Inventory;
+import org.onepf.oms.appstore.googleUtils.Purchase;
+import org.onepf.oms.appstore.googleUtils.SkuDetails;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.Arrays;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.assertTrue;
+
+@Config(emulateSdk = 18, manifest = Config.NONE)
+@RunWith(RobolectricTestRunner.class)
+public class InventoryCacheTest {
+
+    private static final long TTL_MS = 60000;
+
+    private static final String PURCHASE_JSON = "{\"orderId\":\"1\",\"productId\":\"sku\",\"purchaseTime\":1}";
+
+    private static final String DETAILS_JSON = "{\"productId\":\"sku\",\"price\":\"$1\",\"title\":\"Gas\"}";
+
+    @Test
+    public void testDetailsQueryCoversQueryWithoutDetails() {
+        final InventoryCache.Query withDetails = new InventoryCache.Query(true, null, null);
+        final InventoryCache.Query withoutDetails = new InventoryCache.Query(false, null, null);
+
+        assertTrue(withDetails.covers(withoutDetails));
+        assertFalse(withoutDetails.covers(withDetails));
+        assertTrue(withoutDetails.covers(withoutDetails));
+    }
+
+    @Test
+    public void testQueryCoversSubsetOfSkus() {
+        final InventoryCache.Query query = new InventoryCache.Query(true, Arrays.asList("a", "b"), Arrays.asList("s"));
+
+        assertTrue(query.covers(new InventoryCache.Query(true, Arrays.asList("a"), null)));
+        assertTrue(query.covers(new InventoryCache.Query(true, Arrays.asList("b"), Arrays.asList("s"))));
+        assertFalse(query.covers(new InventoryCache.Query(true, Arrays.asList("c"), null)));
+        assertFalse(query.covers(new InventoryCache.Query(true, null, Arrays.asList("a"))));
+    }
+
+    @Test
+    public void testAdditionalSkusAreIgnoredWithoutDetails() {
+        final InventoryCache.Query query = new InventoryCache.Query(false, Arrays.asList("a"), Arrays.asList("s"));
+
+        assertEquals(new InventoryCache.Query(false, null, null), query);
+        assertNull(query.getItemSkus());
+        assertNull(query.getSubsSkus());
+    }
+
+    @Test
+    public void testMergeReturnsCoveringQuery() {
+        final InventoryCache.Query covering = new InventoryCache.Query(true, Arrays.asList("a", "b"), null);
+        final InventoryCache.Query covered = new InventoryCache.Query(true, Arrays.asList("a"), null);
+
+        assertSame(covering, covering.merge(covered));
+        assertSame(covering, covered.merge(covering));
+    }
+
+    @Test
+    public void testMergeUnitesSkus() {
+        final InventoryCache.Query items = new InventoryCache.Query(true, Arrays.asList("a"), null);
+        final InventoryCache.Query subs = new InventoryCache.Query(true, null, Arrays.asList("s"));
+
+        final InventoryCache.Query merged = items.merge(subs);
+
+        assertEquals(new InventoryCache.Query(true, Arrays.asList("a"), Arrays.asList("s")), merged);
+        assertTrue(merged.covers(items));
+        assertTrue(merged.covers(subs));
+        assertTrue(merged.covers(new InventoryCache.Query(false, null, null)));
+    }
+
+    @Test
+    public void testCoveringEntryAnswersQuery() throws Exception {
+        final InventoryCache cache = new InventoryCache(TTL_MS);
+        cache.put(new InventoryCache.Query(true, Arrays.asList("a", "b"), null), inventory(), cache.getGeneration());
+
+        assertNotNull(cache.get(new InventoryCache.Query(false, null, null), false));
+        assertNotNull(cache.get(new InventoryCache.Query(true, Arrays.asList("a"), null), false));
+        assertNull(cache.get(new InventoryCache.Query(true, Arrays.asList("c"), null), false));
+    }
+
+    @Test
+    public void testStaleGenerationIsRejected() throws Exception {
+        final InventoryCache cache = new InventoryCache(TTL_MS);
+        final InventoryCache.Query query = new InventoryCache.Query(false, null, null);
+        final long generation = cache.getGeneration();
+
+        cache.invalidate();
+        cache.put(query, inventory(), generation);
+
+        assertNull(cache.get(query, true));
+        assertTrue(cache.isStale(query));
+
+        cache.put(query, inventory(), cache.getGeneration());
+
+        assertNotNull(cache.get(query, false));
+    }
+
+    @Test
+    public void testInvalidateClearsEntries() throws Exception {
+        final InventoryCache cache = new InventoryCache(TTL_MS);
+        final InventoryCache.Query query = new InventoryCache.Query(false, null, null);
+        cache.put(query, inventory(), cache.getGeneration());
+
+        cache.invalidate();
+
+        assertNull(cache.get(query, true));
+    }
+
+    @Test
+    public void testExpiredEntryIsReturnedOnlyIfStaleAllowed() throws Exception {
+        final InventoryCache cache = new InventoryCache(0);
+        final InventoryCache.Query query = new InventoryCache.Query(false, null, null);
+        cache.put(query, inventory(), cache.getGeneration());
+
+        assertTrue(cache.isStale(query));
+        assertNull(cache.get(query, false));
+        assertNotNull(cache.get(query, true));
+    }
+
+    @Test
+    public void testCallersReceiveCopies() throws Exception {
+        final InventoryCache cache = new InventoryCache(TTL_MS);
+        final InventoryCache.Query query = new InventoryCache.Query(true, null, null);
+        cache.put(query, inventory(), cache.getGeneration());
+
+        final Inventory inventory = cache.get(query, false);
+        assertNotNull(inventory);
+        inventory.erasePurchase("sku");
+
+        final Inventory cachedInventory = cache.get(query, false);
+        assertNotNull(cachedInventory);
+        assertTrue(cachedInventory.hasPurchase("sku"));
+    }
+
+    private static Inventory inventory() throws Exception {
+        final Inventory inventory = new Inventory();
+        final SkuDetails skuDetails = new SkuDetails(OpenIabHelper.ITEM_TYPE_INAPP, DETAILS_JSON);
+        skuDetails.setSku("sku");
+        inventory.addSkuDetails(skuDetails);
+        final Purchase purchase = new Purchase(OpenIabHelper.ITEM_TYPE_INAPP, PURCHASE_JSON, "", OpenIabHelper.NAME_GOOGLE);
+        purchase.setSku("sku");
+        inventory.addPurchase(purchase);
+        return inventory;
+    }
+}
@@ -0,0 +1,259 @@
+package org.onepf.oms;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.onepf.oms.appstore.googleUtils.IabException;
+import org.onepf.oms.appstore.googleUtils.Inventory;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertNotSame;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+@Config(emulateSdk = 18, manifest = Config.NONE)
+@RunWith(RobolectricTestRunner.class)
+public class InventoryQueryCoalescerTest {
+
+    private static final long TIMEOUT_MS = 5000;
+
+    @Test
+    public void testIdenticalQueriesShareOneLoad() throws Exception {
+        final BlockingLoader loader = new BlockingLoader();
+        final InventoryQueryCoalescer coalescer = new InventoryQueryCoalescer(loader);
+        final InventoryCache.Query query = new InventoryCache.Query(false, null, null);
+
+        final QueryThread first = start(coalescer, query);
+        loader.awaitLoad();
+        final QueryThread second = start(coalescer, query);
+        awaitBlocked(second);
+        loader.release();
+        first.join(TIMEOUT_MS);
+        second.join(TIMEOUT_MS);
+
+        assertEquals(1, loader.getQueries().size());
+        assertNull(first.exception);
+        assertNull(second.exception);
+        assertNotNull(first.inventory);
+        assertNotNull(second.inventory);
+        assertNotSame(first.inventory, second.inventory);
+    }
+
+    @Test
+    public void testQueriesArrivingDuringLoadAreMerged() throws Exception {
+        final BlockingLoader loader = new BlockingLoader();
+        final InventoryQueryCoalescer coalescer = new InventoryQueryCoalescer(loader);
+        final InventoryCache.Query itemsQuery = new InventoryCache.Query(true, Arrays.asList("a"), null);
+        final InventoryCache.Query subsQuery = new InventoryCache.Query(true, null, Arrays.asList("s"));
+
+        final QueryThread first = start(coalescer, new InventoryCache.Query(false, null, null));
+        loader.awaitLoad();
+        final QueryThread second = start(coalescer, itemsQuery);
+        awaitBlocked(second);
+        final QueryThread third = start(coalescer, subsQuery);
+        awaitBlocked(third);
+        loader.release();
+        first.join(TIMEOUT_MS);
+        second.join(TIMEOUT_MS);
+        third.join(TIMEOUT_MS);
+
+        final List<InventoryCache.Query> queries = loader.getQueries();
+        assertEquals(2, queries.size());
+        assertEquals(itemsQuery.merge(subsQuery), queries.get(1));
+        assertNotNull(second.inventory);
+        assertNotNull(third.inventory);
+    }
+
+    @Test
+    public void testQueriesDontJoinLoadStartedBeforeInvalidate() throws Exception {
+        final BlockingLoader loader = new BlockingLoader();
+        final InventoryQueryCoalescer coalescer = new InventoryQueryCoalescer(loader);
+        final InventoryCache.Query query = new InventoryCache.Query(false, null, null);
+
+        final QueryThread first = start(coalescer, query);
+        loader.awaitLoad();
+        coalescer.invalidate();
+        final QueryThread second = start(coalescer, query);
+        awaitBlocked(second);
+        loader.release();
+        first.join(TIMEOUT_MS);
+        second.join(TIMEOUT_MS);
+
+        assertEquals(2, loader.getQueries().size());
+        assertNotNull(second.inventory);
+    }
+
+    @Test
+    public void testRequestPendingAcrossInvalidateDoesntOverlap() throws Exception {
+        final BlockingLoader loader = new BlockingLoader();
+        final InventoryQueryCoalescer coalescer = new InventoryQueryCoalescer(loader);
+        final InventoryCache.Query itemsQuery = new InventoryCache.Query(true, Arrays.asList("a"), null);
+        final InventoryCache.Query subsQuery = new InventoryCache.Query(true, null, Arrays.asList("s"));
+
+        final QueryThread first = start(coalescer, new InventoryCache.Query(false, null, null));
+        loader.awaitLoads(1);
+        final QueryThread second = start(coalescer, itemsQuery);
+        awaitBlocked(second);
+        coalescer.invalidate();
+        final QueryThread third = start(coalescer, subsQuery);
+        awaitBlocked(third);
+        loader.releaseOne();
+        loader.awaitLoads(2);
+        // Gives an overlapping load the time to start
+        Thread.sleep(100);
+
+        assertEquals(2, loader.getQueries().size());
+
+        loader.release();
+        first.join(TIMEOUT_MS);
+        second.join(TIMEOUT_MS);
+        third.join(TIMEOUT_MS);
+
+        assertEquals(Arrays.asList(new InventoryCache.Query(false, null, null), itemsQuery, subsQuery),
+                loader.getQueries());
+        assertEquals(1, loader.maxActiveLoads);
+        assertNotNull(second.inventory);
+        assertNotNull(third.inventory);
+    }
+
+    @Test
+    public void testLoadFailureIsReportedToAllQueries() throws Exception {
+        final BlockingLoader loader = new BlockingLoader();
+        loader.exception = new IabException(OpenIabHelper.BILLING_RESPONSE_RESULT_ERROR, "Failed");
+        final InventoryQueryCoalescer coalescer = new InventoryQueryCoalescer(loader);
+        final InventoryCache.Query query = new InventoryCache.Query(false, null, null);
+
+        final QueryThread first = start(coalescer, query);
+        loader.awaitLoad();
+        final QueryThread second = start(coalescer, query);
+        awaitBlocked(second);
+        loader.release();
+        first.join(TIMEOUT_MS);
+        second.join(TIMEOUT_MS);
+
+        assertEquals(1, loader.getQueries().size());
+        assertEquals(loader.exception, first.exception);
+        assertEquals(loader.exception, second.exception);
+    }
+
+    private static QueryThread start(final InventoryQueryCoalescer coalescer, final InventoryCache.Query query) {
+        final QueryThread thread = new QueryThread(coalescer, query);
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * Waits until the thread waits for a request.
+     */
+    private static void awaitBlocked(final Thread thread) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (thread.getState() != Thread.State.WAITING) {
+            assertTrue("Query didn't wait", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * Records the queries and blocks every load until released.
+     */
+    private static class BlockingLoader implements InventoryQueryCoalescer.Loader {
+
+        private final List<InventoryCache.Query> queries =
+                Collections.synchronizedList(new ArrayList<InventoryCache.Query>());
+
+        // Loads allowed to finish
+        private final Semaphore permits = new Semaphore(0);
+
+        private final AtomicInteger activeLoads = new AtomicInteger();
+
+        volatile IabException exception;
+
+        volatile int maxActiveLoads;
+
+        @Override
+        public Inventory load(@NotNull final InventoryCache.Query query) throws IabException {
+            final int active = activeLoads.incrementAndGet();
+            maxActiveLoads = Math.max(maxActiveLoads, active);
+            queries.add(query);
+            try {
+                permits.acquire();
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            } finally {
+                activeLoads.decrementAndGet();
+            }
+            if (exception != null) {
+                throw exception;
+            }
+            return new Inventory();
+        }
+
+        void awaitLoad() throws InterruptedException {
+            awaitLoads(1);
+        }
+
+        /**
+         * Waits until the given number of loads started.
+         */
+        void awaitLoads(final int count) throws InterruptedException {
+            final long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+            while (queries.size() < count) {
+                assertTrue("Load didn't start", System.currentTimeMillis() < deadline);
+                Thread.sleep(10);
+            }
+        }
+
+        /**
+         * Lets the current load finish.
+         */
+        void releaseOne() {
+            permits.release();
+        }
+
+        /**
+         * Lets every load finish.
+         */
+        void release() {
+            permits.release(Integer.MAX_VALUE / 2);
+        }
+
+        List<InventoryCache.Query> getQueries() {
+            return new ArrayList<InventoryCache.Query>(queries);
+        }
+    }
+
+    private static class QueryThread extends Thread {
+
+        private final InventoryQueryCoalescer coalescer;
+
+        private final InventoryCache.Query query;
+
+        volatile Inventory inventory;
+
+        volatile IabException exception;
+
+        QueryThread(final InventoryQueryCoalescer coalescer, final InventoryCache.Query query) {
+            this.coalescer = coalescer;
+            this.query = query;
+        }
+
+        @Override
+        public void run() {
+            try {
+                inventory = coalescer.query(query);
+            } catch (IabException e) {
+                exception = e;
+            }
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package org.onepf.oms;
+
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.onepf.oms.appstore.googleUtils.Inventory;
+import org.onepf.oms.appstore.googleUtils.Purchase;
+import org.onepf.oms.appstore.googleUtils.Security;
+import org.onepf.oms.appstore.googleUtils.SigningKey;
+import org.onepf.oms.appstore.googleUtils.SkuDetails;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Collections;
+import java.util.Map;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+@Config(emulateSdk = 18, manifest = Config.NONE)
+@RunWith(RobolectricTestRunner.class)
+public class InventorySnapshotTest {
+
+    private static final String STORE = OpenIabHelper.NAME_GOOGLE;
+
+    private static final String PURCHASE_JSON = "{\"orderId\":\"1\",\"productId\":\"store_sku\",\"purchaseTime\":1}";
+
+    private static final String DETAILS_JSON = "{\"productId\":\"store_sku\",\"price\":\"$1\",\"title\":\"Gas\"}";
+
+    private SigningKey signingKey;
+
+    private Map<String, String> storeKeys;
+
+    @BeforeClass
+    public static void mapSku() {
+        SkuManager.getInstance().mapSku("sku", STORE, "store_sku");
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        Security.clearVerifiedDigests();
+        signingKey = new SigningKey();
+        storeKeys = Collections.singletonMap(STORE, signingKey.getPublicKey());
+        //noinspection ResultOfMethodCallIgnored
+        getFile().delete();
+    }
+
+    @Test
+    public void testVerifiedPurchasesSurviveRestart() throws Exception {
+        new InventorySnapshot(Robolectric.application, storeKeys).reconcile(STORE, liveInventory(sign(PURCHASE_JSON)));
+
+        final Inventory inventory = new InventorySnapshot(Robolectric.application, storeKeys).get();
+
+        assertNotNull(inventory);
+        assertTrue(inventory.hasPurchase("sku"));
+        assertEquals(PURCHASE_JSON, inventory.getPurchase("sku").getOriginalJson());
+        assertEquals(STORE, inventory.getPurchase("sku").getAppstoreName());
+        assertEquals("$1", inventory.getSkuDetails("sku").getPrice());
+    }
+
+    @Test
+    public void testInvalidSignatureIsDropped() throws Exception {
+        new InventorySnapshot(Robolectric.application, storeKeys).reconcile(STORE, liveInventory(sign("{}")));
+
+        final Inventory inventory = new InventorySnapshot(Robolectric.application, storeKeys).get();
+
+        assertNotNull(inventory);
+        assertFalse(inventory.hasPurchase("sku"));
+        assertTrue(inventory.hasDetails("sku"));
+    }
+
+    @Test
+    public void testCorruptedSnapshotIsIgnored() throws Exception {
+        new InventorySnapshot(Robolectric.application, storeKeys).reconcile(STORE, liveInventory(sign(PURCHASE_JSON)));
+        final RandomAccessFile file = new RandomAccessFile(getFile(), "rw");
+        file.seek(file.length() / 2);
+        final int value = file.read();
+        file.seek(file.length() / 2);
+        file.write(value ^ 0xff);
+        file.close();
+
+        assertNull(new InventorySnapshot(Robolectric.application, storeKeys).get());
+        assertFalse(getFile().exists());
+    }
+
+    @Test
+    public void testUnchangedInventoryIsNotWritten() throws Exception {
+        final InventorySnapshot snapshot = new InventorySnapshot(Robolectric.application, storeKeys);
+        final String signature = sign(PURCHASE_JSON);
+        snapshot.reconcile(STORE, liveInventory(signature));
+        //noinspection ResultOfMethodCallIgnored
+        getFile().delete();
+
+        snapshot.reconcile(STORE, liveInventory(signature));
+
+        assertFalse(getFile().exists());
+
+        snapshot.reconcile(STORE, new Inventory());
+
+        assertTrue(getFile().exists());
+    }
+
+    @Test
+    public void testConsumedPurchaseIsErased() throws Exception {
+        final InventorySnapshot snapshot = new InventorySnapshot(Robolectric.application, storeKeys);
+        snapshot.reconcile(STORE, liveInventory(sign(PURCHASE_JSON)));
+
+        snapshot.erasePurchase("sku");
+
+        final Inventory inventory = new InventorySnapshot(Robolectric.application, storeKeys).get();
+        assertNotNull(inventory);
+        assertFalse(inventory.hasPurchase("sku"));
+    }
+
+    @Test
+    public void testSkuAndItemTypeAreReadFromSignedJson() throws Exception {
+        final Inventory live = new Inventory();
+        final Purchase purchase = new Purchase(OpenIabHelper.ITEM_TYPE_SUBS, PURCHASE_JSON, sign(PURCHASE_JSON), STORE);
+        purchase.setSku("other_sku");
+        live.addPurchase(purchase);
+        new InventorySnapshot(Robolectric.application, storeKeys).reconcile(STORE, live);
+
+        final Inventory inventory = new InventorySnapshot(Robolectric.application, storeKeys).get();
+
+        assertNotNull(inventory);
+        assertFalse(inventory.hasPurchase("other_sku"));
+        assertTrue(inventory.hasPurchase("sku"));
+        assertEquals(OpenIabHelper.ITEM_TYPE_INAPP, inventory.getPurchase("sku").getItemType());
+    }
+
+    private static Inventory liveInventory(final String signature) throws Exception {
+        final Inventory inventory = new Inventory();
+        final Purchase purchase = new Purchase(OpenIabHelper.ITEM_TYPE_INAPP, PURCHASE_JSON, signature, STORE);
+        purchase.setSku("sku");
+        inventory.addPurchase(purchase);
+        final SkuDetails skuDetails = new SkuDetails(OpenIabHelper.ITEM_TYPE_INAPP, DETAILS_JSON);
+        skuDetails.setSku("sku");
+        inventory.addSkuDetails(skuDetails);
+        return inventory;
+    }
+
+    private String sign(final String data) throws Exception {
+        return signingKey.sign(data);
+    }
+
+    private static File getFile() {
+        return new File(Robolectric.application.getFilesDir(), "onepf_inventory_snapshot");
+    }
+}
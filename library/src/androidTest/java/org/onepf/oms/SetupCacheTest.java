@@ -0,0 +1,48 @@
+package org.onepf.oms;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.Collections;
+import java.util.Map;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+
+@Config(emulateSdk = 18, manifest = Config.NONE)
+@RunWith(RobolectricTestRunner.class)
+public class SetupCacheTest {
+
+    private static final Map<String, Integer> PACKAGE_VERSIONS = Collections.singletonMap("com.example", 1);
+
+    @Test
+    public void testFingerprintIgnoresUnrelatedOptions() {
+        final OpenIabHelper.Options options = new OpenIabHelper.Options.Builder()
+                .addPreferredStoreName(OpenIabHelper.NAME_GOOGLE)
+                .build();
+        final OpenIabHelper.Options cachingOptions = new OpenIabHelper.Options.Builder()
+                .addPreferredStoreName(OpenIabHelper.NAME_GOOGLE)
+                .setInventoryCacheTtl(60000)
+                .setInventorySnapshotEnabled(true)
+                .setVerifiedPurchasesPersisted(true)
+                .build();
+
+        assertEquals(SetupCache.fingerprint("installer", PACKAGE_VERSIONS, options),
+                SetupCache.fingerprint("installer", PACKAGE_VERSIONS, cachingOptions));
+    }
+
+    @Test
+    public void testFingerprintDependsOnPreferredStores() {
+        final OpenIabHelper.Options options = new OpenIabHelper.Options.Builder()
+                .addPreferredStoreName(OpenIabHelper.NAME_GOOGLE, OpenIabHelper.NAME_AMAZON)
+                .build();
+        final OpenIabHelper.Options otherOptions = new OpenIabHelper.Options.Builder()
+                .addPreferredStoreName(OpenIabHelper.NAME_AMAZON, OpenIabHelper.NAME_GOOGLE)
+                .build();
+
+        assertFalse(SetupCache.fingerprint("installer", PACKAGE_VERSIONS, options)
+                .equals(SetupCache.fingerprint("installer", PACKAGE_VERSIONS, otherOptions)));
+    }
+}
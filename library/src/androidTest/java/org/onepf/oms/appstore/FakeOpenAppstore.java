@@ -0,0 +1,96 @@
+package org.onepf.oms.appstore;
+
+import android.content.Intent;
+import android.os.Bundle;
+
+import org.onepf.oms.IOpenAppstore;
+
+/**
+ * Local Open Store service counting binder transactions.
+ * Supports either the single-call description or only the legacy calls.
+ */
+class FakeOpenAppstore extends IOpenAppstore.Stub {
+
+    static final String NAME = "FakeStore";
+    static final String BILLING_ACTION = "org.onepf.oms.fake.BILLING";
+    static final int PACKAGE_VERSION = 42;
+
+    private final boolean describeSupported;
+
+    int transactions;
+
+    FakeOpenAppstore(final boolean describeSupported) {
+        this.describeSupported = describeSupported;
+    }
+
+    @Override
+    public String getAppstoreName() {
+        transactions++;
+        return NAME;
+    }
+
+    @Override
+    public boolean isPackageInstaller(final String packageName) {
+        transactions++;
+        return true;
+    }
+
+    @Override
+    public boolean isBillingAvailable(final String packageName) {
+        transactions++;
+        return true;
+    }
+
+    @Override
+    public int getPackageVersion(final String packageName) {
+        transactions++;
+        return PACKAGE_VERSION;
+    }
+
+    @Override
+    public Intent getBillingServiceIntent() {
+        transactions++;
+        return new Intent(BILLING_ACTION);
+    }
+
+    @Override
+    public Intent getProductPageIntent(final String packageName) {
+        transactions++;
+        return null;
+    }
+
+    @Override
+    public Intent getRateItPageIntent(final String packageName) {
+        transactions++;
+        return null;
+    }
+
+    @Override
+    public Intent getSameDeveloperPageIntent(final String packageName) {
+        transactions++;
+        return null;
+    }
+
+    @Override
+    public boolean areOutsideLinksAllowed() {
+        transactions++;
+        return false;
+    }
+
+    @Override
+    public Bundle describe(final String packageName) {
+        transactions++;
+        if (!describeSupported) {
+            // Older stores don't know the transaction and reply with nothing
+            return null;
+        }
+        final Bundle description = new Bundle();
+        description.putInt(OpenAppstore.DESCRIPTION_KEY_VERSION, OpenAppstore.DESCRIPTION_VERSION);
+        description.putString(OpenAppstore.DESCRIPTION_KEY_APPSTORE_NAME, NAME);
+        description.putParcelable(OpenAppstore.DESCRIPTION_KEY_BILLING_SERVICE_INTENT, new Intent(BILLING_ACTION));
+        description.putBoolean(OpenAppstore.DESCRIPTION_KEY_PACKAGE_INSTALLER, true);
+        description.putBoolean(OpenAppstore.DESCRIPTION_KEY_BILLING_AVAILABLE, true);
+        description.putInt(OpenAppstore.DESCRIPTION_KEY_PACKAGE_VERSION, PACKAGE_VERSION);
+        return description;
+    }
+}
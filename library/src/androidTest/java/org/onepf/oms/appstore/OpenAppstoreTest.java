@@ -0,0 +1,50 @@
+package org.onepf.oms.appstore;
+
+import android.os.Bundle;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+@Config(emulateSdk = 18, manifest = Config.NONE)
+@RunWith(RobolectricTestRunner.class)
+public class OpenAppstoreTest {
+
+    private static final String PACKAGE_NAME = "org.onepf.oms.test";
+
+    @Test
+    public void testDescribeInSingleTransaction() throws Exception {
+        final FakeOpenAppstore fakeStore = new FakeOpenAppstore(true);
+
+        handshake(fakeStore);
+
+        assertEquals(1, fakeStore.transactions);
+    }
+
+    @Test
+    public void testDescribeFallsBackToLegacyCalls() throws Exception {
+        final FakeOpenAppstore fakeStore = new FakeOpenAppstore(false);
+
+        handshake(fakeStore);
+
+        // describe, getAppstoreName, getBillingServiceIntent, isPackageInstaller, isBillingAvailable, getPackageVersion
+        assertEquals(6, fakeStore.transactions);
+    }
+
+    private static OpenAppstore handshake(final FakeOpenAppstore fakeStore) throws Exception {
+        final Bundle description = OpenAppstore.describe(fakeStore, PACKAGE_NAME);
+        final OpenAppstore openAppstore =
+                new OpenAppstore(Robolectric.application, fakeStore, description, null, null);
+
+        assertEquals(FakeOpenAppstore.NAME, openAppstore.getAppstoreName());
+        assertTrue(openAppstore.isPackageInstaller(PACKAGE_NAME));
+        assertTrue(openAppstore.isBillingAvailable(PACKAGE_NAME));
+        assertEquals(FakeOpenAppstore.PACKAGE_VERSION, openAppstore.getPackageVersion(PACKAGE_NAME));
+        return openAppstore;
+    }
+}
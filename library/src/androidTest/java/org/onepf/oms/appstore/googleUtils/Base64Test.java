@@ -0,0 +1,62 @@
+package org.onepf.oms.appstore.googleUtils;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+@Config(emulateSdk = 18, manifest = Config.NONE)
+@RunWith(RobolectricTestRunner.class)
+public class Base64Test {
+
+    // Sizes of an RSA 2048 public key, 2048 and 1024 bit signatures, and short tails
+    private static final int[] SIZES = {294, 256, 128, 0, 1, 2, 3};
+
+    @Test
+    public void testDecodeMatchesByteDecoder() throws Exception {
+        final Random random = new Random(42);
+        for (final int size : SIZES) {
+            final byte[] data = new byte[size];
+            random.nextBytes(data);
+            final String encoded = Base64.encode(data);
+            final byte[] bytes = encoded.getBytes();
+
+            assertTrue(Arrays.equals(data, Base64.decode(encoded)));
+            assertTrue(Arrays.equals(Base64.decode(bytes), Base64.decode(encoded)));
+            assertTrue(Arrays.equals(Base64.decode(bytes), Base64.decode(new StringBuilder(encoded))));
+
+            final String webSafe = Base64.encodeWebSafe(data, false);
+            assertTrue(Arrays.equals(data, Base64.decodeWebSafe(webSafe)));
+        }
+    }
+
+    @Test
+    public void testDecodeIntoBuffer() throws Exception {
+        final byte[] data = {1, 2, 3, 4, 5};
+        final String encoded = " " + Base64.encode(data) + "\n";
+        final byte[] buffer = new byte[encoded.length() * 3 / 4 + 2 + 1];
+
+        final int length = Base64.decode(encoded, 0, encoded.length(), buffer, 1);
+
+        assertEquals(data.length, length);
+        assertTrue(Arrays.equals(data, Arrays.copyOfRange(buffer, 1, 1 + length)));
+    }
+
+    @Test
+    public void testInvalidInput() throws Exception {
+        for (final String encoded : new String[]{"A", "A===", "AAAA=", "AA=A", "AA!A", "AAA\u00e9"}) {
+            try {
+                Base64.decode(encoded);
+                fail("Decoded " + encoded);
+            } catch (Base64DecoderException ignored) {
+            }
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package org.onepf.oms.appstore.googleUtils;
+
+import org.json.JSONException;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static junit.framework.Assert.assertEquals;
+
+@Config(emulateSdk = 18, manifest = Config.NONE)
+@RunWith(RobolectricTestRunner.class)
+public class PurchaseTest {
+
+    private static final String PURCHASE_JSON = "{\"orderId\":\"12999763169054705758.1371079406387615\", "
+            + "\"packageName\":\"com.example.app\", \"productId\":\"sku\\u005f1\", \"purchaseTime\":1345678900000, "
+            + "\"purchaseState\":0, \"developerPayload\":\"{\\\"user\\\":\\\"a\\\\b\\\"}\", "
+            + "\"extra\":{\"list\":[1, 2.5e3, true, null, \"\"]}, \"purchaseToken\":\"token\"}";
+
+    @Test
+    public void testFieldsAreReadFromJson() throws Exception {
+        final Purchase purchase = new Purchase(IabHelper.ITEM_TYPE_INAPP, PURCHASE_JSON, "signature", "store");
+
+        assertEquals("12999763169054705758.1371079406387615", purchase.getOrderId());
+        assertEquals("com.example.app", purchase.getPackageName());
+        assertEquals("sku_1", purchase.getSku());
+        assertEquals(1345678900000L, purchase.getPurchaseTime());
+        assertEquals(0, purchase.getPurchaseState());
+        assertEquals("{\"user\":\"a\\b\"}", purchase.getDeveloperPayload());
+        assertEquals("token", purchase.getToken());
+        assertEquals(PURCHASE_JSON, purchase.getOriginalJson());
+    }
+
+    @Test
+    public void testSetterReplacesJsonField() throws Exception {
+        final Purchase purchase = new Purchase(IabHelper.ITEM_TYPE_INAPP, PURCHASE_JSON, "signature", "store");
+
+        purchase.setSku("store_sku");
+
+        assertEquals("store_sku", purchase.getSku());
+        assertEquals("token", purchase.getToken());
+    }
+
+    @Test
+    public void testMissingFields() throws Exception {
+        final Purchase purchase = new Purchase(IabHelper.ITEM_TYPE_INAPP, "{\"token\":\"token\"}", "signature", "store");
+
+        assertEquals("", purchase.getSku());
+        assertEquals(0, purchase.getPurchaseTime());
+        assertEquals("token", purchase.getToken());
+    }
+
+    @Test
+    public void testLenientJsonIsParsed() throws Exception {
+        final SkuDetails skuDetails = new SkuDetails(IabHelper.ITEM_TYPE_INAPP, "{'productId':'sku', 'price':'$1'}");
+
+        assertEquals("sku", skuDetails.getSku());
+        assertEquals("$1", skuDetails.getPrice());
+        assertEquals("", skuDetails.getTitle());
+    }
+
+    @Test(expected = JSONException.class)
+    public void testInvalidJson() throws Exception {
+        new Purchase(IabHelper.ITEM_TYPE_INAPP, "{\"productId\":", "signature", "store");
+    }
+}
@@ -0,0 +1,130 @@
+package org.onepf.oms.appstore.googleUtils;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.assertTrue;
+
+@Config(emulateSdk = 18, manifest = Config.NONE)
+@RunWith(RobolectricTestRunner.class)
+public class SecurityTest {
+
+    private static final String PURCHASE_JSON = "{\"orderId\":\"1\",\"productId\":\"sku\",\"purchaseTime\":1}";
+
+    private static final String OTHER_PURCHASE_JSON = "{\"orderId\":\"2\",\"productId\":\"sku\",\"purchaseTime\":2}";
+
+    private SigningKey signingKey;
+
+    private String publicKey;
+
+    @Before
+    public void setUp() throws Exception {
+        Security.clearVerifiedDigests();
+        signingKey = new SigningKey();
+        publicKey = signingKey.getPublicKey();
+    }
+
+    @Test
+    public void testPublicKeyIsParsedOnce() throws Exception {
+        assertSame(Security.getPublicKey(publicKey), Security.getPublicKey(publicKey));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidPublicKey() throws Exception {
+        Security.getPublicKey("invalid");
+    }
+
+    @Test
+    public void testReusedSignatureVerifiesEachPurchase() throws Exception {
+        final PublicKey key = Security.getPublicKey(publicKey);
+        final String signature = sign(PURCHASE_JSON);
+
+        // Bypasses the memo of verified purchases
+        assertTrue(Security.verify(key, PURCHASE_JSON, signature));
+        assertFalse(Security.verify(key, OTHER_PURCHASE_JSON, signature));
+        assertTrue(Security.verify(key, PURCHASE_JSON, signature));
+    }
+
+    @Test
+    public void testVerifyPurchases() throws Exception {
+        final boolean[] results = Security.verifyPurchases(publicKey,
+                Arrays.asList(PURCHASE_JSON, OTHER_PURCHASE_JSON, PURCHASE_JSON),
+                Arrays.asList(sign(PURCHASE_JSON), sign(PURCHASE_JSON), ""));
+
+        assertEquals(3, results.length);
+        assertTrue(results[0]);
+        assertFalse(results[1]);
+        assertFalse(results[2]);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testVerifyPurchasesWithMissingSignatures() throws Exception {
+        Security.verifyPurchases(publicKey, Arrays.asList(PURCHASE_JSON), Arrays.<String>asList());
+    }
+
+    @Test
+    public void testLargeBatchResultsAreInOrder() throws Exception {
+        final String otherPublicKey = new SigningKey().getPublicKey();
+        final String signature = sign(PURCHASE_JSON);
+        final List<Security.SignedData> purchases = new ArrayList<Security.SignedData>();
+        final int count = Security.PARALLEL_VERIFICATION_THRESHOLD * 4 + 1;
+        for (int i = 0; i < count; i++) {
+            switch (i % 3) {
+                case 0:
+                    purchases.add(new Security.SignedData(publicKey, PURCHASE_JSON, signature));
+                    break;
+                case 1:
+                    purchases.add(new Security.SignedData(otherPublicKey, PURCHASE_JSON, signature));
+                    break;
+                default:
+                    purchases.add(new Security.SignedData("invalid", PURCHASE_JSON, signature));
+                    break;
+            }
+        }
+
+        final boolean[] results = Security.verifyPurchases(purchases);
+
+        assertEquals(count, results.length);
+        for (int i = 0; i < count; i++) {
+            assertEquals("Purchase " + i, i % 3 == 0, results[i]);
+        }
+    }
+
+    @Test
+    public void testOnlyVerifiedPurchasesAreMemoized() throws Exception {
+        final String signature = sign(PURCHASE_JSON);
+
+        assertTrue(Security.verifyPurchase(publicKey, PURCHASE_JSON, signature));
+        assertTrue(Security.verifyPurchase(publicKey, PURCHASE_JSON, signature));
+        assertFalse(Security.verifyPurchase(publicKey, OTHER_PURCHASE_JSON, signature));
+        assertEquals(1, Security.getVerifiedDigests().size());
+    }
+
+    @Test
+    public void testRestoredDigestsAreReused() throws Exception {
+        final String signature = sign(PURCHASE_JSON);
+        assertTrue(Security.verifyPurchase(publicKey, PURCHASE_JSON, signature));
+        final List<String> digests = Security.getVerifiedDigests();
+        Security.clearVerifiedDigests();
+
+        Security.addVerifiedDigests(digests);
+
+        assertTrue(Security.verifyPurchase(publicKey, PURCHASE_JSON, signature));
+        assertEquals(digests, Security.getVerifiedDigests());
+    }
+
+    private String sign(final String data) throws Exception {
+        return signingKey.sign(data);
+    }
+}
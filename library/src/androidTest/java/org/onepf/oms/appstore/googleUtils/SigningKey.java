@@ -0,0 +1,36 @@
+package org.onepf.oms.appstore.googleUtils;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Signature;
+
+/**
+ * RSA key pair signing purchase data the way stores do.
+ */
+public class SigningKey {
+
+    private final KeyPair keyPair;
+
+    public SigningKey() throws Exception {
+        final KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(1024);
+        keyPair = generator.generateKeyPair();
+    }
+
+    /**
+     * @return The Base64 encoded public key, as given to {@link Security}.
+     */
+    public String getPublicKey() {
+        return Base64.encode(keyPair.getPublic().getEncoded());
+    }
+
+    /**
+     * @return The Base64 encoded SHA1withRSA signature of the data.
+     */
+    public String sign(final String data) throws Exception {
+        final Signature signature = Signature.getInstance("SHA1withRSA");
+        signature.initSign(keyPair.getPrivate());
+        signature.update(data.getBytes("UTF-8"));
+        return Base64.encode(signature.sign());
+    }
+}
@@ -0,0 +1,269 @@
+/*
+ * Copyright 2012-2014 One Platform Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onepf.oms;
+
+import android.os.SystemClock;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.onepf.oms.appstore.googleUtils.Inventory;
+import org.onepf.oms.appstore.googleUtils.Purchase;
+import org.onepf.oms.appstore.googleUtils.SkuDetails;
+import org.onepf.oms.util.Logger;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Keeps inventories returned by the store for {@link OpenIabHelper#queryInventory(boolean, List, List)}.
+ * <p/>
+ * An inventory with SKU details also answers queries without details and queries for a subset of its SKUs.
+ * Every invalidation starts a new generation, inventories queried before it are not stored.
+ * Callers receive copies, so {@link Inventory#erasePurchase(String)} doesn't affect the cache.
+ */
+final class InventoryCache {
+
+    // Distinct queries kept at the same time
+    private static final int MAX_ENTRIES = 4;
+
+    private final long ttlMs;
+
+    // Most recently used first
+    @NotNull
+    private final LinkedList<Entry> entries = new LinkedList<Entry>();
+
+    private long generation;
+
+    InventoryCache(final long ttlMs) {
+        this.ttlMs = ttlMs;
+    }
+
+    /**
+     * @return The current generation to pass to {@link #put(Query, Inventory, long)}.
+     */
+    synchronized long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * @param allowStale If true, an entry older than the TTL is returned too.
+     * @return The copy of the cached inventory that answers the query, null if there is none.
+     */
+    @Nullable
+    synchronized Inventory get(@NotNull final Query query, final boolean allowStale) {
+        final Entry entry = find(query);
+        if (entry == null || (!allowStale && isStale(entry))) {
+            return null;
+        }
+        entries.remove(entry);
+        entries.addFirst(entry);
+        return copy(entry.inventory);
+    }
+
+    /**
+     * @return true if the entry that answers the query is older than the TTL or there is no entry.
+     */
+    synchronized boolean isStale(@NotNull final Query query) {
+        final Entry entry = find(query);
+        return entry == null || isStale(entry);
+    }
+
+    /**
+     * Stores the inventory if the cache wasn't invalidated since the query was started.
+     *
+     * @param generation The generation taken before the query was started.
+     */
+    synchronized void put(@NotNull final Query query, @NotNull final Inventory inventory, final long generation) {
+        if (generation != this.generation) {
+            Logger.d("InventoryCache.put() cache was invalidated during the query, skipped");
+            return;
+        }
+        final Iterator<Entry> iterator = entries.iterator();
+        while (iterator.hasNext()) {
+            if (query.covers(iterator.next().query)) {
+                iterator.remove();
+            }
+        }
+        entries.addFirst(new Entry(query, copy(inventory), SystemClock.elapsedRealtime()));
+        while (entries.size() > MAX_ENTRIES) {
+            entries.removeLast();
+        }
+    }
+
+    synchronized void invalidate() {
+        Logger.d("InventoryCache.invalidate()");
+        generation++;
+        entries.clear();
+    }
+
+    @Nullable
+    private Entry find(@NotNull final Query query) {
+        for (final Entry entry : entries) {
+            if (entry.query.covers(query)) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    private boolean isStale(@NotNull final Entry entry) {
+        return SystemClock.elapsedRealtime() - entry.time >= ttlMs;
+    }
+
+    @NotNull
+    static Inventory copy(@NotNull final Inventory inventory) {
+        final Inventory copy = new Inventory();
+        for (final SkuDetails skuDetails : inventory.getSkuMap().values()) {
+            copy.addSkuDetails(skuDetails);
+        }
+        for (final Purchase purchase : inventory.getPurchaseMap().values()) {
+            copy.addPurchase(purchase);
+        }
+        return copy;
+    }
+
+    /**
+     * Parameters of an inventory query.
+     */
+    static final class Query {
+
+        private final boolean querySkuDetails;
+
+        @NotNull
+        private final Set<String> itemSkus;
+
+        @NotNull
+        private final Set<String> subsSkus;
+
+        Query(final boolean querySkuDetails,
+              @Nullable final List<String> moreItemSkus,
+              @Nullable final List<String> moreSubsSkus) {
+            this.querySkuDetails = querySkuDetails;
+            // Additional SKUs are ignored without details
+            this.itemSkus = querySkuDetails && moreItemSkus != null
+                    ? new HashSet<String>(moreItemSkus)
+                    : Collections.<String>emptySet();
+            this.subsSkus = querySkuDetails && moreSubsSkus != null
+                    ? new HashSet<String>(moreSubsSkus)
+                    : Collections.<String>emptySet();
+        }
+
+        private Query(final boolean querySkuDetails,
+                      @NotNull final Set<String> itemSkus,
+                      @NotNull final Set<String> subsSkus) {
+            this.querySkuDetails = querySkuDetails;
+            this.itemSkus = itemSkus;
+            this.subsSkus = subsSkus;
+        }
+
+        boolean isQuerySkuDetails() {
+            return querySkuDetails;
+        }
+
+        /**
+         * @return Additional item SKUs, null if there are none.
+         */
+        @Nullable
+        List<String> getItemSkus() {
+            return itemSkus.isEmpty() ? null : new ArrayList<String>(itemSkus);
+        }
+
+        /**
+         * @return Additional subscription SKUs, null if there are none.
+         */
+        @Nullable
+        List<String> getSubsSkus() {
+            return subsSkus.isEmpty() ? null : new ArrayList<String>(subsSkus);
+        }
+
+        /**
+         * @return The query that covers both queries.
+         */
+        @NotNull
+        Query merge(@NotNull final Query other) {
+            if (covers(other)) {
+                return this;
+            }
+            if (other.covers(this)) {
+                return other;
+            }
+            final Set<String> mergedItemSkus = new HashSet<String>(itemSkus);
+            mergedItemSkus.addAll(other.itemSkus);
+            final Set<String> mergedSubsSkus = new HashSet<String>(subsSkus);
+            mergedSubsSkus.addAll(other.subsSkus);
+            return new Query(true, mergedItemSkus, mergedSubsSkus);
+        }
+
+        /**
+         * @return true if the inventory queried with this query answers the other query.
+         */
+        boolean covers(@NotNull final Query other) {
+            if (!other.querySkuDetails) {
+                return true;
+            }
+            return querySkuDetails
+                    && itemSkus.containsAll(other.itemSkus)
+                    && subsSkus.containsAll(other.subsSkus);
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+
+            final Query query = (Query) o;
+            return querySkuDetails == query.querySkuDetails
+                    && itemSkus.equals(query.itemSkus)
+                    && subsSkus.equals(query.subsSkus);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = querySkuDetails ? 1 : 0;
+            result = 31 * result + itemSkus.hashCode();
+            result = 31 * result + subsSkus.hashCode();
+            return result;
+        }
+
+        @Override
+        public String toString() {
+            return "Query{querySkuDetails=" + querySkuDetails + ", itemSkus=" + itemSkus + ", subsSkus=" + subsSkus + '}';
+        }
+    }
+
+    private static final class Entry {
+
+        @NotNull
+        private final Query query;
+
+        @NotNull
+        private final Inventory inventory;
+
+        private final long time;
+
+        private Entry(@NotNull final Query query, @NotNull final Inventory inventory, final long time) {
+            this.query = query;
+            this.inventory = inventory;
+            this.time = time;
+        }
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright 2012-2014 One Platform Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onepf.oms;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.onepf.oms.appstore.googleUtils.IabException;
+import org.onepf.oms.appstore.googleUtils.Inventory;
+import org.onepf.oms.util.Logger;
+
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Shares store inventory requests between concurrent queries.
+ * <p/>
+ * A query joins the request in flight if its inventory answers the query. Otherwise the query waits for the next
+ * request, which is started when the request in flight finishes. Queries arriving meanwhile are merged into it,
+ * so at most one request is in flight and one is pending.
+ * <p/>
+ * Queries don't join requests started before {@link #invalidate()}. A request pending since before is still
+ * executed, the next request is queued behind it, so requests never overlap.
+ */
+final class InventoryQueryCoalescer {
+
+    /**
+     * Performs the store request.
+     */
+    interface Loader {
+        @Nullable
+        Inventory load(@NotNull InventoryCache.Query query) throws IabException;
+    }
+
+    @NotNull
+    private final Loader loader;
+
+    // Guarded by this
+    @Nullable
+    private Request current;
+
+    // Guarded by this
+    @Nullable
+    private Request next;
+
+    // Guarded by this
+    private long generation;
+
+    InventoryQueryCoalescer(@NotNull final Loader loader) {
+        this.loader = loader;
+    }
+
+    /**
+     * Queries the inventory, blocks until the store answers.
+     *
+     * @return The copy of the inventory that answers the query, can be null.
+     * @throws IabException if the store request failed or the thread was interrupted.
+     */
+    @Nullable
+    Inventory query(@NotNull final InventoryCache.Query query) throws IabException {
+        final Request request;
+        final Request previous;
+        final boolean leader;
+        synchronized (this) {
+            if (current != null && current.generation == generation && current.query.covers(query)) {
+                Logger.d("InventoryQueryCoalescer.query() joined request in flight: ", query);
+                request = current;
+                previous = null;
+                leader = false;
+            } else if (next != null && next.generation == generation) {
+                Logger.d("InventoryQueryCoalescer.query() merged into next request: ", query);
+                next.query = next.query.merge(query);
+                request = next;
+                previous = null;
+                leader = false;
+            } else {
+                request = new Request(query, generation);
+                // A next request left from before invalidate() still runs, this one is executed after it
+                previous = next != null ? next : current;
+                leader = true;
+                if (previous == null) {
+                    current = request;
+                } else {
+                    next = request;
+                }
+            }
+        }
+
+        if (leader) {
+            if (previous != null) {
+                // Queries merged into the request are waiting for it, it must be executed
+                awaitUninterruptibly(previous);
+            }
+            execute(request);
+        } else {
+            await(request);
+        }
+        if (request.exception != null) {
+            throw request.exception;
+        }
+        return request.inventory == null ? null : InventoryCache.copy(request.inventory);
+    }
+
+    /**
+     * Prevents new queries from joining requests started before.
+     */
+    synchronized void invalidate() {
+        generation++;
+    }
+
+    private void execute(@NotNull final Request request) {
+        final InventoryCache.Query query;
+        synchronized (this) {
+            if (next == request) {
+                next = null;
+            }
+            current = request;
+            // Nothing can be merged from now on
+            query = request.query;
+        }
+        try {
+            request.inventory = loader.load(query);
+        } catch (IabException exception) {
+            request.exception = exception;
+        } catch (RuntimeException exception) {
+            Logger.e("InventoryQueryCoalescer.execute() request failed: ", exception);
+            request.exception = new IabException(OpenIabHelper.BILLING_RESPONSE_RESULT_ERROR, "Inventory query failed", exception);
+        } finally {
+            synchronized (this) {
+                if (current == request) {
+                    current = null;
+                }
+            }
+            request.done.countDown();
+        }
+    }
+
+    private static void awaitUninterruptibly(@NotNull final Request request) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                request.done.await();
+                break;
+            } catch (InterruptedException exception) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void await(@NotNull final Request request) throws IabException {
+        try {
+            request.done.await();
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            throw new IabException(OpenIabHelper.BILLING_RESPONSE_RESULT_ERROR, "Inventory query interrupted", exception);
+        }
+    }
+
+    private static final class Request {
+
+        @NotNull
+        private final CountDownLatch done = new CountDownLatch(1);
+
+        private final long generation;
+
+        // Guarded by the coalescer until the request is started
+        @NotNull
+        private InventoryCache.Query query;
+
+        // Published by the latch
+        @Nullable
+        private Inventory inventory;
+
+        // Published by the latch
+        @Nullable
+        private IabException exception;
+
+        private Request(@NotNull final InventoryCache.Query query, final long generation) {
+            this.query = query;
+            this.generation = generation;
+        }
+    }
+}
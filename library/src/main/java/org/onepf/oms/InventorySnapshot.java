@@ -0,0 +1,297 @@
+/*
+ * Copyright 2012-2014 One Platform Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onepf.oms;
+
+import android.content.Context;
+import android.text.TextUtils;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.onepf.oms.appstore.googleUtils.Inventory;
+import org.onepf.oms.appstore.googleUtils.Purchase;
+import org.onepf.oms.appstore.googleUtils.Security;
+import org.onepf.oms.appstore.googleUtils.SkuDetails;
+import org.onepf.oms.util.BinaryFile;
+import org.onepf.oms.util.Logger;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.onepf.oms.util.BinaryFile.readString;
+import static org.onepf.oms.util.BinaryFile.writeString;
+
+/**
+ * Keeps the last inventory returned by the store in a file, to show purchases before the setup finishes.
+ * <p/>
+ * Only purchases with a signature that can be verified with the store key from {@link OpenIabHelper.Options#getStoreKeys()}
+ * are written. Signatures are verified again on load, purchases that fail the verification are dropped.
+ * SKU and item type of a purchase aren't signed, so they aren't written and are derived from the verified JSON on load.
+ * SKU details are written if the store returned their JSON.
+ * <p/>
+ * File format: store name, purchases [original JSON, signature], SKU details [item type, sku, JSON],
+ * framed by {@link BinaryFile}.
+ */
+final class InventorySnapshot {
+
+    private static final String FILE_NAME = "onepf_inventory_snapshot";
+
+    private static final int MAGIC = 0x4f494953;
+
+    private static final int VERSION = 2;
+
+    // Only subscriptions have this field in the purchase JSON
+    private static final String JSON_AUTO_RENEWING = "autoRenewing";
+
+    @NotNull
+    private final BinaryFile file;
+
+    @NotNull
+    private final Map<String, String> storeKeys;
+
+    // Guarded by this
+    private boolean loaded;
+
+    // Guarded by this
+    @Nullable
+    private Inventory inventory;
+
+    // Store of the snapshot, guarded by this
+    @Nullable
+    private String snapshotAppstoreName;
+
+    InventorySnapshot(@NotNull final Context context, @NotNull final Map<String, String> storeKeys) {
+        this.file = new BinaryFile(new File(context.getFilesDir(), FILE_NAME), MAGIC, VERSION);
+        this.storeKeys = storeKeys;
+    }
+
+    /**
+     * Reads the snapshot on the first call.
+     *
+     * @return The copy of the last inventory, null if there is no valid snapshot.
+     */
+    @Nullable
+    synchronized Inventory get() {
+        if (!loaded) {
+            loaded = true;
+            inventory = load();
+        }
+        return inventory == null ? null : InventoryCache.copy(inventory);
+    }
+
+    /**
+     * Replaces purchases of the snapshot with the live inventory.
+     * SKU details of the snapshot are kept unless the live inventory has newer ones.
+     * The file is written only if the content changed.
+     *
+     * @param appstoreName The store that returned the inventory.
+     * @param live         The inventory returned by the store.
+     */
+    synchronized void reconcile(@NotNull final String appstoreName, @NotNull final Inventory live) {
+        final Inventory reconciled = new Inventory();
+        final Inventory previous = get();
+        if (previous != null && appstoreName.equals(snapshotAppstoreName)) {
+            for (final SkuDetails skuDetails : previous.getSkuMap().values()) {
+                reconciled.addSkuDetails(skuDetails);
+            }
+        }
+        for (final SkuDetails skuDetails : live.getSkuMap().values()) {
+            if (!TextUtils.isEmpty(skuDetails.getJson())) {
+                reconciled.addSkuDetails(skuDetails);
+            }
+        }
+        for (final Purchase purchase : live.getAllPurchases()) {
+            if (isVerifiable(appstoreName, purchase)) {
+                reconciled.addPurchase(purchase);
+            }
+        }
+        final boolean changed = previous == null
+                || !appstoreName.equals(snapshotAppstoreName)
+                || !hasSameContent(previous, reconciled);
+        inventory = reconciled;
+        snapshotAppstoreName = appstoreName;
+        if (changed) {
+            save(appstoreName, reconciled);
+        } else {
+            Logger.d("InventorySnapshot.reconcile() snapshot is unchanged, not saved");
+        }
+    }
+
+    /**
+     * Removes a consumed purchase from the snapshot.
+     */
+    synchronized void erasePurchase(@NotNull final String sku) {
+        final Inventory current = get();
+        final String appstoreName = snapshotAppstoreName;
+        if (current == null || appstoreName == null || !current.hasPurchase(sku)) {
+            return;
+        }
+        current.erasePurchase(sku);
+        inventory = current;
+        save(appstoreName, current);
+    }
+
+    /**
+     * @return true if both inventories would be written the same way.
+     */
+    private static boolean hasSameContent(@NotNull final Inventory inventory, @NotNull final Inventory other) {
+        return getSignedPurchases(inventory).equals(getSignedPurchases(other))
+                && getSkuDetailsContent(inventory).equals(getSkuDetailsContent(other));
+    }
+
+    /**
+     * @return [original JSON, signature] of every purchase.
+     */
+    @NotNull
+    private static Set<List<String>> getSignedPurchases(@NotNull final Inventory inventory) {
+        final Set<List<String>> signedPurchases = new HashSet<List<String>>();
+        for (final Purchase purchase : inventory.getPurchaseMap().values()) {
+            signedPurchases.add(Arrays.asList(purchase.getOriginalJson(), purchase.getSignature()));
+        }
+        return signedPurchases;
+    }
+
+    /**
+     * @return [item type, JSON] of SKU details by SKU.
+     */
+    @NotNull
+    private static Map<String, List<String>> getSkuDetailsContent(@NotNull final Inventory inventory) {
+        final Map<String, List<String>> skuDetailsContent = new HashMap<String, List<String>>();
+        for (final SkuDetails skuDetails : inventory.getSkuMap().values()) {
+            skuDetailsContent.put(skuDetails.getSku(), Arrays.asList(skuDetails.getItemType(), skuDetails.getJson()));
+        }
+        return skuDetailsContent;
+    }
+
+    private boolean isVerifiable(@NotNull final String appstoreName, @NotNull final Purchase purchase) {
+        return !TextUtils.isEmpty(storeKeys.get(appstoreName))
+                && !TextUtils.isEmpty(purchase.getOriginalJson())
+                && !TextUtils.isEmpty(purchase.getSignature());
+    }
+
+    private void save(@NotNull final String appstoreName, @NotNull final Inventory inventory) {
+        final boolean saved = file.save(new BinaryFile.Writer() {
+            @Override
+            public void write(@NotNull final DataOutputStream data) throws IOException {
+                writeString(data, appstoreName);
+                data.writeInt(inventory.getPurchaseMap().size());
+                for (final Purchase purchase : inventory.getPurchaseMap().values()) {
+                    writeString(data, purchase.getOriginalJson());
+                    writeString(data, purchase.getSignature());
+                }
+                data.writeInt(inventory.getSkuMap().size());
+                for (final SkuDetails skuDetails : inventory.getSkuMap().values()) {
+                    writeString(data, skuDetails.getItemType());
+                    writeString(data, skuDetails.getSku());
+                    writeString(data, skuDetails.getJson());
+                }
+            }
+        });
+        if (saved) {
+            Logger.d("InventorySnapshot.save() purchases: ", inventory.getPurchaseMap().size(),
+                    ", sku details: ", inventory.getSkuMap().size());
+        }
+    }
+
+    @Nullable
+    private Inventory load() {
+        return file.load(new BinaryFile.Reader<Inventory>() {
+            @NotNull
+            @Override
+            public Inventory read(@NotNull final DataInputStream data) throws IOException {
+                try {
+                    return InventorySnapshot.this.read(data);
+                } catch (JSONException exception) {
+                    throw new IOException("Snapshot has invalid JSON", exception);
+                }
+            }
+        });
+    }
+
+    @NotNull
+    private Inventory read(@NotNull final DataInputStream data) throws IOException, JSONException {
+        final Inventory inventory = new Inventory();
+        final String appstoreName = readString(data);
+        if (appstoreName == null) {
+            throw new IOException("Snapshot has no store name");
+        }
+        snapshotAppstoreName = appstoreName;
+        final String storeKey = storeKeys.get(appstoreName);
+        final int purchaseCount = data.readInt();
+        final List<String> originalJsons = new ArrayList<String>();
+        final List<String> signatures = new ArrayList<String>();
+        final List<Security.SignedData> signedData = new ArrayList<Security.SignedData>();
+        for (int i = 0; i < purchaseCount; i++) {
+            final String originalJson = readString(data);
+            final String signature = readString(data);
+            if (TextUtils.isEmpty(storeKey) || originalJson == null || signature == null) {
+                Logger.w("InventorySnapshot.read() purchase can't be verified, dropped");
+                continue;
+            }
+            originalJsons.add(originalJson);
+            signatures.add(signature);
+            signedData.add(new Security.SignedData(storeKey, originalJson, signature));
+        }
+        final boolean[] verified = Security.verifyPurchases(signedData);
+        for (int i = 0; i < verified.length; i++) {
+            final String originalJson = originalJsons.get(i);
+            if (!verified[i]) {
+                Logger.w("InventorySnapshot.read() signature verification failed, purchase dropped: ", originalJson);
+                continue;
+            }
+            final Purchase purchase = new Purchase(getItemType(originalJson), originalJson, signatures.get(i), appstoreName);
+            if (TextUtils.isEmpty(purchase.getSku())) {
+                Logger.w("InventorySnapshot.read() purchase has no productId, dropped: ", originalJson);
+                continue;
+            }
+            purchase.setSku(SkuManager.getInstance().getSku(appstoreName, purchase.getSku()));
+            inventory.addPurchase(purchase);
+        }
+        final int skuDetailsCount = data.readInt();
+        for (int i = 0; i < skuDetailsCount; i++) {
+            final String itemType = readString(data);
+            final String sku = readString(data);
+            final String json = readString(data);
+            if (json == null) {
+                throw new IOException("Snapshot has no SKU details JSON");
+            }
+            final SkuDetails skuDetails = new SkuDetails(itemType, json);
+            skuDetails.setSku(sku);
+            inventory.addSkuDetails(skuDetails);
+        }
+        Logger.d("InventorySnapshot.read() purchases: ", inventory.getPurchaseMap().size(),
+                ", sku details: ", skuDetailsCount);
+        return inventory;
+    }
+
+    @NotNull
+    private static String getItemType(@NotNull final String originalJson) throws JSONException {
+        return new JSONObject(originalJson).has(JSON_AUTO_RENEWING)
+                ? OpenIabHelper.ITEM_TYPE_SUBS
+                : OpenIabHelper.ITEM_TYPE_INAPP;
+    }
+}
@@ -19,13 +19,10 @@ package org.onepf.oms;
 import android.app.Activity;
 import android.content.ComponentName;
 import android.content.Context;
-import android.content.ContextWrapper;
 import android.content.Intent;
 import android.content.ServiceConnection;
-import android.content.pm.PackageManager;
-import android.content.pm.PackageManager.NameNotFoundException;
-import android.content.pm.ResolveInfo;
 import android.content.pm.ServiceInfo;
+import android.os.Bundle;
 import android.os.Handler;
 import android.os.IBinder;
 import android.os.Looper;
@@ -51,26 +48,34 @@ import org.onepf.oms.appstore.googleUtils.IabResult;
 import org.onepf.oms.appstore.googleUtils.Inventory;
 import org.onepf.oms.appstore.googleUtils.Purchase;
 import org.onepf.oms.appstore.googleUtils.Security;
-import org.onepf.oms.util.CollectionUtils;
 import org.onepf.oms.util.Logger;
+import org.onepf.oms.util.ServiceConnectionPool;
+import org.onepf.oms.util.TaskExecutors;
 import org.onepf.oms.util.Utils;
 
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashSet;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionService;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Semaphore;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import static org.onepf.oms.OpenIabHelper.Options.SEARCH_STRATEGY_INSTALLER;
 import static org.onepf.oms.OpenIabHelper.Options.SEARCH_STRATEGY_INSTALLER_THEN_BEST_FIT;
@@ -83,7 +88,13 @@ import static org.onepf.oms.OpenIabHelper.Options.VERIFY_SKIP;
  */
 public class OpenIabHelper {
     // Intent to discover and bind to Open Stores
-    private static final String BIND_INTENT = "org.onepf.oms.openappstore.BIND";
+    static final String BIND_INTENT = "org.onepf.oms.openappstore.BIND";
+
+    // Maximum number of stores checked for billing availability at the same time
+    private static final int BILLING_PROBE_POOL_SIZE = 4;
+
+    // Threads of the default executor: setup task and async operations
+    private static final int DEFAULT_EXECUTOR_POOL_SIZE = 2;
 
     /**
      * Setup process was not started.
@@ -204,7 +215,13 @@ public class OpenIabHelper {
      */
     public static final String NAME_APTOIDE = "cm.aptoide.pt";
 
-    private final PackageManager packageManager;
+    // Process-wide cache of installed stores
+    @NotNull
+    private final StoreRegistry storeRegistry;
+
+    // Shares connections to store services between availability checks and billing helpers
+    @NotNull
+    private final ServiceConnectionPool serviceConnectionPool;
 
     private final Context context;
 
@@ -228,11 +245,73 @@ public class OpenIabHelper {
     //Complete list of Appstores to check. Used if options.getAvailableStores() or options.getAvailableStoreNames is not empty.
     private final Set<Appstore> availableAppstores = new LinkedHashSet<Appstore>();
 
+    // Runs the setup task and async operations, see Options.Builder#setExecutor()
+    @NotNull
+    private final ExecutorService executor;
+
+    // True if the executor was created by the helper and must be shut down in dispose()
+    private final boolean ownsExecutor;
+
+    // Runs billing and inventory checks of stores, setup waits for them so they never run on the executor.
+    // Created on demand, guarded by this
     @Nullable
-    private ExecutorService setupExecutorService;
+    private ExecutorService probeExecutor;
 
+    // Delivers results of async operations, see Options.Builder#setCallbackExecutor()
     @NotNull
-    private final ExecutorService inventoryExecutor = Executors.newSingleThreadExecutor();
+    private final Executor callbackExecutor;
+
+    // Inventories returned by the store, null if disabled by options
+    @Nullable
+    private final InventoryCache inventoryCache;
+
+    // Last inventory persisted on disk, null if disabled by options
+    @Nullable
+    private final InventorySnapshot inventorySnapshot;
+
+    // Digests of verified purchases persisted on disk, null if disabled by options
+    @Nullable
+    private final VerifiedPurchaseStore verifiedPurchaseStore;
+
+    // Shares store requests between concurrent inventory queries
+    private final InventoryQueryCoalescer inventoryQueryCoalescer = new InventoryQueryCoalescer(
+            new InventoryQueryCoalescer.Loader() {
+                @Nullable
+                @Override
+                public Inventory load(@NotNull final InventoryCache.Query query) throws IabException {
+                    final InventoryCache inventoryCache = OpenIabHelper.this.inventoryCache;
+                    final long generation = inventoryCache == null ? 0 : inventoryCache.getGeneration();
+                    final Inventory inventory = queryStoreInventory(query.isQuerySkuDetails(),
+                            query.getItemSkus(), query.getSubsSkus());
+                    if (inventoryCache != null && inventory != null) {
+                        inventoryCache.put(query, inventory, generation);
+                    }
+                    return inventory;
+                }
+            });
+
+    // Queries being refreshed in background for the inventory cache
+    private final Set<InventoryCache.Query> refreshingQueries =
+            Collections.synchronizedSet(new HashSet<InventoryCache.Query>());
+
+    // Background tasks of the current setup, cancelled when setup finishes
+    private final List<Future<?>> setupTasks = Collections.synchronizedList(new ArrayList<Future<?>>());
+
+    // Persisted setup decision, null if disabled by options
+    @Nullable
+    private final SetupCache setupCache;
+
+    // Fingerprint of the current setup inputs, null if setup cache is disabled
+    @Nullable
+    private volatile String setupFingerprint;
+
+    // Time budget of the current setup
+    @Nullable
+    private volatile SetupDeadline setupDeadline;
+
+    // Timings of the last setup
+    @Nullable
+    private volatile SetupTrace setupTrace;
 
     //For internal use only. Do not make it public!
     private static interface AppstoreFactory {
@@ -265,27 +344,8 @@ public class OpenIabHelper {
                 final String googleKey = options.getVerifyMode() != VERIFY_SKIP
                         ? options.getStoreKeys().get(NAME_GOOGLE)
                         : null;
-                return new GooglePlay(new ContextWrapper(context.getApplicationContext()) {
-                    @Override
-                    public Context getApplicationContext() {
-                        return this;
-                    }
-
-                    @Override
-                    public boolean bindService(final Intent service, final ServiceConnection conn, final int flags) {
-                        final List<ResolveInfo> infos = getPackageManager().queryIntentServices(service, 0);
-                        if (CollectionUtils.isEmpty(infos)) {
-                            return super.bindService(service, conn, flags);
-                        }
-                        final ResolveInfo serviceInfo = infos.get(0);
-                        final String packageName = serviceInfo.serviceInfo.packageName;
-                        final String className = serviceInfo.serviceInfo.name;
-                        final ComponentName component = new ComponentName(packageName, className);
-                        final Intent explicitIntent = new Intent(service);
-                        explicitIntent.setComponent(component);
-                        return super.bindService(explicitIntent, conn, flags);
-                    }
-                }, googleKey);
+                // Availability check and billing helper share the connection to the vending service
+                return new GooglePlay(serviceConnectionPool.wrap(context), googleKey);
             }
         });
 
@@ -294,7 +354,7 @@ public class OpenIabHelper {
             @NotNull
             @Override
             public Appstore get() {
-                return new AmazonAppstore(context);
+                return new AmazonAppstore(context, options);
             }
         });
 
@@ -321,7 +381,7 @@ public class OpenIabHelper {
             @NotNull
             @Override
             public Appstore get() {
-                return new SkubitAppstore(context);
+                return new SkubitAppstore(serviceConnectionPool.wrap(context));
             }
         });
 
@@ -330,7 +390,7 @@ public class OpenIabHelper {
             @NotNull
             @Override
             public Appstore get() {
-                return new SkubitTestAppstore(context);
+                return new SkubitTestAppstore(serviceConnectionPool.wrap(context));
             }
         });
     }
@@ -453,8 +513,28 @@ public class OpenIabHelper {
      */
     public OpenIabHelper(@NotNull Context context, Options options) {
         this.context = context.getApplicationContext();
-        packageManager = context.getPackageManager();
+        storeRegistry = StoreRegistry.getInstance(context);
+        serviceConnectionPool = ServiceConnectionPool.getInstance(context);
         this.options = options;
+        setupCache = options.isSetupCacheEnabled() ? new SetupCache(this.context) : null;
+        inventoryCache = options.getInventoryCacheTtl() > 0 ? new InventoryCache(options.getInventoryCacheTtl()) : null;
+        inventorySnapshot = options.isInventorySnapshotEnabled()
+                ? new InventorySnapshot(this.context, options.getStoreKeys())
+                : null;
+        verifiedPurchaseStore = options.isVerifiedPurchasesPersisted() ? new VerifiedPurchaseStore(this.context) : null;
+        ownsExecutor = options.getExecutor() == null;
+        executor = ownsExecutor
+                ? TaskExecutors.newPool("OpenIabHelper", DEFAULT_EXECUTOR_POOL_SIZE, false)
+                : options.getExecutor();
+        final Executor optionsCallbackExecutor = options.getCallbackExecutor();
+        callbackExecutor = optionsCallbackExecutor == null
+                ? new Executor() {
+                    @Override
+                    public void execute(@NotNull final Runnable command) {
+                        handler.post(command);
+                    }
+                }
+                : optionsCallbackExecutor;
         if (context instanceof Activity) {
             this.activity = (Activity) context;
         }
@@ -462,6 +542,30 @@ public class OpenIabHelper {
         checkOptions();
     }
 
+    /**
+     * @return The pool for billing and inventory checks of stores.
+     */
+    @NotNull
+    private synchronized ExecutorService getProbeExecutor() {
+        if (probeExecutor == null) {
+            probeExecutor = TaskExecutors.newPool("OpenIabHelper probe", BILLING_PROBE_POOL_SIZE, true);
+        }
+        return probeExecutor;
+    }
+
+    /**
+     * Runs a background task of the setup. The task is cancelled when setup finishes.
+     * Finishes setup with an error if the executor doesn't accept the task.
+     */
+    private void executeSetupTask(@NotNull final Runnable task,
+                                  @NotNull final OnIabSetupFinishedListener listener) {
+        try {
+            setupTasks.add(executor.submit(task));
+        } catch (RejectedExecutionException exception) {
+            finishSetupWithError(listener, exception);
+        }
+    }
+
 
     /**
      * Discovers all available stores and selects the best billing service.
@@ -481,8 +585,25 @@ public class OpenIabHelper {
             throw new IllegalStateException("Couldn't be set up. Current state: " + setupStateToString(setupState));
         }
         setupState = SETUP_IN_PROGRESS;
-        setupExecutorService = Executors.newSingleThreadExecutor();
+        setupDeadline = new SetupDeadline(options.getSetupTimeout());
+
+        final SetupTrace trace = new SetupTrace();
+        setupTrace = trace;
+        startSetupInternal(new OnIabSetupFinishedListener() {
+            @Override
+            public void onIabSetupFinished(final IabResult result) {
+                trace.finish(result, appstore);
+                Logger.d("startSetup() ", trace);
+                final SetupTrace.Listener traceListener = options.getSetupTraceListener();
+                if (traceListener != null) {
+                    traceListener.onSetupTraced(trace);
+                }
+                listener.onIabSetupFinished(result);
+            }
+        });
+    }
 
+    private void startSetupInternal(@NotNull final OnIabSetupFinishedListener listener) {
         // Compose full list of available stores to check billing for
         availableAppstores.clear();
         // Add all manually supplied Appstores
@@ -556,10 +677,19 @@ public class OpenIabHelper {
         Logger.d("setupWithStrategy() store search strategy = ", storeSearchStrategy);
         final String packageName = context.getPackageName();
         Logger.d("setupWithStrategy() package name = ", packageName);
-        final String packageInstaller = packageManager.getInstallerPackageName(packageName);
+        final long installerLookupStart = SetupTrace.now();
+        final String packageInstaller = storeRegistry.getInstallerPackageName();
+        tracePhase(SetupTrace.PHASE_INSTALLER_LOOKUP, null, installerLookupStart, packageInstaller);
         Logger.d("setupWithStrategy() package installer = ", packageInstaller);
         final boolean packageInstallerSet = !TextUtils.isEmpty(packageInstaller);
 
+        if (setupCache != null) {
+            setupFingerprint = getSetupFingerprint(packageInstaller);
+            if (setupFromCache(listener, setupCache)) {
+                return;
+            }
+        }
+
         if (storeSearchStrategy == SEARCH_STRATEGY_INSTALLER) {
             // Check only package installer
             if (packageInstallerSet) {
@@ -583,6 +713,141 @@ public class OpenIabHelper {
         }
     }
 
+    /**
+     * Composes the fingerprint of inputs the store choice depends on.
+     */
+    @NotNull
+    private String getSetupFingerprint(@Nullable final String packageInstaller) {
+        final Map<String, Integer> packageVersions = new HashMap<String, Integer>();
+        packageVersions.put(context.getPackageName(), getPackageVersionCode(context.getPackageName()));
+        for (final String appstorePackage : appStorePackageMap.keySet()) {
+            final int versionCode = getPackageVersionCode(appstorePackage);
+            if (versionCode != Appstore.PACKAGE_VERSION_UNDEFINED) {
+                packageVersions.put(appstorePackage, versionCode);
+            }
+        }
+        for (final ServiceInfo serviceInfo : queryOpenStoreServices()) {
+            packageVersions.put(serviceInfo.packageName + '/' + serviceInfo.name, getPackageVersionCode(serviceInfo.packageName));
+        }
+        return SetupCache.fingerprint(packageInstaller, packageVersions, options);
+    }
+
+    private int getPackageVersionCode(@NotNull final String packageName) {
+        return storeRegistry.getPackageVersion(packageName);
+    }
+
+    /**
+     * Connects directly to the store chosen during the previous setup if setup inputs are unchanged.
+     * Falls back to the full setup if the cached store can't be created or connected.
+     *
+     * @return true if the cached store is being used, false if there is no suitable cached decision.
+     */
+    private boolean setupFromCache(@NotNull final OnIabSetupFinishedListener listener,
+                                   @NotNull final SetupCache setupCache) {
+        final String fingerprint = setupFingerprint;
+        final String storeName = fingerprint == null ? null : setupCache.getStoreName(fingerprint);
+        if (storeName == null) {
+            Logger.d("setupFromCache() no cached store for current fingerprint");
+            return false;
+        }
+        Logger.d("setupFromCache() cached store: ", storeName);
+
+        if (!availableAppstores.isEmpty()) {
+            final Appstore appstore = getAvailableStoreByName(storeName);
+            if (appstore == null) {
+                return false;
+            }
+            finishWithCachedStore(listener, appstore);
+            return true;
+        }
+        if (appStoreFactoryMap.containsKey(storeName)) {
+            final Appstore appstore = appStoreFactoryMap.get(storeName).get();
+            if (appstore == null) {
+                return false;
+            }
+            finishWithCachedStore(listener, appstore);
+            return true;
+        }
+
+        // Cached store is an Open Store
+        final ComponentName storeComponent = setupCache.getStoreComponent();
+        if (storeComponent == null) {
+            return false;
+        }
+        final Intent bindServiceIntent = new Intent(BIND_INTENT);
+        bindServiceIntent.setComponent(storeComponent);
+        final TimedServiceConnection serviceConnection = new TimedServiceConnection() {
+            @Override
+            protected void onConnected(final ComponentName name, final IBinder service) {
+                OpenAppstore openAppstore = null;
+                try {
+                    openAppstore = getOpenAppstore(name, service, this);
+                } catch (RemoteException exception) {
+                    Logger.e("setupFromCache() Error binding to open store service : ", exception);
+                }
+                if (openAppstore != null && TextUtils.equals(openAppstore.getAppstoreName(), storeName)) {
+                    finishWithCachedStore(listener, openAppstore);
+                    return;
+                }
+                if (openAppstore != null) {
+                    openAppstore.getInAppBillingService().dispose();
+                } else {
+                    context.unbindService(this);
+                }
+                fallbackFromCache(listener);
+            }
+
+            @Override
+            protected void onTimeout() {
+                Logger.e("setupFromCache() Open store service didn't connect in time");
+                reportTimedOut(storeName);
+                fallbackFromCache(listener);
+            }
+        };
+        if (!serviceConnection.bind(bindServiceIntent)) {
+            context.unbindService(serviceConnection);
+            Logger.e("setupFromCache() Error binding to open store service");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Finishes setup with the cached store without checking its billing availability first.
+     * The billing setup of the store validates the decision: if it fails, the cache is cleared,
+     * so the next setup selects the store again.
+     */
+    private void finishWithCachedStore(@NotNull final OnIabSetupFinishedListener listener,
+                                       @NotNull final Appstore appstore) {
+        traceReason(SetupTrace.REASON_CACHED);
+        finishSetup(new OnIabSetupFinishedListener() {
+            @Override
+            public void onIabSetupFinished(final IabResult result) {
+                startBillingSetup(appstore, new OnIabSetupFinishedListener() {
+                    @Override
+                    public void onIabSetupFinished(final IabResult billingResult) {
+                        if (!billingResult.isSuccess() && setupCache != null) {
+                            Logger.d("finishWithCachedStore() billing setup failed, cache cleared: ", appstore.getAppstoreName());
+                            setupCache.clear();
+                        }
+                        listener.onIabSetupFinished(billingResult);
+                    }
+                });
+            }
+        }, appstore);
+    }
+
+    private void fallbackFromCache(@NotNull final OnIabSetupFinishedListener listener) {
+        if (setupCache != null) {
+            setupCache.clear();
+        }
+        if (setupState != SETUP_IN_PROGRESS) {
+            finishSetup(listener);
+            return;
+        }
+        setupWithStrategy(listener);
+    }
+
     private void setupForPackage(@NotNull final OnIabSetupFinishedListener listener,
                                  @NotNull final String packageInstaller,
                                  final boolean withFallback) {
@@ -611,6 +876,7 @@ public class OpenIabHelper {
 
         if (appstore != null) {
             // Package installer found
+            traceReason(SetupTrace.REASON_INSTALLER);
             checkBillingAndFinish(listener, appstore);
             return;
         }
@@ -634,9 +900,9 @@ public class OpenIabHelper {
             return;
         }
 
-        if (!context.bindService(bindServiceIntent, new ServiceConnection() {
+        if (!new TimedServiceConnection() {
             @Override
-            public void onServiceConnected(final ComponentName name, final IBinder service) {
+            protected void onConnected(final ComponentName name, final IBinder service) {
                 Appstore appstore = null;
                 try {
                     final Appstore openAppstore = getOpenAppstore(name, service, this);
@@ -656,14 +922,22 @@ public class OpenIabHelper {
                 if (appstore == null && withFallback) {
                     setup(listener);
                 } else {
+                    traceReason(SetupTrace.REASON_INSTALLER);
                     checkBillingAndFinish(listener, appstore);
                 }
             }
 
             @Override
-            public void onServiceDisconnected(final ComponentName name) {
+            protected void onTimeout() {
+                Logger.e("setupForPackage() Open store service didn't connect in time");
+                reportTimedOut(packageInstaller);
+                if (withFallback) {
+                    setup(listener);
+                } else {
+                    finishSetup(listener);
+                }
             }
-        }, Context.BIND_AUTO_CREATE)) {
+        }.bind(bindServiceIntent)) {
             // Can't bind to open store service
             Logger.e("setupForPackage() Error binding to open store service");
             if (withFallback) {
@@ -689,6 +963,7 @@ public class OpenIabHelper {
                 }
             }
             appstoresToCheck.addAll(this.availableAppstores);
+            traceReason(SetupTrace.REASON_PRIORITY);
             checkBillingAndFinish(listener, appstoresToCheck);
         } else {
             discoverOpenStores(new OpenStoresDiscoveredListener() {
@@ -700,7 +975,7 @@ public class OpenIabHelper {
                         final String name = appStorePackageMap.get(appstorePackage);
                         if (!TextUtils.isEmpty(name)
                                 && appStoreFactoryMap.containsKey(name)
-                                && Utils.packageInstalled(context, appstorePackage)) {
+                                && storeRegistry.isPackageInstalled(appstorePackage)) {
                             allAvailableAppstores.add(appStoreFactoryMap.get(name).get());
                         }
                     }
@@ -721,6 +996,7 @@ public class OpenIabHelper {
                     }
                     // Add everything else
                     appstoresToCheck.addAll(allAvailableAppstores);
+                    traceReason(SetupTrace.REASON_PRIORITY);
                     checkBillingAndFinish(listener, appstoresToCheck);
                 }
             });
@@ -733,8 +1009,9 @@ public class OpenIabHelper {
                                          final ServiceConnection serviceConnection)
             throws RemoteException {
         final IOpenAppstore openAppstoreService = IOpenAppstore.Stub.asInterface(service);
-        final String appstoreName = openAppstoreService.getAppstoreName();
-        final Intent billingIntent = openAppstoreService.getBillingServiceIntent();
+        final Bundle description = OpenAppstore.describe(openAppstoreService, context.getPackageName());
+        final String appstoreName = description.getString(OpenAppstore.DESCRIPTION_KEY_APPSTORE_NAME);
+        final Intent billingIntent = description.getParcelable(OpenAppstore.DESCRIPTION_KEY_BILLING_SERVICE_INTENT);
         final int verifyMode = options.getVerifyMode();
         final String publicKey = verifyMode == Options.VERIFY_SKIP
                 ? null
@@ -749,7 +1026,7 @@ public class OpenIabHelper {
             Logger.e("getOpenAppstore() verification is required but publicKey is not provided: ", name);
         } else {
             final OpenAppstore openAppstore =
-                    new OpenAppstore(context, appstoreName, openAppstoreService, billingIntent, publicKey, serviceConnection);
+                    new OpenAppstore(serviceConnectionPool.wrap(context), openAppstoreService, description, publicKey, serviceConnection);
             openAppstore.componentName = name;
             Logger.d("getOpenAppstore() returns ", openAppstore.getAppstoreName());
             return openAppstore;
@@ -758,6 +1035,67 @@ public class OpenIabHelper {
         return null;
     }
 
+    /**
+     * Connection to an Open Store service that gives up if the service isn't connected
+     * within {@link Options#getDiscoveryTimeout()}.
+     */
+    private abstract class TimedServiceConnection implements ServiceConnection, Runnable {
+
+        private volatile boolean finished;
+
+        private long bindStart;
+
+        @Nullable
+        private String packageName;
+
+        /**
+         * @return true if the service is being bound, false otherwise.
+         */
+        boolean bind(@NotNull final Intent intent) {
+            bindStart = SetupTrace.now();
+            packageName = intent.getComponent() == null ? intent.getPackage() : intent.getComponent().getPackageName();
+            if (!context.bindService(intent, this, Context.BIND_AUTO_CREATE)) {
+                return false;
+            }
+            handler.postDelayed(this, getPhaseTimeout(options.getDiscoveryTimeout()));
+            return true;
+        }
+
+        @Override
+        public final void onServiceConnected(final ComponentName name, final IBinder service) {
+            if (finished) {
+                Logger.d("onServiceConnected() connection timed out, ignoring: ", name);
+                return;
+            }
+            finished = true;
+            handler.removeCallbacks(this);
+            tracePhase(SetupTrace.PHASE_OPEN_STORE_BIND, packageName, bindStart, "connected");
+            onConnected(name, service);
+        }
+
+        @Override
+        public void onServiceDisconnected(final ComponentName name) {
+        }
+
+        /**
+         * Connection timeout.
+         */
+        @Override
+        public final void run() {
+            if (finished) {
+                return;
+            }
+            finished = true;
+            context.unbindService(this);
+            tracePhase(SetupTrace.PHASE_OPEN_STORE_BIND, packageName, bindStart, "timeout");
+            onTimeout();
+        }
+
+        protected abstract void onConnected(ComponentName name, IBinder service);
+
+        protected abstract void onTimeout();
+    }
+
     @NotNull
     private Intent getBindServiceIntent(@NotNull final ServiceInfo serviceInfo) {
         final Intent bindServiceIntent = new Intent(BIND_INTENT);
@@ -780,7 +1118,6 @@ public class OpenIabHelper {
             throw new IllegalStateException("Can't check billing. Current state: " + setupStateToString(setupState));
         }
 
-        final String packageName = context.getPackageName();
         if (appstores.isEmpty()) {
             finishSetup(listener);
             return;
@@ -791,18 +1128,13 @@ public class OpenIabHelper {
             checkStoresRunnable = new Runnable() {
                 @Override
                 public void run() {
-                    final List<Appstore> availableAppstores = new ArrayList<Appstore>();
-                    for (final Appstore appstore : appstores) {
-                        appStoreInSetup = appstore;
-                        if (appstore.isBillingAvailable(packageName) && versionOk(appstore)) {
-                            availableAppstores.add(appstore);
-                        }
-                    }
-                    Appstore checkedAppstore = checkInventory(new HashSet<Appstore>(availableAppstores));
+                    final List<Appstore> availableAppstores = probeBillingAvailability(appstores, false);
+                    Appstore checkedAppstore = checkInventory(availableAppstores);
                     final Appstore foundAppstore;
                     if (checkedAppstore == null) {
                         foundAppstore = availableAppstores.isEmpty() ? null : availableAppstores.get(0);
                     } else {
+                        traceReason(SetupTrace.REASON_INVENTORY);
                         foundAppstore = checkedAppstore;
                     }
                     final OnIabSetupFinishedListener listenerWrapper = new OnIabSetupFinishedListener() {
@@ -829,15 +1161,8 @@ public class OpenIabHelper {
             checkStoresRunnable = new Runnable() {
                 @Override
                 public void run() {
-                    Appstore checkedAppstore = null;
-                    for (final Appstore appstore : appstores) {
-                        appStoreInSetup = appstore;
-                        if (appstore.isBillingAvailable(packageName) && versionOk(appstore)) {
-                            checkedAppstore = appstore;
-                            break;
-                        }
-                    }
-                    final Appstore foundAppstore = checkedAppstore;
+                    final List<Appstore> availableAppstores = probeBillingAvailability(appstores, true);
+                    final Appstore foundAppstore = availableAppstores.isEmpty() ? null : availableAppstores.get(0);
                     final OnIabSetupFinishedListener listenerWrapper = new OnIabSetupFinishedListener() {
                         @Override
                         public void onIabSetupFinished(final IabResult result) {
@@ -848,7 +1173,7 @@ public class OpenIabHelper {
                             }
                             dispose(appstoresToDispose);
                             if (foundAppstore != null) {
-                                foundAppstore.getInAppBillingService().startSetup(listener);
+                                startBillingSetup(foundAppstore, listener);
                             } else {
                                 listener.onIabSetupFinished(result);
                             }
@@ -864,7 +1189,186 @@ public class OpenIabHelper {
             };
         }
 
-        setupExecutorService.execute(checkStoresRunnable);
+        executeSetupTask(checkStoresRunnable, listener);
+    }
+
+    /**
+     * Limits the budget of a setup phase by the time remaining for the whole setup.
+     *
+     * @param budgetMs The budget of the phase in milliseconds.
+     * @return The time available for the phase in milliseconds.
+     */
+    private long getPhaseTimeout(final long budgetMs) {
+        final SetupDeadline deadline = setupDeadline;
+        if (deadline == null || setupState != SETUP_IN_PROGRESS) {
+            return budgetMs;
+        }
+        return deadline.remaining(budgetMs);
+    }
+
+    private void reportTimedOut(@NotNull final String store) {
+        final SetupTrace trace = setupTrace;
+        if (trace != null && setupState == SETUP_IN_PROGRESS) {
+            trace.addTimedOutStore(store);
+        }
+    }
+
+    /**
+     * Records a phase of the current setup.
+     *
+     * @param start Start of the phase, see {@link SetupTrace#now()}.
+     */
+    private void tracePhase(@NotNull final String phase, @Nullable final String store,
+                            final long start, @Nullable final Object result) {
+        final SetupTrace trace = setupTrace;
+        if (trace != null && setupState == SETUP_IN_PROGRESS) {
+            trace.addPhase(phase, store, start, result);
+        }
+    }
+
+    private void traceReason(@NotNull final String reason) {
+        final SetupTrace trace = setupTrace;
+        if (trace != null && setupState == SETUP_IN_PROGRESS) {
+            trace.setReason(reason);
+        }
+    }
+
+    /**
+     * Starts the billing service of the chosen store and records the time it takes.
+     */
+    private void startBillingSetup(@NotNull final Appstore appstore,
+                                   @NotNull final OnIabSetupFinishedListener listener) {
+        final SetupTrace trace = setupTrace;
+        final long start = SetupTrace.now();
+        appstore.getInAppBillingService().startSetup(new OnIabSetupFinishedListener() {
+            @Override
+            public void onIabSetupFinished(final IabResult result) {
+                if (trace != null) {
+                    trace.addPhase(SetupTrace.PHASE_BILLING_SETUP, appstore.getAppstoreName(), start, result.isSuccess());
+                }
+                listener.onIabSetupFinished(result);
+            }
+        });
+    }
+
+    /**
+     * Checks billing availability of all stores concurrently.
+     * Must not be called from UI thread.
+     *
+     * @param appstores Stores to check, in priority order.
+     * @param firstOnly If true, only the highest priority store with available billing is looked for.
+     *                  Probes of stores with lower priority are cancelled as soon as it's found.
+     *                  Probes that didn't finish within {@link Options#getStoreCheckTimeout()} are cancelled,
+     *                  the best answer received so far is used.
+     * @return Stores with available billing, in priority order.
+     */
+    @NotNull
+    private List<Appstore> probeBillingAvailability(@NotNull final Collection<Appstore> appstores,
+                                                    final boolean firstOnly) {
+        final String packageName = context.getPackageName();
+        final List<Appstore> candidates = new ArrayList<Appstore>(appstores);
+        final int count = candidates.size();
+        final Boolean[] billingAvailable = new Boolean[count];
+        final List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>(count);
+        final Map<Future<Boolean>, Integer> futureIndexes = new HashMap<Future<Boolean>, Integer>();
+        final CompletionService<Boolean> completionService = new ExecutorCompletionService<Boolean>(getProbeExecutor());
+        final SetupDeadline phaseDeadline = new SetupDeadline(getPhaseTimeout(options.getStoreCheckTimeout()));
+        try {
+            for (int i = 0; i < count; i++) {
+                final Appstore appstore = candidates.get(i);
+                if (NAME_SAMSUNG.equals(appstore.getAppstoreName())) {
+                    // Samsung certification activity result must be delivered to this store
+                    appStoreInSetup = appstore;
+                }
+                final Future<Boolean> future = completionService.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() {
+                        final String appstoreName = appstore.getAppstoreName();
+                        final long billingAvailableStart = SetupTrace.now();
+                        final boolean billingAvailable = appstore instanceof GooglePlay
+                                // Google Play waits for its service only within the store check budget
+                                ? ((GooglePlay) appstore).isBillingAvailable(packageName, phaseDeadline.remaining())
+                                : appstore.isBillingAvailable(packageName);
+                        tracePhase(SetupTrace.PHASE_BILLING_AVAILABLE, appstoreName, billingAvailableStart, billingAvailable);
+                        if (!billingAvailable) {
+                            return false;
+                        }
+                        final long versionOkStart = SetupTrace.now();
+                        final boolean versionOk = versionOk(appstore);
+                        tracePhase(SetupTrace.PHASE_VERSION_OK, appstoreName, versionOkStart, versionOk);
+                        return versionOk;
+                    }
+                });
+                futures.add(future);
+                futureIndexes.put(future, i);
+            }
+
+            for (int answered = 0; answered < count; answered++) {
+                final Future<Boolean> future = completionService.poll(phaseDeadline.remaining(), TimeUnit.MILLISECONDS);
+                if (future == null) {
+                    // Out of time, use answers received so far
+                    TaskExecutors.cancel(futures);
+                    for (int i = 0; i < count; i++) {
+                        if (billingAvailable[i] == null) {
+                            Logger.w("probeBillingAvailability() billing check timed out for ", candidates.get(i).getAppstoreName());
+                            reportTimedOut(candidates.get(i).getAppstoreName());
+                        }
+                    }
+                    break;
+                }
+                final int index = futureIndexes.get(future);
+                billingAvailable[index] = getProbeResult(future, candidates.get(index));
+                if (!firstOnly) {
+                    continue;
+                }
+                if (billingAvailable[index]) {
+                    // Stores with lower priority can't win anymore
+                    TaskExecutors.cancel(futures.subList(index + 1, count));
+                }
+                int first = 0;
+                while (first < count && Boolean.FALSE.equals(billingAvailable[first])) {
+                    first++;
+                }
+                if (first < count && Boolean.TRUE.equals(billingAvailable[first])) {
+                    TaskExecutors.cancel(futures);
+                    break;
+                }
+            }
+        } catch (InterruptedException exception) {
+            Logger.e("probeBillingAvailability() Interrupted: ", exception);
+            Thread.currentThread().interrupt();
+        } catch (RejectedExecutionException exception) {
+            Logger.e("probeBillingAvailability() Probe executor rejected billing check: ", exception);
+        } finally {
+            TaskExecutors.cancel(futures);
+        }
+
+        final List<Appstore> availableAppstores = new ArrayList<Appstore>();
+        for (int i = 0; i < count; i++) {
+            if (Boolean.TRUE.equals(billingAvailable[i])) {
+                availableAppstores.add(candidates.get(i));
+                if (firstOnly) {
+                    break;
+                }
+            }
+        }
+        Logger.d("probeBillingAvailability() billing is available for ", availableAppstores);
+        return availableAppstores;
+    }
+
+    private boolean getProbeResult(@NotNull final Future<Boolean> future, @NotNull final Appstore appstore) {
+        try {
+            final boolean billingAvailable = future.get();
+            Logger.d("getProbeResult() ", appstore.getAppstoreName(), " billing available: ", billingAvailable);
+            return billingAvailable;
+        } catch (CancellationException exception) {
+            Logger.d("getProbeResult() probe was cancelled: ", appstore.getAppstoreName());
+        } catch (ExecutionException exception) {
+            Logger.e(exception, "getProbeResult() billing check failed for ", appstore.getAppstoreName());
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+        }
+        return false;
     }
 
     private void dispose(@NotNull final Collection<Appstore> appstores) {
@@ -877,11 +1381,7 @@ public class OpenIabHelper {
 
     private boolean versionOk(@NotNull final Appstore appstore) {
         final String packageName = context.getPackageName();
-        int versionCode = Appstore.PACKAGE_VERSION_UNDEFINED;
-        try {
-            versionCode = context.getPackageManager().getPackageInfo(packageName, 0).versionCode;
-        } catch (NameNotFoundException ignore) {
-        }
+        final int versionCode = storeRegistry.getPackageVersion(packageName);
         // TODO investigate getPackageVersion() behaviour
 //        return appstore.getPackageVersion(packageName) >= versionCode;
         return true;
@@ -917,8 +1417,10 @@ public class OpenIabHelper {
         }
         activity = null;
         appStoreInSetup = null;
-        setupExecutorService.shutdownNow();
-        setupExecutorService = null;
+        synchronized (setupTasks) {
+            TaskExecutors.cancel(setupTasks);
+            setupTasks.clear();
+        }
         if (setupState == SETUP_DISPOSED) {
             if (appstore != null) {
                 dispose(Arrays.asList(appstore));
@@ -935,6 +1437,13 @@ public class OpenIabHelper {
             }
             this.appstore = appstore;
             appStoreBillingService = appstore.getInAppBillingService();
+            final String fingerprint = setupFingerprint;
+            if (setupCache != null && fingerprint != null) {
+                final ComponentName storeComponent = appstore instanceof OpenAppstore
+                        ? ((OpenAppstore) appstore).componentName
+                        : null;
+                setupCache.put(fingerprint, appstore.getAppstoreName(), storeComponent);
+            }
         }
         Logger.dWithTimeFromUp("finishSetup() === SETUP DONE === result: ", iabResult, " Appstore: ", appstore);
         listener.onIabSetupFinished(iabResult);
@@ -951,6 +1460,30 @@ public class OpenIabHelper {
         return null;
     }
 
+    /**
+     * Returns stores that didn't answer in time during the last setup.
+     * Open Stores that didn't connect in time are reported by package name.
+     *
+     * @return The names of timed out stores.
+     * @see Options#getSetupTimeout()
+     */
+    @NotNull
+    public List<String> getTimedOutStores() {
+        final SetupTrace trace = setupTrace;
+        return trace == null ? Collections.<String>emptyList() : trace.getTimedOutStores();
+    }
+
+    /**
+     * Returns timings of the last setup, the chosen store and the reason it was chosen.
+     *
+     * @return The trace of the last setup, null if setup was never started.
+     * @see Options.Builder#setSetupTraceListener(SetupTrace.Listener)
+     */
+    @Nullable
+    public SetupTrace getSetupTrace() {
+        return setupTrace;
+    }
+
     @MagicConstant(intValues = {SETUP_DISPOSED, SETUP_IN_PROGRESS,
             SETUP_RESULT_FAILED, SETUP_RESULT_NOT_STARTED, SETUP_RESULT_SUCCESSFUL})
     public int getSetupState() {
@@ -988,62 +1521,220 @@ public class OpenIabHelper {
 
     /**
      * Discovers Open Stores.
+     * <p/>
+     * All Open Store services are bound concurrently, so the discovery takes as long as the slowest
+     * single bind, but not longer than {@link Options#getDiscoveryTimeout()}.
+     * Discovered stores are ordered according to the preferred store names, then in the order the services were resolved.
      *
      * @param listener The callback to handle the result with a list of Open Stores
      */
     public void discoverOpenStores(@NotNull final OpenStoresDiscoveredListener listener) {
         final List<ServiceInfo> serviceInfos = queryOpenStoreServices();
-        final Queue<Intent> bindServiceIntents = new LinkedList<Intent>();
+        final List<Intent> bindServiceIntents = new ArrayList<Intent>(serviceInfos.size());
         for (final ServiceInfo serviceInfo : serviceInfos) {
             bindServiceIntents.add(getBindServiceIntent(serviceInfo));
         }
 
-        discoverOpenStores(listener, bindServiceIntents, new ArrayList<Appstore>());
+        new OpenStoresDiscovery(listener, bindServiceIntents).start();
     }
 
-    private void discoverOpenStores(@NotNull final OpenStoresDiscoveredListener listener,
-                                    @NotNull final Queue<Intent> bindServiceIntents,
-                                    @NotNull final List<Appstore> appstores) {
-        while (!bindServiceIntents.isEmpty()) {
-            final Intent intent = bindServiceIntents.poll();
-            // Avoid leaking listener to annonimous ServiceConnection
-            final OpenStoresDiscoveredListener[] listeners = new OpenStoresDiscoveredListener[]{listener};
-            final ServiceConnection serviceConnection = new ServiceConnection() {
+    /**
+     * Binds to all Open Store services at once and reports the discovered stores
+     * when every bind is answered or the bind deadline has expired.
+     * Connections made after the deadline are ignored.
+     */
+    private final class OpenStoresDiscovery implements Runnable {
 
-                @Override
-                public void onServiceConnected(final ComponentName name, final IBinder service) {
-                    if (listeners[0] != null) {
-                        Appstore openAppstore = null;
-                        try {
-                            openAppstore = getOpenAppstore(name, service, this);
-                        } catch (RemoteException exception) {
-                            Logger.w("onServiceConnected() Error creating appsotre: ", exception);
-                        }
-                        if (openAppstore != null) {
-                            appstores.add(openAppstore);
-                        }
-                        discoverOpenStores(listeners[0], bindServiceIntents, appstores);
-                        listeners[0] = null;
-                    }
-                }
+        @NotNull
+        private final List<Intent> bindServiceIntents;
 
-                @Override
-                public void onServiceDisconnected(final ComponentName name) {
-                    Logger.d("onServiceDisconnected(): ", name);
-                }
-            };
+        @NotNull
+        private final ServiceConnection[] serviceConnections;
 
-            if (context.bindService(intent, serviceConnection, Context.BIND_AUTO_CREATE)) {
-                // Wait for open store service
-                return;
-            } else {
-                // TODO It seems serviceConnection still might be called in this point hopefully this will help
-                context.unbindService(serviceConnection);
-                Logger.e("discoverOpenStores() Couldn't connect to open store: " + intent);
-            }
-        }
+        // Discovered stores in the order the services were resolved
+        @NotNull
+        private final Appstore[] appstores;
 
-        listener.openStoresDiscovered(Collections.unmodifiableList(appstores));
+        @NotNull
+        private final boolean[] answered;
+
+        @NotNull
+        private final boolean[] connecting;
+
+        // Avoid leaking listener when discovery is finished
+        @Nullable
+        private OpenStoresDiscoveredListener listener;
+
+        private int unanswered;
+
+        private long bindStart;
+
+        private OpenStoresDiscovery(@NotNull final OpenStoresDiscoveredListener listener,
+                                    @NotNull final List<Intent> bindServiceIntents) {
+            this.listener = listener;
+            this.bindServiceIntents = bindServiceIntents;
+            final int count = bindServiceIntents.size();
+            serviceConnections = new ServiceConnection[count];
+            appstores = new Appstore[count];
+            answered = new boolean[count];
+            connecting = new boolean[count];
+            unanswered = count;
+        }
+
+        private void start() {
+            bindStart = SetupTrace.now();
+            if (bindServiceIntents.isEmpty()) {
+                finish();
+                return;
+            }
+            for (int i = 0; i < bindServiceIntents.size(); i++) {
+                final Intent intent = bindServiceIntents.get(i);
+                final ServiceConnection serviceConnection = createServiceConnection(i);
+                synchronized (this) {
+                    serviceConnections[i] = serviceConnection;
+                }
+                if (!context.bindService(intent, serviceConnection, Context.BIND_AUTO_CREATE)) {
+                    // TODO It seems serviceConnection still might be called in this point hopefully this will help
+                    context.unbindService(serviceConnection);
+                    Logger.e("discoverOpenStores() Couldn't connect to open store: " + intent);
+                    answer(i, null);
+                }
+            }
+            synchronized (this) {
+                if (listener != null) {
+                    handler.postDelayed(this, getPhaseTimeout(options.getDiscoveryTimeout()));
+                }
+            }
+        }
+
+        @NotNull
+        private ServiceConnection createServiceConnection(final int index) {
+            return new ServiceConnection() {
+                @Override
+                public void onServiceConnected(final ComponentName name, final IBinder service) {
+                    if (!startConnecting(index)) {
+                        Logger.d("onServiceConnected() Discovery is already finished, ignoring: ", name);
+                        return;
+                    }
+                    Appstore openAppstore = null;
+                    try {
+                        openAppstore = getOpenAppstore(name, service, this);
+                    } catch (RemoteException exception) {
+                        Logger.w("onServiceConnected() Error creating appsotre: ", exception);
+                    }
+                    if (openAppstore == null) {
+                        context.unbindService(this);
+                    }
+                    if (!answer(index, openAppstore) && openAppstore != null) {
+                        // Deadline expired while the store was being queried
+                        openAppstore.getInAppBillingService().dispose();
+                    }
+                }
+
+                @Override
+                public void onServiceDisconnected(final ComponentName name) {
+                    Logger.d("onServiceDisconnected(): ", name);
+                }
+            };
+        }
+
+        private synchronized boolean startConnecting(final int index) {
+            if (listener == null || answered[index] || connecting[index]) {
+                return false;
+            }
+            connecting[index] = true;
+            return true;
+        }
+
+        private boolean answer(final int index, @Nullable final Appstore appstore) {
+            synchronized (this) {
+                if (listener == null || answered[index]) {
+                    return false;
+                }
+                answered[index] = true;
+                appstores[index] = appstore;
+                tracePhase(SetupTrace.PHASE_OPEN_STORE_BIND,
+                        appstore == null ? getPackageName(index) : appstore.getAppstoreName(),
+                        bindStart,
+                        appstore != null);
+                if (--unanswered > 0) {
+                    return true;
+                }
+            }
+            finish();
+            return true;
+        }
+
+        @NotNull
+        private String getPackageName(final int index) {
+            return bindServiceIntents.get(index).getComponent().getPackageName();
+        }
+
+        /**
+         * Bind deadline expired.
+         */
+        @Override
+        public void run() {
+            final List<ServiceConnection> connectionsToUnbind = new ArrayList<ServiceConnection>();
+            synchronized (this) {
+                if (listener == null) {
+                    return;
+                }
+                for (int i = 0; i < answered.length; i++) {
+                    if (!answered[i] && !connecting[i]) {
+                        Logger.w("discoverOpenStores() Open store didn't connect in time: ", bindServiceIntents.get(i));
+                        connectionsToUnbind.add(serviceConnections[i]);
+                        reportTimedOut(getPackageName(i));
+                        tracePhase(SetupTrace.PHASE_OPEN_STORE_BIND, getPackageName(i), bindStart, "timeout");
+                    }
+                }
+            }
+            for (final ServiceConnection serviceConnection : connectionsToUnbind) {
+                context.unbindService(serviceConnection);
+            }
+            finish();
+        }
+
+        private void finish() {
+            final OpenStoresDiscoveredListener discoveredListener;
+            final List<Appstore> discoveredAppstores = new ArrayList<Appstore>();
+            synchronized (this) {
+                if (listener == null) {
+                    return;
+                }
+                discoveredListener = listener;
+                listener = null;
+                for (final Appstore appstore : appstores) {
+                    if (appstore != null) {
+                        discoveredAppstores.add(appstore);
+                    }
+                }
+            }
+            handler.removeCallbacks(this);
+            sortByPreferredStores(discoveredAppstores);
+            discoveredListener.openStoresDiscovered(Collections.unmodifiableList(discoveredAppstores));
+        }
+    }
+
+    /**
+     * Sorts stores according to {@link Options#getPreferredStoreNames()}, keeps order of other stores.
+     */
+    private void sortByPreferredStores(@NotNull final List<Appstore> appstores) {
+        final List<String> preferredStoreNames = new ArrayList<String>(options.getPreferredStoreNames());
+        if (preferredStoreNames.isEmpty()) {
+            return;
+        }
+        Collections.sort(appstores, new Comparator<Appstore>() {
+            @Override
+            public int compare(final Appstore lhs, final Appstore rhs) {
+                return priority(lhs) - priority(rhs);
+            }
+
+            private int priority(@NotNull final Appstore appstore) {
+                final int index = preferredStoreNames.indexOf(appstore.getAppstoreName());
+                return index == -1 ? preferredStoreNames.size() : index;
+            }
+        });
     }
 
     @NotNull
@@ -1058,14 +1749,7 @@ public class OpenIabHelper {
     private
     @NotNull
     List<ServiceInfo> queryOpenStoreServices() {
-        final Intent intentAppstoreServices = new Intent(BIND_INTENT);
-        final PackageManager packageManager = context.getPackageManager();
-        final List<ResolveInfo> resolveInfos = packageManager.queryIntentServices(intentAppstoreServices, 0);
-        final List<ServiceInfo> serviceInfos = new ArrayList<ServiceInfo>();
-        for (final ResolveInfo resolveInfo : resolveInfos) {
-            serviceInfos.add(resolveInfo.serviceInfo);
-        }
-        return Collections.unmodifiableList(serviceInfos);
+        return storeRegistry.getOpenStoreServices();
     }
 
     /**
@@ -1208,49 +1892,78 @@ public class OpenIabHelper {
     /**
      * Connects to Billing Service of each store and request list of user purchases (inventory).
      * Can be used as a factor when looking for best fitting store.
+     * <p/>
+     * All stores are checked concurrently, the whole check is bounded by {@link Options#getCheckInventoryTimeout()}
+     * and the remaining setup time.
+     * Stores that didn't answer in time are considered to have no purchases.
      *
-     * @param availableStores - list of stores to check
-     * @return first found store with not empty inventory, null otherwise.
+     * @param availableStores - list of stores to check, in priority order
+     * @return the highest priority store with not empty inventory, null otherwise.
      */
     private
     @Nullable
-    Appstore checkInventory(@NotNull final Set<Appstore> availableStores) {
+    Appstore checkInventory(@NotNull final List<Appstore> availableStores) {
         if (Utils.uiThread()) {
             throw new IllegalStateException("Must not be called from UI thread");
         }
+        if (availableStores.isEmpty()) {
+            return null;
+        }
 
-        final Semaphore inventorySemaphore = new Semaphore(0);
-
-        final Appstore[] inventoryAppstore = new Appstore[1];
+        final SetupDeadline phaseDeadline = new SetupDeadline(getPhaseTimeout(options.getCheckInventoryTimeout()));
+        final int count = availableStores.size();
+        final CountDownLatch[] inventoryLatches = new CountDownLatch[count];
+        final boolean[] hasPurchases = new boolean[count];
+        final AtomicBoolean finished = new AtomicBoolean();
+        final List<Future<?>> inventoryFutures = Collections.synchronizedList(new ArrayList<Future<?>>());
 
-        for (final Appstore appstore : availableStores) {
+        for (int i = 0; i < count; i++) {
+            final int index = i;
+            final Appstore appstore = availableStores.get(i);
             final AppstoreInAppBillingService billingService = appstore.getInAppBillingService();
+            final CountDownLatch inventoryLatch = new CountDownLatch(1);
+            inventoryLatches[i] = inventoryLatch;
+            final long inventoryProbeStart = SetupTrace.now();
+            // queryInventory() is a blocking call and must be call from background
+            final Runnable checkInventoryRunnable = new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        final Inventory inventory = billingService.queryInventory(false, null, null);
+                        tracePhase(SetupTrace.PHASE_INVENTORY_PROBE, appstore.getAppstoreName(), inventoryProbeStart,
+                                inventory == null ? 0 : inventory.getAllPurchases().size());
+                        if (inventory != null && !inventory.getAllPurchases().isEmpty()) {
+                            hasPurchases[index] = true;
+                            Logger.dWithTimeFromUp("inventoryCheck() in ",
+                                    appstore.getAppstoreName(), " found: ",
+                                    inventory.getAllPurchases().size(), " purchases");
+                        }
+                    } catch (IabException exception) {
+                        tracePhase(SetupTrace.PHASE_INVENTORY_PROBE, appstore.getAppstoreName(), inventoryProbeStart, exception.getResult());
+                        Logger.e("inventoryCheck() failed for ", appstore.getAppstoreName() + " : ", exception);
+                    }
+                    inventoryLatch.countDown();
+                }
+            };
             final OnIabSetupFinishedListener listener = new OnIabSetupFinishedListener() {
                 @Override
                 public void onIabSetupFinished(@NotNull final IabResult result) {
                     if (!result.isSuccess()) {
-                        inventorySemaphore.release();
+                        tracePhase(SetupTrace.PHASE_INVENTORY_PROBE, appstore.getAppstoreName(), inventoryProbeStart, result);
+                        inventoryLatch.countDown();
                         return;
                     }
-                    // queryInventory() is a blocking call and must be call from background
-                    final Runnable checkInventoryRunnable = new Runnable() {
-                        @Override
-                        public void run() {
-                            try {
-                                final Inventory inventory = billingService.queryInventory(false, null, null);
-                                if (inventory != null && !inventory.getAllPurchases().isEmpty()) {
-                                    inventoryAppstore[0] = appstore;
-                                    Logger.dWithTimeFromUp("inventoryCheck() in ",
-                                            appstore.getAppstoreName(), " found: ",
-                                            inventory.getAllPurchases().size(), " purchases");
-                                }
-                            } catch (IabException exception) {
-                                Logger.e("inventoryCheck() failed for ", appstore.getAppstoreName() + " : ", exception);
-                            }
-                            inventorySemaphore.release();
-                        }
-                    };
-                    inventoryExecutor.execute(checkInventoryRunnable);
+                    if (finished.get()) {
+                        Logger.d("inventoryCheck() already finished, skipped: ", appstore.getAppstoreName());
+                        inventoryLatch.countDown();
+                        return;
+                    }
+                    try {
+                        inventoryFutures.add(getProbeExecutor().submit(checkInventoryRunnable));
+                    } catch (RejectedExecutionException exception) {
+                        Logger.e("inventoryCheck() probe executor rejected inventory check: ", appstore.getAppstoreName());
+                        inventoryLatch.countDown();
+                    }
                 }
             };
             // startSetup() must be called from the UI thread
@@ -1260,15 +1973,23 @@ public class OpenIabHelper {
                     billingService.startSetup(listener);
                 }
             });
+        }
 
-            try {
-                inventorySemaphore.acquire();
-            } catch (InterruptedException exception) {
-                Logger.e("checkInventory() Error during inventory check: ", exception);
-                return null;
+        try {
+            for (int i = 0; i < count; i++) {
+                if (!inventoryLatches[i].await(phaseDeadline.remaining(), TimeUnit.MILLISECONDS)) {
+                    Logger.w("checkInventory() timed out for ", availableStores.get(i).getAppstoreName());
+                    reportTimedOut(availableStores.get(i).getAppstoreName());
+                } else if (hasPurchases[i]) {
+                    return availableStores.get(i);
+                }
             }
-            if (inventoryAppstore[0] != null) {
-                return inventoryAppstore[0];
+        } catch (InterruptedException exception) {
+            Logger.e("checkInventory() Error during inventory check: ", exception);
+        } finally {
+            finished.set(true);
+            synchronized (inventoryFutures) {
+                TaskExecutors.cancel(inventoryFutures);
             }
         }
 
@@ -1284,6 +2005,16 @@ public class OpenIabHelper {
         appStoreBillingService = null;
         activity = null;
         setupState = SETUP_DISPOSED;
+        invalidateInventory();
+        if (ownsExecutor) {
+            executor.shutdownNow();
+        }
+        synchronized (this) {
+            if (probeExecutor != null) {
+                probeExecutor.shutdownNow();
+                probeExecutor = null;
+            }
+        }
     }
 
     public boolean subscriptionsSupported() {
@@ -1314,13 +2045,23 @@ public class OpenIabHelper {
     }
 
     public void launchPurchaseFlow(Activity act, @NotNull String sku, String itemType, int requestCode,
-                                   IabHelper.OnIabPurchaseFinishedListener listener, String extraData) {
+                                   final IabHelper.OnIabPurchaseFinishedListener listener, String extraData) {
         checkSetupDone("launchPurchaseFlow");
+        // The purchase changes the inventory
+        final IabHelper.OnIabPurchaseFinishedListener purchaseListener = new IabHelper.OnIabPurchaseFinishedListener() {
+            @Override
+            public void onIabPurchaseFinished(final IabResult result, final Purchase info) {
+                invalidateInventory();
+                if (listener != null) {
+                    listener.onIabPurchaseFinished(result, info);
+                }
+            }
+        };
         appStoreBillingService.launchPurchaseFlow(act,
                 SkuManager.getInstance().getStoreSku(appstore.getAppstoreName(), sku),
                 itemType,
                 requestCode,
-                listener,
+                purchaseListener,
                 extraData);
     }
 
@@ -1351,6 +2092,10 @@ public class OpenIabHelper {
      * Queries the inventory. This will query all owned items from the server, as well as
      * information on additional skus, if specified. This method may block or take long to execute.
      * Do not call from the UI thread. For that, use the non-blocking version {@link #queryInventoryAsync(boolean, java.util.List, java.util.List, org.onepf.oms.appstore.googleUtils.IabHelper.QueryInventoryFinishedListener)}.
+     * <p/>
+     * If {@link Options#getInventoryCacheTtl()} is set, a cached inventory is returned while it's fresh.
+     * See {@link Options.Builder#setInventoryCacheStaleWhileRevalidate(boolean)} for expired inventories.
+     * Concurrent queries share one store request if its inventory answers all of them.
      *
      * @param querySkuDetails if true, SKU details (price, description, etc) will be queried as well
      *                        as purchase information.
@@ -1368,6 +2113,89 @@ public class OpenIabHelper {
         if (Utils.uiThread()) {
             throw new IllegalStateException("Must not be called from the UI thread");
         }
+        final InventoryCache.Query query = new InventoryCache.Query(querySkuDetails, moreItemSkus, moreSubsSkus);
+        final InventoryCache inventoryCache = this.inventoryCache;
+        if (inventoryCache != null && setupState == SETUP_RESULT_SUCCESSFUL) {
+            final Inventory cachedInventory = inventoryCache.get(query, options.isInventoryCacheStaleWhileRevalidate());
+            if (cachedInventory != null) {
+                if (inventoryCache.isStale(query)) {
+                    refreshInventoryCache(query);
+                }
+                Logger.d("queryInventory() cached inventory: ", query);
+                return cachedInventory;
+            }
+        }
+        return inventoryQueryCoalescer.query(query);
+    }
+
+    /**
+     * Returns the last inventory saved on disk, without waiting for the setup.
+     * Can be called from any thread, the first call reads the file.
+     * <p/>
+     * Contains only purchases whose signatures were verified with the store keys from {@link Options#getStoreKeys()},
+     * the store can be different from the one chosen by the setup.
+     * The snapshot is replaced every time the store returns the inventory.
+     *
+     * @return The last inventory, null if there is none or the snapshot is disabled.
+     * @see Options.Builder#setInventorySnapshotEnabled(boolean)
+     */
+    @Nullable
+    public Inventory getInventorySnapshot() {
+        if (inventorySnapshot == null) {
+            return null;
+        }
+        if (verifiedPurchaseStore != null) {
+            verifiedPurchaseStore.restore();
+        }
+        return inventorySnapshot.get();
+    }
+
+    /**
+     * Drops cached inventories and prevents new queries from joining store requests started before.
+     */
+    private void invalidateInventory() {
+        inventoryQueryCoalescer.invalidate();
+        if (inventoryCache != null) {
+            inventoryCache.invalidate();
+        }
+    }
+
+    /**
+     * Refreshes the expired inventory of the cache in background.
+     * Does nothing if the query is already being refreshed.
+     */
+    private void refreshInventoryCache(@NotNull final InventoryCache.Query query) {
+        if (!refreshingQueries.add(query)) {
+            return;
+        }
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        // The loader stores the result in the cache
+                        inventoryQueryCoalescer.query(query);
+                    } catch (IabException exception) {
+                        Logger.e("refreshInventoryCache() Error : ", exception);
+                    } finally {
+                        refreshingQueries.remove(query);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException exception) {
+            refreshingQueries.remove(query);
+            Logger.e("refreshInventoryCache() executor rejected refresh: ", exception);
+        }
+    }
+
+    /**
+     * Queries the inventory from the store, bypassing the cache and the coalescer.
+     */
+    @Nullable
+    private Inventory queryStoreInventory(final boolean querySkuDetails,
+                                          @Nullable final List<String> moreItemSkus,
+                                          @Nullable final List<String> moreSubsSkus)
+            throws IabException {
         final Appstore appstore = this.appstore;
         final AppstoreInAppBillingService appStoreBillingService = this.appStoreBillingService;
         if (setupState != SETUP_RESULT_SUCCESSFUL
@@ -1396,7 +2224,17 @@ public class OpenIabHelper {
         } else {
             moreSubsStoreSkus = null;
         }
-        return appStoreBillingService.queryInventory(querySkuDetails, moreItemStoreSkus, moreSubsStoreSkus);
+        if (verifiedPurchaseStore != null) {
+            verifiedPurchaseStore.restore();
+        }
+        final Inventory inventory = appStoreBillingService.queryInventory(querySkuDetails, moreItemStoreSkus, moreSubsStoreSkus);
+        if (inventorySnapshot != null && inventory != null) {
+            inventorySnapshot.reconcile(appstore.getAppstoreName(), inventory);
+        }
+        if (verifiedPurchaseStore != null) {
+            verifiedPurchaseStore.save();
+        }
+        return inventory;
     }
 
     /**
@@ -1443,29 +2281,38 @@ public class OpenIabHelper {
         if (listener == null) {
             throw new IllegalArgumentException("Inventory listener must be not null");
         }
-        new Thread(new Runnable() {
-            public void run() {
-                IabResult result;
-                Inventory inv = null;
-                try {
-                    inv = queryInventory(querySkuDetails, moreItemSkus, moreSubsSkus);
-                    result = new IabResult(BILLING_RESPONSE_RESULT_OK, "Inventory refresh successful.");
-                } catch (IabException exception) {
-                    result = exception.getResult();
-                    Logger.e("queryInventoryAsync() Error : ", exception);
+        try {
+            executor.execute(new Runnable() {
+                public void run() {
+                    IabResult result;
+                    Inventory inv = null;
+                    try {
+                        inv = queryInventory(querySkuDetails, moreItemSkus, moreSubsSkus);
+                        result = new IabResult(BILLING_RESPONSE_RESULT_OK, "Inventory refresh successful.");
+                    } catch (IabException exception) {
+                        result = exception.getResult();
+                        Logger.e("queryInventoryAsync() Error : ", exception);
+                    }
+                    notifyQueryInventoryFinished(listener, result, inv);
                 }
+            });
+        } catch (RejectedExecutionException exception) {
+            Logger.e("queryInventoryAsync() executor rejected query: ", exception);
+            notifyQueryInventoryFinished(listener,
+                    new IabResult(BILLING_RESPONSE_RESULT_ERROR, "Inventory query rejected by executor."), null);
+        }
+    }
 
-                final IabResult result_f = result;
-                final Inventory inv_f = inv;
-                handler.post(new Runnable() {
-                    public void run() {
-                        if (setupState == SETUP_RESULT_SUCCESSFUL) {
-                            listener.onQueryInventoryFinished(result_f, inv_f);
-                        }
-                    }
-                });
+    private void notifyQueryInventoryFinished(@NotNull final IabHelper.QueryInventoryFinishedListener listener,
+                                              @NotNull final IabResult result,
+                                              @Nullable final Inventory inventory) {
+        callbackExecutor.execute(new Runnable() {
+            public void run() {
+                if (setupState == SETUP_RESULT_SUCCESSFUL) {
+                    listener.onQueryInventoryFinished(result, inventory);
+                }
             }
-        }).start();
+        });
     }
 
     public void consume(@NotNull Purchase purchase) throws IabException {
@@ -1478,7 +2325,14 @@ public class OpenIabHelper {
         }
         Purchase purchaseStoreSku = (Purchase) purchase.clone(); // TODO: use Purchase.getStoreSku()
         purchaseStoreSku.setSku(SkuManager.getInstance().getStoreSku(appstore.getAppstoreName(), purchase.getSku()));
-        appStoreBillingService.consume(purchaseStoreSku);
+        try {
+            appStoreBillingService.consume(purchaseStoreSku);
+            if (inventorySnapshot != null) {
+                inventorySnapshot.erasePurchase(purchase.getSku());
+            }
+        } finally {
+            invalidateInventory();
+        }
     }
 
     public void consumeAsync(@NotNull final Purchase purchase,
@@ -1502,39 +2356,55 @@ public class OpenIabHelper {
         if (purchases.isEmpty()) {
             throw new IllegalArgumentException("Nothing to consume.");
         }
-        new Thread(new Runnable() {
-            public void run() {
-                final List<IabResult> results = new ArrayList<IabResult>();
-                for (final Purchase purchase : purchases) {
-                    try {
-                        consume(purchase);
-                        results.add(new IabResult(BILLING_RESPONSE_RESULT_OK, "Successful consume of sku " + purchase.getSku()));
-                    } catch (IabException exception) {
-                        results.add(exception.getResult());
-                        Logger.e("consumeAsyncInternal() Error : ", exception);
+        try {
+            executor.execute(new Runnable() {
+                public void run() {
+                    final List<IabResult> results = new ArrayList<IabResult>();
+                    for (final Purchase purchase : purchases) {
+                        try {
+                            consume(purchase);
+                            results.add(new IabResult(BILLING_RESPONSE_RESULT_OK, "Successful consume of sku " + purchase.getSku()));
+                        } catch (IabException exception) {
+                            results.add(exception.getResult());
+                            Logger.e("consumeAsyncInternal() Error : ", exception);
+                        }
                     }
+                    notifyConsumeFinished(purchases, results, consumeListener, consumeMultiListener);
                 }
+            });
+        } catch (RejectedExecutionException exception) {
+            Logger.e("consumeAsyncInternal() executor rejected consume: ", exception);
+            final List<IabResult> results = new ArrayList<IabResult>();
+            for (final Purchase purchase : purchases) {
+                results.add(new IabResult(BILLING_RESPONSE_RESULT_ERROR,
+                        "Consume of sku " + purchase.getSku() + " rejected by executor."));
+            }
+            notifyConsumeFinished(purchases, results, consumeListener, consumeMultiListener);
+        }
+    }
 
-                if (consumeListener != null) {
-                    handler.post(new Runnable() {
-                        public void run() {
-                            if (setupState == SETUP_RESULT_SUCCESSFUL) {
-                                consumeListener.onConsumeFinished(purchases.get(0), results.get(0));
-                            }
-                        }
-                    });
+    private void notifyConsumeFinished(@NotNull final List<Purchase> purchases,
+                                       @NotNull final List<IabResult> results,
+                                       @Nullable final IabHelper.OnConsumeFinishedListener consumeListener,
+                                       @Nullable final IabHelper.OnConsumeMultiFinishedListener consumeMultiListener) {
+        if (consumeListener != null) {
+            callbackExecutor.execute(new Runnable() {
+                public void run() {
+                    if (setupState == SETUP_RESULT_SUCCESSFUL) {
+                        consumeListener.onConsumeFinished(purchases.get(0), results.get(0));
+                    }
                 }
-                if (consumeMultiListener != null) {
-                    handler.post(new Runnable() {
-                        public void run() {
-                            if (setupState == SETUP_RESULT_SUCCESSFUL) {
-                                consumeMultiListener.onConsumeMultiFinished(purchases, results);
-                            }
-                        }
-                    });
+            });
+        }
+        if (consumeMultiListener != null) {
+            callbackExecutor.execute(new Runnable() {
+                public void run() {
+                    if (setupState == SETUP_RESULT_SUCCESSFUL) {
+                        consumeMultiListener.onConsumeMultiFinished(purchases, results);
+                    }
                 }
-            }
-        }).start();
+            });
+        }
     }
 
     // Checks that setup was done; if not, throws an exception.
@@ -1660,6 +2530,26 @@ public class OpenIabHelper {
          */
         public static final int SEARCH_STRATEGY_INSTALLER_THEN_BEST_FIT = 2;
 
+        /**
+         * Default timeout for the inventory check during the setup.
+         *
+         * @see #getCheckInventoryTimeout()
+         */
+        public static final int DEFAULT_CHECK_INVENTORY_TIMEOUT_MS = 10000;
+
+        /**
+         * Default timeout for an Open Store service to connect during the setup.
+         *
+         * @see #getDiscoveryTimeout()
+         */
+        public static final int DEFAULT_DISCOVERY_TIMEOUT_MS = 5000;
+
+        /**
+         * Default timeout for the billing availability check of stores during the setup.
+         *
+         * @see #getStoreCheckTimeout()
+         */
+        public static final int DEFAULT_STORE_CHECK_TIMEOUT_MS = 20000;
 
         /**
          * @deprecated Use {@link #getAvailableStores()}
@@ -1676,9 +2566,10 @@ public class OpenIabHelper {
         public final Set<String> preferredStoreNames;
 
         /**
-         * @deprecated No longer used.
+         * @deprecated Use {@link #getDiscoveryTimeout()}
+         * Will be private since 1.0.
          */
-        public final int discoveryTimeoutMs = 0;
+        public final int discoveryTimeoutMs;
 
         /**
          * @deprecated Use {@link #isCheckInventory()}
@@ -1687,9 +2578,10 @@ public class OpenIabHelper {
         public final boolean checkInventory;
 
         /**
-         * @deprecated No longer used.
+         * @deprecated Use {@link #getCheckInventoryTimeout()}
+         * Will be private since 1.0.
          */
-        public final int checkInventoryTimeoutMs = 0;
+        public final int checkInventoryTimeoutMs;
 
         /**
          * @deprecated Use {@link #getVerifyMode()}
@@ -1713,6 +2605,35 @@ public class OpenIabHelper {
          */
         public final int samsungCertificationRequestCode;
 
+        private final boolean setupCacheEnabled;
+
+        private final int setupTimeoutMs;
+
+        private final int storeCheckTimeoutMs;
+
+        @Nullable
+        private final SetupTrace.Listener setupTraceListener;
+
+        @Nullable
+        private final ExecutorService executor;
+
+        @Nullable
+        private final Executor callbackExecutor;
+
+        private final int inventoryCacheTtlMs;
+
+        private final boolean inventoryCacheStaleWhileRevalidate;
+
+        private final boolean inventorySnapshotEnabled;
+
+        private final boolean samsungLightProbeEnabled;
+
+        private final boolean verifiedPurchasesPersisted;
+
+        private final boolean samsungInboxPersisted;
+
+        private final boolean amazonReceiptsPersisted;
+
         /**
          * @deprecated Use {@link Builder} instead.
          */
@@ -1725,6 +2646,21 @@ public class OpenIabHelper {
             this.verifyMode = VERIFY_SKIP;
             this.samsungCertificationRequestCode = SamsungAppsBillingService.REQUEST_CODE_IS_ACCOUNT_CERTIFICATION;
             this.storeSearchStrategy = SEARCH_STRATEGY_INSTALLER;
+            this.checkInventoryTimeoutMs = DEFAULT_CHECK_INVENTORY_TIMEOUT_MS;
+            this.setupCacheEnabled = false;
+            this.discoveryTimeoutMs = DEFAULT_DISCOVERY_TIMEOUT_MS;
+            this.setupTimeoutMs = 0;
+            this.storeCheckTimeoutMs = DEFAULT_STORE_CHECK_TIMEOUT_MS;
+            this.setupTraceListener = null;
+            this.executor = null;
+            this.callbackExecutor = null;
+            this.inventoryCacheTtlMs = 0;
+            this.inventoryCacheStaleWhileRevalidate = false;
+            this.inventorySnapshotEnabled = false;
+            this.samsungLightProbeEnabled = false;
+            this.verifiedPurchasesPersisted = false;
+            this.samsungInboxPersisted = false;
+            this.amazonReceiptsPersisted = false;
         }
 
         private Options(final Set<Appstore> availableStores,
@@ -1734,8 +2670,38 @@ public class OpenIabHelper {
                         final @MagicConstant(intValues = {VERIFY_EVERYTHING, VERIFY_ONLY_KNOWN, VERIFY_SKIP}) int verifyMode,
                         final Set<String> preferredStoreNames,
                         final int samsungCertificationRequestCode,
-                        final int storeSearchStrategy) {
+                        final int storeSearchStrategy,
+                        final int checkInventoryTimeoutMs,
+                        final boolean setupCacheEnabled,
+                        final int discoveryTimeoutMs,
+                        final int setupTimeoutMs,
+                        final int storeCheckTimeoutMs,
+                        @Nullable final SetupTrace.Listener setupTraceListener,
+                        @Nullable final ExecutorService executor,
+                        @Nullable final Executor callbackExecutor,
+                        final int inventoryCacheTtlMs,
+                        final boolean inventoryCacheStaleWhileRevalidate,
+                        final boolean inventorySnapshotEnabled,
+                        final boolean samsungLightProbeEnabled,
+                        final boolean verifiedPurchasesPersisted,
+                        final boolean samsungInboxPersisted,
+                        final boolean amazonReceiptsPersisted) {
             this.checkInventory = checkInventory;
+            this.inventorySnapshotEnabled = inventorySnapshotEnabled;
+            this.samsungLightProbeEnabled = samsungLightProbeEnabled;
+            this.verifiedPurchasesPersisted = verifiedPurchasesPersisted;
+            this.samsungInboxPersisted = samsungInboxPersisted;
+            this.amazonReceiptsPersisted = amazonReceiptsPersisted;
+            this.inventoryCacheTtlMs = inventoryCacheTtlMs;
+            this.inventoryCacheStaleWhileRevalidate = inventoryCacheStaleWhileRevalidate;
+            this.setupTraceListener = setupTraceListener;
+            this.executor = executor;
+            this.callbackExecutor = callbackExecutor;
+            this.discoveryTimeoutMs = discoveryTimeoutMs;
+            this.setupTimeoutMs = setupTimeoutMs;
+            this.storeCheckTimeoutMs = storeCheckTimeoutMs;
+            this.checkInventoryTimeoutMs = checkInventoryTimeoutMs;
+            this.setupCacheEnabled = setupCacheEnabled;
             this.availableStores = availableStores;
             this.availableStoreNames = availableStoresNames;
             this.storeKeys = storeKeys;
@@ -1782,19 +2748,129 @@ public class OpenIabHelper {
         }
 
         /**
-         * @deprecated No longer used.
+         * @return return {@link org.onepf.oms.OpenIabHelper.Options.Builder#setupCacheEnabled} value
+         */
+        public boolean isSetupCacheEnabled() {
+            return setupCacheEnabled;
+        }
+
+        /**
+         * Returns the timeout for the inventory check during the setup.
+         *
+         * @return The timeout in milliseconds.
+         * @see Builder#setCheckInventoryTimeout(int)
          */
-        @Deprecated
         public long getCheckInventoryTimeout() {
-            return 0;
+            return checkInventoryTimeoutMs;
         }
 
         /**
-         * @deprecated No longer used.
+         * Returns the timeout for an Open Store service to connect during the setup.
+         *
+         * @return The timeout in milliseconds.
+         * @see Builder#setDiscoveryTimeout(int)
          */
-        @Deprecated
         public long getDiscoveryTimeout() {
-            return 0;
+            return discoveryTimeoutMs;
+        }
+
+        /**
+         * Returns the time budget of the whole setup process.
+         *
+         * @return The timeout in milliseconds, 0 if the setup isn't limited as a whole.
+         * @see Builder#setSetupTimeout(int)
+         */
+        public long getSetupTimeout() {
+            return setupTimeoutMs;
+        }
+
+        /**
+         * Returns the timeout for the billing availability check of stores during the setup.
+         *
+         * @return The timeout in milliseconds.
+         * @see Builder#setStoreCheckTimeout(int)
+         */
+        public long getStoreCheckTimeout() {
+            return storeCheckTimeoutMs;
+        }
+
+        /**
+         * @return The listener that receives the trace of every setup, null if not set.
+         * @see Builder#setSetupTraceListener(SetupTrace.Listener)
+         */
+        @Nullable
+        public SetupTrace.Listener getSetupTraceListener() {
+            return setupTraceListener;
+        }
+
+        /**
+         * @return The executor for background work, null if each helper creates its own.
+         * @see Builder#setExecutor(ExecutorService)
+         */
+        @Nullable
+        public ExecutorService getExecutor() {
+            return executor;
+        }
+
+        /**
+         * @return The executor that delivers results of async operations, null if they are delivered on the UI thread.
+         * @see Builder#setCallbackExecutor(Executor)
+         */
+        @Nullable
+        public Executor getCallbackExecutor() {
+            return callbackExecutor;
+        }
+
+        /**
+         * Returns the time inventories returned by {@link OpenIabHelper#queryInventory(boolean, List, List)} are cached.
+         *
+         * @return The TTL in milliseconds, 0 if inventories aren't cached.
+         * @see Builder#setInventoryCacheTtl(int)
+         */
+        public long getInventoryCacheTtl() {
+            return inventoryCacheTtlMs;
+        }
+
+        /**
+         * @return return {@link org.onepf.oms.OpenIabHelper.Options.Builder#setInventoryCacheStaleWhileRevalidate(boolean)} value
+         */
+        public boolean isInventoryCacheStaleWhileRevalidate() {
+            return inventoryCacheStaleWhileRevalidate;
+        }
+
+        /**
+         * @return return {@link org.onepf.oms.OpenIabHelper.Options.Builder#setInventorySnapshotEnabled(boolean)} value
+         */
+        public boolean isInventorySnapshotEnabled() {
+            return inventorySnapshotEnabled;
+        }
+
+        /**
+         * @return return {@link org.onepf.oms.OpenIabHelper.Options.Builder#setSamsungLightProbeEnabled(boolean)} value
+         */
+        public boolean isSamsungLightProbeEnabled() {
+            return samsungLightProbeEnabled;
+        }
+
+        /**
+         * @return return {@link org.onepf.oms.OpenIabHelper.Options.Builder#setVerifiedPurchasesPersisted(boolean)} value
+         */
+        public boolean isVerifiedPurchasesPersisted() {
+            return verifiedPurchasesPersisted;
+        }
+
+        /**
+         * @return return {@link org.onepf.oms.OpenIabHelper.Options.Builder#setSamsungInboxPersisted(boolean)} value
+         */
+        public boolean isSamsungInboxPersisted() {
+            return samsungInboxPersisted;
+        }
+
+        /**
+         * @return return {@link org.onepf.oms.OpenIabHelper.Options.Builder#setAmazonReceiptsPersisted(boolean)} value
+         */
+        public boolean isAmazonReceiptsPersisted() {
+            return amazonReceiptsPersisted;
         }
 
         /**
@@ -1865,6 +2941,24 @@ public class OpenIabHelper {
             private final Set<String> availableStoresNames = new LinkedHashSet<String>();
             private final Map<String, String> storeKeys = new HashMap<String, String>();
             private boolean checkInventory = false;
+            private int checkInventoryTimeoutMs = DEFAULT_CHECK_INVENTORY_TIMEOUT_MS;
+            private boolean setupCacheEnabled = false;
+            private int discoveryTimeoutMs = DEFAULT_DISCOVERY_TIMEOUT_MS;
+            private int setupTimeoutMs = 0;
+            private int storeCheckTimeoutMs = DEFAULT_STORE_CHECK_TIMEOUT_MS;
+            @Nullable
+            private SetupTrace.Listener setupTraceListener;
+            @Nullable
+            private ExecutorService executor;
+            @Nullable
+            private Executor callbackExecutor;
+            private int inventoryCacheTtlMs = 0;
+            private boolean inventoryCacheStaleWhileRevalidate = false;
+            private boolean inventorySnapshotEnabled = false;
+            private boolean samsungLightProbeEnabled = false;
+            private boolean verifiedPurchasesPersisted = false;
+            private boolean samsungInboxPersisted = false;
+            private boolean amazonReceiptsPersisted = false;
             private int samsungCertificationRequestCode
                     = SamsungAppsBillingService.REQUEST_CODE_IS_ACCOUNT_CERTIFICATION;
 
@@ -1938,25 +3032,190 @@ public class OpenIabHelper {
             }
 
             /**
-             * Sets the discovery timeout for the setup process.
+             * Sets the option to persist the store chosen during the setup, false by default.
+             * If true, the next setup connects directly to the previously chosen store
+             * while the package installer, installed stores and options stay the same.
+             * Billing availability of the cached store isn't checked before setup finishes.
+             * If its billing setup fails, the decision is dropped and the next setup selects the store again.
+             *
+             * @param setupCacheEnabled Persist the setup decision.
+             * @see Options#isSetupCacheEnabled()
+             */
+            @NotNull
+            public Builder setSetupCacheEnabled(final boolean setupCacheEnabled) {
+                this.setupCacheEnabled = setupCacheEnabled;
+                return this;
+            }
+
+            /**
+             * Sets the discovery timeout for the setup process, {@link Options#DEFAULT_DISCOVERY_TIMEOUT_MS} by default.
+             * Open Stores that didn't connect in time are skipped.
              *
-             * @deprecated No longer used.
+             * @param discoveryTimeout The ms timeout for an Open Store service to connect. Must be positive value.
+             * @throws java.lang.IllegalArgumentException if the timeout is not a positive integer.
+             * @see Options#getDiscoveryTimeout()
              */
             @NotNull
-            @Deprecated
             public Builder setDiscoveryTimeout(final int discoveryTimeout) {
+                if (discoveryTimeout <= 0) {
+                    throw new IllegalArgumentException("Discovery timeout must be a positive value: " + discoveryTimeout);
+                }
+                this.discoveryTimeoutMs = discoveryTimeout;
                 return this;
             }
 
             /**
-             * Sets the check inventory timeout for the setup process.
+             * Sets the time budget of the whole setup process, not limited by default.
+             * Every setup phase is limited by its own timeout and by the time remaining for the setup.
+             * When time runs out, the best store found so far is chosen.
              *
-             * @param checkInventoryTimeout The ms timeout for inventory checking.
-             * @deprecated No longer used.
+             * @param setupTimeout The ms timeout for the setup. Must be positive value.
+             * @throws java.lang.IllegalArgumentException if the timeout is not a positive integer.
+             * @see Options#getSetupTimeout()
+             */
+            @NotNull
+            public Builder setSetupTimeout(final int setupTimeout) {
+                if (setupTimeout <= 0) {
+                    throw new IllegalArgumentException("Setup timeout must be a positive value: " + setupTimeout);
+                }
+                this.setupTimeoutMs = setupTimeout;
+                return this;
+            }
+
+            /**
+             * Sets the billing availability check timeout for the setup process, {@link Options#DEFAULT_STORE_CHECK_TIMEOUT_MS} by default.
+             * Stores that didn't answer in time are considered to be unavailable.
+             *
+             * @param storeCheckTimeout The ms timeout for store checks. Must be positive value.
+             * @throws java.lang.IllegalArgumentException if the timeout is not a positive integer.
+             * @see Options#getStoreCheckTimeout()
+             */
+            @NotNull
+            public Builder setStoreCheckTimeout(final int storeCheckTimeout) {
+                if (storeCheckTimeout <= 0) {
+                    throw new IllegalArgumentException("Store check timeout must be a positive value: " + storeCheckTimeout);
+                }
+                this.storeCheckTimeoutMs = storeCheckTimeout;
+                return this;
+            }
+
+            /**
+             * Sets the listener that receives timings of every setup phase, the chosen store and the reason
+             * it was chosen. The listener is called on the UI thread right before
+             * {@link IabHelper.OnIabSetupFinishedListener}.
+             *
+             * @param setupTraceListener The listener, null to remove it.
+             * @see Options#getSetupTraceListener()
+             * @see OpenIabHelper#getSetupTrace()
+             */
+            @NotNull
+            public Builder setSetupTraceListener(@Nullable final SetupTrace.Listener setupTraceListener) {
+                this.setupTraceListener = setupTraceListener;
+                return this;
+            }
+
+            /**
+             * Sets the executor for background work of {@link OpenIabHelper}: the setup task,
+             * {@link OpenIabHelper#queryInventoryAsync(IabHelper.QueryInventoryFinishedListener)} and
+             * {@link OpenIabHelper#consumeAsync(Purchase, IabHelper.OnConsumeFinishedListener)}.
+             * The executor can be shared by several helpers and isn't shut down by {@link OpenIabHelper#dispose()}.
+             * <p/>
+             * Billing checks of stores run on a private pool of the helper, so the executor may run one task at once.
+             * By default each helper creates a bounded pool, shut down in {@link OpenIabHelper#dispose()}.
+             *
+             * @param executor The executor for background work.
+             * @see Options#getExecutor()
+             */
+            @NotNull
+            public Builder setExecutor(@NotNull final ExecutorService executor) {
+                //noinspection ConstantConditions
+                if (executor == null) {
+                    throw new IllegalArgumentException("Executor must be not null.");
+                }
+                this.executor = executor;
+                return this;
+            }
+
+            /**
+             * Sets the executor that delivers results of
+             * {@link OpenIabHelper#queryInventoryAsync(IabHelper.QueryInventoryFinishedListener)} and
+             * {@link OpenIabHelper#consumeAsync(Purchase, IabHelper.OnConsumeFinishedListener)}.
+             * Results are delivered on the UI thread by default.
+             *
+             * @param callbackExecutor The executor for listeners of async operations.
+             * @see Options#getCallbackExecutor()
+             */
+            @NotNull
+            public Builder setCallbackExecutor(@NotNull final Executor callbackExecutor) {
+                //noinspection ConstantConditions
+                if (callbackExecutor == null) {
+                    throw new IllegalArgumentException("Callback executor must be not null.");
+                }
+                this.callbackExecutor = callbackExecutor;
+                return this;
+            }
+
+            /**
+             * Enables the inventory cache of {@link OpenIabHelper}, disabled by default.
+             * Inventories returned by the store are reused during the TTL.
+             * The cache is invalidated when a purchase flow finishes and after a consume.
+             *
+             * @param inventoryCacheTtl The ms time to cache inventories. Must be positive value.
+             * @throws java.lang.IllegalArgumentException if the TTL is not a positive integer.
+             * @see Options#getInventoryCacheTtl()
+             */
+            @NotNull
+            public Builder setInventoryCacheTtl(final int inventoryCacheTtl) {
+                if (inventoryCacheTtl <= 0) {
+                    throw new IllegalArgumentException("Inventory cache TTL must be a positive value: " + inventoryCacheTtl);
+                }
+                this.inventoryCacheTtlMs = inventoryCacheTtl;
+                return this;
+            }
+
+            /**
+             * Sets the option to return an expired inventory from the cache immediately
+             * and refresh it in background, false by default.
+             * Has no effect if the inventory cache is disabled.
+             *
+             * @param staleWhileRevalidate Return expired inventories while they are refreshed.
+             * @see #setInventoryCacheTtl(int)
+             * @see Options#isInventoryCacheStaleWhileRevalidate()
+             */
+            @NotNull
+            public Builder setInventoryCacheStaleWhileRevalidate(final boolean staleWhileRevalidate) {
+                this.inventoryCacheStaleWhileRevalidate = staleWhileRevalidate;
+                return this;
+            }
+
+            /**
+             * Sets the option to save the last inventory on disk, false by default.
+             * The saved inventory is available from {@link OpenIabHelper#getInventorySnapshot()} before the setup finishes.
+             * Only purchases that can be verified with keys from {@link #addStoreKeys(java.util.Map)} are saved.
+             *
+             * @param inventorySnapshotEnabled Save the last inventory on disk.
+             * @see Options#isInventorySnapshotEnabled()
+             */
+            @NotNull
+            public Builder setInventorySnapshotEnabled(final boolean inventorySnapshotEnabled) {
+                this.inventorySnapshotEnabled = inventorySnapshotEnabled;
+                return this;
+            }
+
+            /**
+             * Sets the check inventory timeout for the setup process, {@link Options#DEFAULT_CHECK_INVENTORY_TIMEOUT_MS} by default.
+             * Stores that didn't return their inventory in time are considered to have no purchases.
+             *
+             * @param checkInventoryTimeout The ms timeout for inventory checking. Must be positive value.
+             * @throws java.lang.IllegalArgumentException if the timeout is not a positive integer.
+             * @see Options#getCheckInventoryTimeout()
              */
             @NotNull
-            @Deprecated
             public Builder setCheckInventoryTimeout(final int checkInventoryTimeout) {
+                if (checkInventoryTimeout <= 0) {
+                    throw new IllegalArgumentException("Check inventory timeout must be a positive value: " + checkInventoryTimeout);
+                }
+                this.checkInventoryTimeoutMs = checkInventoryTimeout;
                 return this;
             }
 
@@ -2083,6 +3342,69 @@ public class OpenIabHelper {
                 return this;
             }
 
+            /**
+             * Sets the option to check Samsung billing availability without the account certification, false by default.
+             * Samsung Apps is considered available if its IAP service can be bound, a positive verdict is saved until
+             * the IAP package is updated. SKUs of the app aren't checked, the inventory is queried only
+             * after Samsung Apps is chosen.
+             *
+             * @param samsungLightProbeEnabled Check only the IAP service.
+             * @see Options#isSamsungLightProbeEnabled()
+             */
+            @NotNull
+            public Builder setSamsungLightProbeEnabled(final boolean samsungLightProbeEnabled) {
+                this.samsungLightProbeEnabled = samsungLightProbeEnabled;
+                return this;
+            }
+
+            /**
+             * Sets the option to keep digests of verified purchases on disk, false by default.
+             * Purchases verified before aren't verified again after the app restarts.
+             * The digests are saved in the app's private storage, enable only if it can be trusted.
+             *
+             * @param verifiedPurchasesPersisted Save verified purchases.
+             * @see Options#isVerifiedPurchasesPersisted()
+             * @see org.onepf.oms.appstore.googleUtils.Security#getVerifiedDigests()
+             */
+            @NotNull
+            public Builder setVerifiedPurchasesPersisted(final boolean verifiedPurchasesPersisted) {
+                this.verifiedPurchasesPersisted = verifiedPurchasesPersisted;
+                return this;
+            }
+
+            /**
+             * Sets the option to keep Samsung inbox items on disk, false by default.
+             * Inventory queries then request only the items purchased since the previous query.
+             * <p/>
+             * Items are kept only for the Samsung account found with {@link android.accounts.AccountManager},
+             * which needs the {@link android.Manifest.permission#GET_ACCOUNTS} permission. They are cleared
+             * when the account changes or its certification fails. The items are saved in the app's private storage,
+             * enable only if it can be trusted.
+             *
+             * @param samsungInboxPersisted Save Samsung inbox items.
+             * @see Options#isSamsungInboxPersisted()
+             */
+            @NotNull
+            public Builder setSamsungInboxPersisted(final boolean samsungInboxPersisted) {
+                this.samsungInboxPersisted = samsungInboxPersisted;
+                return this;
+            }
+
+            /**
+             * Sets the option to keep purchases built from Amazon receipts on disk, false by default.
+             * Inventory queries then request only the purchase updates since the previous query
+             * and merge them with the saved purchases, which aren't checked with Amazon again.
+             * The purchases are saved in the app's private storage, enable only if it can be trusted.
+             *
+             * @param amazonReceiptsPersisted Save Amazon purchases.
+             * @see Options#isAmazonReceiptsPersisted()
+             */
+            @NotNull
+            public Builder setAmazonReceiptsPersisted(final boolean amazonReceiptsPersisted) {
+                this.amazonReceiptsPersisted = amazonReceiptsPersisted;
+                return this;
+            }
+
             /**
              * Creates an instance of {@link Options}.
              *
@@ -2098,8 +3420,89 @@ public class OpenIabHelper {
                         verifyMode,
                         Collections.unmodifiableSet(preferredStoreNames),
                         samsungCertificationRequestCode,
-                        storeSearchStrategy);
+                        storeSearchStrategy,
+                        checkInventoryTimeoutMs,
+                        setupCacheEnabled,
+                        discoveryTimeoutMs,
+                        setupTimeoutMs,
+                        storeCheckTimeoutMs,
+                        setupTraceListener,
+                        executor,
+                        callbackExecutor,
+                        inventoryCacheTtlMs,
+                        inventoryCacheStaleWhileRevalidate,
+                        inventorySnapshotEnabled,
+                        samsungLightProbeEnabled,
+                        verifiedPurchasesPersisted,
+                        samsungInboxPersisted,
+                        amazonReceiptsPersisted);
+            }
+        }
+
+        /**
+         * Available stores are compared by their names.
+         * Executors and the setup trace listener don't affect the setup and are ignored.
+         */
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+
+            final Options options = (Options) o;
+            return checkInventory == options.checkInventory
+                    && checkInventoryTimeoutMs == options.checkInventoryTimeoutMs
+                    && discoveryTimeoutMs == options.discoveryTimeoutMs
+                    && setupTimeoutMs == options.setupTimeoutMs
+                    && storeCheckTimeoutMs == options.storeCheckTimeoutMs
+                    && verifyMode == options.verifyMode
+                    && storeSearchStrategy == options.storeSearchStrategy
+                    && samsungCertificationRequestCode == options.samsungCertificationRequestCode
+                    && setupCacheEnabled == options.setupCacheEnabled
+                    && inventoryCacheTtlMs == options.inventoryCacheTtlMs
+                    && inventoryCacheStaleWhileRevalidate == options.inventoryCacheStaleWhileRevalidate
+                    && inventorySnapshotEnabled == options.inventorySnapshotEnabled
+                    && samsungLightProbeEnabled == options.samsungLightProbeEnabled
+                    && verifiedPurchasesPersisted == options.verifiedPurchasesPersisted
+                    && samsungInboxPersisted == options.samsungInboxPersisted
+                    && amazonReceiptsPersisted == options.amazonReceiptsPersisted
+                    && getNamesOfAvailableStores().equals(options.getNamesOfAvailableStores())
+                    && availableStoreNames.equals(options.availableStoreNames)
+                    && new ArrayList<String>(preferredStoreNames).equals(new ArrayList<String>(options.preferredStoreNames))
+                    && storeKeys.equals(options.storeKeys);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = getNamesOfAvailableStores().hashCode();
+            result = 31 * result + availableStoreNames.hashCode();
+            result = 31 * result + new ArrayList<String>(preferredStoreNames).hashCode();
+            result = 31 * result + storeKeys.hashCode();
+            result = 31 * result + (checkInventory ? 1 : 0);
+            result = 31 * result + checkInventoryTimeoutMs;
+            result = 31 * result + discoveryTimeoutMs;
+            result = 31 * result + setupTimeoutMs;
+            result = 31 * result + storeCheckTimeoutMs;
+            result = 31 * result + verifyMode;
+            result = 31 * result + storeSearchStrategy;
+            result = 31 * result + samsungCertificationRequestCode;
+            result = 31 * result + (setupCacheEnabled ? 1 : 0);
+            result = 31 * result + inventoryCacheTtlMs;
+            result = 31 * result + (inventoryCacheStaleWhileRevalidate ? 1 : 0);
+            result = 31 * result + (inventorySnapshotEnabled ? 1 : 0);
+            result = 31 * result + (samsungLightProbeEnabled ? 1 : 0);
+            result = 31 * result + (verifiedPurchasesPersisted ? 1 : 0);
+            result = 31 * result + (samsungInboxPersisted ? 1 : 0);
+            result = 31 * result + (amazonReceiptsPersisted ? 1 : 0);
+            return result;
+        }
+
+        @NotNull
+        private Set<String> getNamesOfAvailableStores() {
+            final Set<String> names = new HashSet<String>();
+            for (final Appstore appstore : availableStores) {
+                names.add(appstore.getAppstoreName());
             }
+            return names;
         }
 
         @Override
@@ -2117,10 +3520,22 @@ public class OpenIabHelper {
                     .append(checkInventory)
                     .append(", checkInventoryTimeoutMs=")
                     .append(checkInventoryTimeoutMs)
+                    .append(", setupTimeoutMs=")
+                    .append(setupTimeoutMs)
+                    .append(", storeCheckTimeoutMs=")
+                    .append(storeCheckTimeoutMs)
                     .append(", verifyMode=")
                     .append(verifyMode)
                     .append(", storeSearchStrategy=")
                     .append(storeSearchStrategy)
+                    .append(", setupCacheEnabled=")
+                    .append(setupCacheEnabled)
+                    .append(", inventoryCacheTtlMs=")
+                    .append(inventoryCacheTtlMs)
+                    .append(", inventoryCacheStaleWhileRevalidate=")
+                    .append(inventoryCacheStaleWhileRevalidate)
+                    .append(", inventorySnapshotEnabled=")
+                    .append(inventorySnapshotEnabled)
                     .append(", storeKeys=[");
             final StringBuilder storeKeysBuilder = new StringBuilder();
             for (final Map.Entry<String, String> entry : storeKeys.entrySet()) {
@@ -2134,6 +3549,14 @@ public class OpenIabHelper {
             builder.append(storeKeysBuilder)
                     .append("]\n, samsungCertificationRequestCode=")
                     .append(samsungCertificationRequestCode)
+                    .append(", samsungLightProbeEnabled=")
+                    .append(samsungLightProbeEnabled)
+                    .append(", verifiedPurchasesPersisted=")
+                    .append(verifiedPurchasesPersisted)
+                    .append(", samsungInboxPersisted=")
+                    .append(samsungInboxPersisted)
+                    .append(", amazonReceiptsPersisted=")
+                    .append(amazonReceiptsPersisted)
                     .append('}');
             return builder.toString();
         }
@@ -0,0 +1,149 @@
+/*
+ * Copyright 2012-2014 One Platform Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onepf.oms;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.text.TextUtils;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.onepf.oms.util.Logger;
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Persists the store chosen during the setup together with the fingerprint of the inputs that led to it:
+ * the package installer, installed store packages with their version codes and {@link OpenIabHelper.Options}.
+ * <p/>
+ * The cached decision is valid only while the fingerprint is unchanged.
+ */
+final class SetupCache {
+
+    private static final String SHARED_PREFS_SETUP_CACHE = "onepf_shared_prefs_setup_cache";
+
+    private static final String KEY_FINGERPRINT = "fingerprint";
+    private static final String KEY_STORE_NAME = "store_name";
+    private static final String KEY_STORE_PACKAGE = "store_package";
+    private static final String KEY_STORE_CLASS = "store_class";
+
+    @NotNull
+    private final SharedPreferences sharedPreferences;
+
+    SetupCache(@NotNull final Context context) {
+        sharedPreferences = context.getSharedPreferences(SHARED_PREFS_SETUP_CACHE, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * @return The name of the cached store if it was chosen with the same fingerprint, null otherwise.
+     */
+    @Nullable
+    String getStoreName(@NotNull final String fingerprint) {
+        if (!TextUtils.equals(fingerprint, sharedPreferences.getString(KEY_FINGERPRINT, null))) {
+            return null;
+        }
+        return sharedPreferences.getString(KEY_STORE_NAME, null);
+    }
+
+    /**
+     * @return The component of the cached Open Store service, null if the cached store is not an Open Store.
+     */
+    @Nullable
+    ComponentName getStoreComponent() {
+        final String packageName = sharedPreferences.getString(KEY_STORE_PACKAGE, null);
+        final String className = sharedPreferences.getString(KEY_STORE_CLASS, null);
+        if (TextUtils.isEmpty(packageName) || TextUtils.isEmpty(className)) {
+            return null;
+        }
+        return new ComponentName(packageName, className);
+    }
+
+    void put(@NotNull final String fingerprint,
+             @NotNull final String storeName,
+             @Nullable final ComponentName storeComponent) {
+        Logger.d("SetupCache.put() store: ", storeName, ", component: ", storeComponent);
+        final SharedPreferences.Editor editor = sharedPreferences.edit()
+                .putString(KEY_FINGERPRINT, fingerprint)
+                .putString(KEY_STORE_NAME, storeName);
+        if (storeComponent == null) {
+            editor.remove(KEY_STORE_PACKAGE).remove(KEY_STORE_CLASS);
+        } else {
+            editor.putString(KEY_STORE_PACKAGE, storeComponent.getPackageName())
+                    .putString(KEY_STORE_CLASS, storeComponent.getClassName());
+        }
+        editor.apply();
+    }
+
+    void clear() {
+        Logger.d("SetupCache.clear()");
+        sharedPreferences.edit().clear().apply();
+    }
+
+    /**
+     * Composes the fingerprint of the setup inputs.
+     *
+     * @param packageInstaller The installer of the application, can be null.
+     * @param packageVersions  The map [package or service name -> version code] of the application and installed stores.
+     * @param options          The setup options.
+     */
+    @NotNull
+    static String fingerprint(@Nullable final String packageInstaller,
+                              @NotNull final Map<String, Integer> packageVersions,
+                              @NotNull final OpenIabHelper.Options options) {
+        final StringBuilder builder = new StringBuilder()
+                .append(packageInstaller);
+        appendOptions(builder, options);
+        for (final Map.Entry<String, Integer> entry : new TreeMap<String, Integer>(packageVersions).entrySet()) {
+            builder.append(';')
+                    .append(entry.getKey())
+                    .append('=')
+                    .append(entry.getValue());
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Appends only the options the store choice depends on, other options can change without invalidating the cache.
+     * Store keys are appended as their hash codes, String.hashCode() is the same on every run.
+     */
+    private static void appendOptions(@NotNull final StringBuilder builder,
+                                      @NotNull final OpenIabHelper.Options options) {
+        final Set<String> availableStoreNames = new TreeSet<String>(options.getAvailableStoreNames());
+        for (final Appstore appstore : options.getAvailableStores()) {
+            availableStoreNames.add(appstore.getAppstoreName());
+        }
+        builder.append(";stores=").append(availableStoreNames)
+                .append(";preferred=").append(new ArrayList<String>(options.getPreferredStoreNames()))
+                .append(";strategy=").append(options.getStoreSearchStrategy())
+                .append(";verify=").append(options.getVerifyMode())
+                .append(";checkInventory=").append(options.isCheckInventory())
+                .append(";checkInventoryTimeout=").append(options.getCheckInventoryTimeout())
+                .append(";samsungLightProbe=").append(options.isSamsungLightProbeEnabled())
+                .append(";keys=");
+        for (final Map.Entry<String, String> entry : new TreeMap<String, String>(options.getStoreKeys()).entrySet()) {
+            builder.append(entry.getKey())
+                    .append(':')
+                    .append(entry.getValue() == null ? 0 : entry.getValue().hashCode())
+                    .append(',');
+        }
+    }
+}
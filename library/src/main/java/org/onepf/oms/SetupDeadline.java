@@ -0,0 +1,57 @@
+/*
+ * Copyright 2012-2014 One Platform Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onepf.oms;
+
+import android.os.SystemClock;
+
+/**
+ * Time budget of the setup process.
+ * <p/>
+ * The global budget is shared by all setup phases, every phase or store check can be limited further by its own budget.
+ * Non-positive budget means no limit.
+ */
+final class SetupDeadline {
+
+    private final long deadline;
+
+    /**
+     * @param timeoutMs The global budget in milliseconds, non-positive value means no limit.
+     */
+    SetupDeadline(final long timeoutMs) {
+        final long now = SystemClock.elapsedRealtime();
+        deadline = timeoutMs > 0 && timeoutMs < Long.MAX_VALUE - now ? now + timeoutMs : Long.MAX_VALUE;
+    }
+
+    /**
+     * @return The remaining time of the global budget in milliseconds.
+     */
+    long remaining() {
+        if (deadline == Long.MAX_VALUE) {
+            return Long.MAX_VALUE;
+        }
+        return Math.max(0, deadline - SystemClock.elapsedRealtime());
+    }
+
+    /**
+     * @param budgetMs The budget of the phase in milliseconds, non-positive value means no limit.
+     * @return The time available for the phase in milliseconds.
+     */
+    long remaining(final long budgetMs) {
+        final long remaining = remaining();
+        return budgetMs > 0 ? Math.min(budgetMs, remaining) : remaining;
+    }
+}
@@ -0,0 +1,269 @@
+/*
+ * Copyright 2012-2014 One Platform Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onepf.oms;
+
+import android.os.SystemClock;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.onepf.oms.appstore.googleUtils.IabResult;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Timings of the setup process: phases, the chosen store and the reason it was chosen.
+ * <p/>
+ * Available with {@link OpenIabHelper#getSetupTrace()} or {@link OpenIabHelper.Options.Builder#setSetupTraceListener(Listener)}
+ * when the setup is finished.
+ */
+public final class SetupTrace {
+
+    /**
+     * Lookup of the application installer.
+     */
+    public static final String PHASE_INSTALLER_LOOKUP = "installerLookup";
+
+    /**
+     * Bind to an Open Store service, until the store is described.
+     */
+    public static final String PHASE_OPEN_STORE_BIND = "openStoreBind";
+
+    /**
+     * {@link Appstore#isBillingAvailable(String)} of a store.
+     */
+    public static final String PHASE_BILLING_AVAILABLE = "isBillingAvailable";
+
+    /**
+     * Version check of a store.
+     */
+    public static final String PHASE_VERSION_OK = "versionOk";
+
+    /**
+     * Setup and inventory query of a store, when {@link OpenIabHelper.Options#isCheckInventory()} is set.
+     */
+    public static final String PHASE_INVENTORY_PROBE = "inventoryProbe";
+
+    /**
+     * {@link AppstoreInAppBillingService#startSetup(org.onepf.oms.appstore.googleUtils.IabHelper.OnIabSetupFinishedListener)}
+     * of the chosen store.
+     */
+    public static final String PHASE_BILLING_SETUP = "billingSetup";
+
+    /**
+     * The store is the installer of the application.
+     */
+    public static final String REASON_INSTALLER = "installer";
+
+    /**
+     * The store was chosen during the previous setup, see {@link OpenIabHelper.Options#isSetupCacheEnabled()}.
+     */
+    public static final String REASON_CACHED = "cached";
+
+    /**
+     * The store has the highest priority among stores with available billing.
+     */
+    public static final String REASON_PRIORITY = "priority";
+
+    /**
+     * The store has the highest priority among stores with purchases.
+     */
+    public static final String REASON_INVENTORY = "inventory";
+
+    /**
+     * No store with available billing was found.
+     */
+    public static final String REASON_NOT_FOUND = "notFound";
+
+    /**
+     * Callback to receive the trace when the setup is finished.
+     */
+    public interface Listener {
+        /**
+         * Called on the UI thread before {@link org.onepf.oms.appstore.googleUtils.IabHelper.OnIabSetupFinishedListener}.
+         */
+        void onSetupTraced(@NotNull SetupTrace trace);
+    }
+
+    /**
+     * Single timed step of the setup.
+     */
+    public static final class Phase {
+        @NotNull
+        private final String name;
+        @Nullable
+        private final String store;
+        private final long startMs;
+        private final long durationMs;
+        @Nullable
+        private final String result;
+
+        private Phase(@NotNull final String name, @Nullable final String store,
+                      final long startMs, final long durationMs, @Nullable final String result) {
+            this.name = name;
+            this.store = store;
+            this.startMs = startMs;
+            this.durationMs = durationMs;
+            this.result = result;
+        }
+
+        /**
+         * @return One of PHASE_* constants.
+         */
+        @NotNull
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return The store name, or the package name of an Open Store that wasn't described yet, null if not related to a store.
+         */
+        @Nullable
+        public String getStore() {
+            return store;
+        }
+
+        /**
+         * @return Start of the phase in ms since the setup start.
+         */
+        public long getStartMs() {
+            return startMs;
+        }
+
+        public long getDurationMs() {
+            return durationMs;
+        }
+
+        /**
+         * @return Outcome of the phase, e.g. "true", "timeout".
+         */
+        @Nullable
+        public String getResult() {
+            return result;
+        }
+
+        @NotNull
+        @Override
+        public String toString() {
+            return name + "{store=" + store + ", start=" + startMs + ", duration=" + durationMs + ", result=" + result + '}';
+        }
+    }
+
+    private final long setupStart = SystemClock.elapsedRealtime();
+
+    private final List<Phase> phases = new ArrayList<Phase>();
+
+    private final List<String> timedOutStores = new ArrayList<String>();
+
+    @Nullable
+    private String winner;
+
+    @Nullable
+    private String reason;
+
+    @Nullable
+    private IabResult result;
+
+    private long durationMs = -1;
+
+    SetupTrace() {
+    }
+
+    /**
+     * @return Current time to pass as the start of a phase to {@link #addPhase(String, String, long, Object)}.
+     */
+    static long now() {
+        return SystemClock.elapsedRealtime();
+    }
+
+    synchronized void addPhase(@NotNull final String name, @Nullable final String store,
+                               final long start, @Nullable final Object result) {
+        phases.add(new Phase(name, store, start - setupStart, now() - start, result == null ? null : String.valueOf(result)));
+    }
+
+    synchronized void addTimedOutStore(@NotNull final String store) {
+        timedOutStores.add(store);
+    }
+
+    synchronized void setReason(@NotNull final String reason) {
+        this.reason = reason;
+    }
+
+    synchronized void finish(@NotNull final IabResult result, @Nullable final Appstore appstore) {
+        this.result = result;
+        winner = appstore == null ? null : appstore.getAppstoreName();
+        if (appstore == null) {
+            reason = REASON_NOT_FOUND;
+        }
+        durationMs = now() - setupStart;
+    }
+
+    /**
+     * @return Phases in the order they finished.
+     */
+    @NotNull
+    public synchronized List<Phase> getPhases() {
+        return Collections.unmodifiableList(new ArrayList<Phase>(phases));
+    }
+
+    /**
+     * @return Stores that didn't answer in time.
+     */
+    @NotNull
+    public synchronized List<String> getTimedOutStores() {
+        return Collections.unmodifiableList(new ArrayList<String>(timedOutStores));
+    }
+
+    /**
+     * @return The name of the chosen store, null if no store was chosen.
+     */
+    @Nullable
+    public synchronized String getWinner() {
+        return winner;
+    }
+
+    /**
+     * @return One of REASON_* constants, null if the setup isn't finished.
+     */
+    @Nullable
+    public synchronized String getReason() {
+        return reason;
+    }
+
+    /**
+     * @return The result of the setup, null if the setup isn't finished.
+     */
+    @Nullable
+    public synchronized IabResult getResult() {
+        return result;
+    }
+
+    /**
+     * @return Duration of the whole setup in ms, -1 if the setup isn't finished.
+     */
+    public synchronized long getDurationMs() {
+        return durationMs;
+    }
+
+    @NotNull
+    @Override
+    public synchronized String toString() {
+        return "SetupTrace{winner=" + winner + ", reason=" + reason + ", duration=" + durationMs
+                + ", timedOutStores=" + timedOutStores + ", phases=" + phases + '}';
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright 2012-2014 One Platform Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onepf.oms;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageManager;
+import android.content.pm.ResolveInfo;
+import android.content.pm.ServiceInfo;
+import android.net.Uri;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.onepf.oms.util.Logger;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Process-wide cache of package information used during the setup:
+ * Open Store services, package versions and the installer of the application.
+ * <p/>
+ * Cached values are invalidated when packages are added, removed or replaced.
+ */
+final class StoreRegistry {
+
+    @Nullable
+    private static volatile StoreRegistry instance;
+
+    @NotNull
+    private final Context context;
+
+    @NotNull
+    private final PackageManager packageManager;
+
+    // null until resolved
+    @Nullable
+    private List<ServiceInfo> openStoreServices;
+
+    // package -> version code, Appstore.PACKAGE_VERSION_UNDEFINED if the package is not installed
+    @NotNull
+    private final Map<String, Integer> packageVersions = new HashMap<String, Integer>();
+
+    private boolean installerResolved;
+
+    @Nullable
+    private String installerPackageName;
+
+    @NotNull
+    static StoreRegistry getInstance(@NotNull final Context context) {
+        StoreRegistry registry = instance;
+        if (registry == null) {
+            synchronized (StoreRegistry.class) {
+                registry = instance;
+                if (registry == null) {
+                    instance = registry = new StoreRegistry(context.getApplicationContext());
+                }
+            }
+        }
+        return registry;
+    }
+
+    private StoreRegistry(@NotNull final Context context) {
+        this.context = context;
+        packageManager = context.getPackageManager();
+
+        final IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        filter.addDataScheme("package");
+        context.registerReceiver(new BroadcastReceiver() {
+            @Override
+            public void onReceive(final Context context, final Intent intent) {
+                final Uri data = intent.getData();
+                invalidate(data == null ? null : data.getSchemeSpecificPart());
+            }
+        }, filter);
+    }
+
+    /**
+     * @return Services that handle the Open Store bind intent.
+     */
+    @NotNull
+    synchronized List<ServiceInfo> getOpenStoreServices() {
+        if (openStoreServices == null) {
+            final List<ResolveInfo> resolveInfos =
+                    packageManager.queryIntentServices(new Intent(OpenIabHelper.BIND_INTENT), 0);
+            final List<ServiceInfo> serviceInfos = new ArrayList<ServiceInfo>();
+            if (resolveInfos != null) {
+                for (final ResolveInfo resolveInfo : resolveInfos) {
+                    serviceInfos.add(resolveInfo.serviceInfo);
+                }
+            }
+            openStoreServices = Collections.unmodifiableList(serviceInfos);
+        }
+        return openStoreServices;
+    }
+
+    /**
+     * @return The version code of the package, {@link Appstore#PACKAGE_VERSION_UNDEFINED} if it isn't installed.
+     */
+    synchronized int getPackageVersion(@NotNull final String packageName) {
+        Integer versionCode = packageVersions.get(packageName);
+        if (versionCode == null) {
+            try {
+                versionCode = packageManager.getPackageInfo(packageName, 0).versionCode;
+            } catch (PackageManager.NameNotFoundException ignore) {
+                versionCode = Appstore.PACKAGE_VERSION_UNDEFINED;
+            }
+            packageVersions.put(packageName, versionCode);
+        }
+        return versionCode;
+    }
+
+    boolean isPackageInstalled(@NotNull final String packageName) {
+        return getPackageVersion(packageName) != Appstore.PACKAGE_VERSION_UNDEFINED;
+    }
+
+    /**
+     * @return The package name of the application installer, null if unknown.
+     */
+    @Nullable
+    synchronized String getInstallerPackageName() {
+        if (!installerResolved) {
+            installerPackageName = packageManager.getInstallerPackageName(context.getPackageName());
+            installerResolved = true;
+        }
+        return installerPackageName;
+    }
+
+    /**
+     * @param packageName The changed package, null if unknown.
+     */
+    synchronized void invalidate(@Nullable final String packageName) {
+        Logger.d("StoreRegistry.invalidate() package: ", packageName);
+        openStoreServices = null;
+        if (packageName == null) {
+            packageVersions.clear();
+        } else {
+            packageVersions.remove(packageName);
+        }
+        if (packageName == null || packageName.equals(context.getPackageName())) {
+            installerResolved = false;
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2012-2014 One Platform Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onepf.oms;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.text.TextUtils;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.onepf.oms.appstore.googleUtils.Security;
+import org.onepf.oms.util.Logger;
+
+import java.util.Arrays;
+
+/**
+ * Persists digests of purchases verified by {@link Security}, so purchases verified before a restart
+ * aren't verified again.
+ * <p/>
+ * The digests are restored before the first verification and saved after inventory queries.
+ */
+final class VerifiedPurchaseStore {
+
+    private static final String SHARED_PREFS_VERIFIED_PURCHASES = "onepf_shared_prefs_verified_purchases";
+
+    private static final String KEY_VERSION = "version";
+    private static final String KEY_DIGESTS = "digests";
+
+    private static final int VERSION = 1;
+
+    // Base64 doesn't use it
+    private static final String SEPARATOR = ",";
+
+    @NotNull
+    private final SharedPreferences sharedPreferences;
+
+    // Guarded by this
+    private boolean restored;
+
+    // The last saved value, guarded by this
+    @Nullable
+    private String digests;
+
+    VerifiedPurchaseStore(@NotNull final Context context) {
+        sharedPreferences = context.getSharedPreferences(SHARED_PREFS_VERIFIED_PURCHASES, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Adds the saved digests to {@link Security}, reads them only once.
+     */
+    synchronized void restore() {
+        if (restored) {
+            return;
+        }
+        restored = true;
+        if (sharedPreferences.getInt(KEY_VERSION, 0) != VERSION) {
+            return;
+        }
+        digests = sharedPreferences.getString(KEY_DIGESTS, null);
+        if (!TextUtils.isEmpty(digests)) {
+            final String[] savedDigests = TextUtils.split(digests, SEPARATOR);
+            Logger.d("VerifiedPurchaseStore.restore() digests: ", savedDigests.length);
+            Security.addVerifiedDigests(Arrays.asList(savedDigests));
+        }
+    }
+
+    /**
+     * Saves the digests known to {@link Security} if they changed since the last save.
+     */
+    synchronized void save() {
+        restore();
+        final String verifiedDigests = TextUtils.join(SEPARATOR, Security.getVerifiedDigests());
+        if (TextUtils.equals(verifiedDigests, digests)) {
+            return;
+        }
+        digests = verifiedDigests;
+        sharedPreferences.edit()
+                .putInt(KEY_VERSION, VERSION)
+                .putString(KEY_DIGESTS, verifiedDigests)
+                .apply();
+    }
+}
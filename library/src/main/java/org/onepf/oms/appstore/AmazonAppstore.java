@@ -16,6 +16,7 @@
 
 package org.onepf.oms.appstore;
 
+import org.jetbrains.annotations.Nullable;
 import org.onepf.oms.Appstore;
 import org.onepf.oms.AppstoreInAppBillingService;
 import org.onepf.oms.DefaultAppstore;
@@ -38,10 +39,21 @@ public class AmazonAppstore extends DefaultAppstore {
 
     private final Context context;
 
+    @Nullable
+    private final OpenIabHelper.Options options;
+
     private AmazonAppstoreBillingService mBillingService;
 
     public AmazonAppstore(Context context) {
+        this(context, null);
+    }
+
+    /**
+     * @param options Options of the helper, receipts aren't persisted if null.
+     */
+    public AmazonAppstore(Context context, @Nullable OpenIabHelper.Options options) {
         this.context = context;
+        this.options = options;
     }
 
     @Override
@@ -87,7 +99,8 @@ public class AmazonAppstore extends DefaultAppstore {
     @Override
     public AppstoreInAppBillingService getInAppBillingService() {
         if (mBillingService == null) {
-            mBillingService = new AmazonAppstoreBillingService(context);
+            mBillingService = new AmazonAppstoreBillingService(context,
+                    options != null && options.isAmazonReceiptsPersisted());
         }
         return mBillingService;
     }
@@ -40,6 +40,8 @@ import org.json.JSONObject;
 import org.onepf.oms.AppstoreInAppBillingService;
 import org.onepf.oms.OpenIabHelper;
 import org.onepf.oms.SkuManager;
+import org.onepf.oms.appstore.amazonUtils.AmazonReceiptStore;
+import org.onepf.oms.appstore.googleUtils.IabException;
 import org.onepf.oms.appstore.googleUtils.IabHelper;
 import org.onepf.oms.appstore.googleUtils.IabResult;
 import org.onepf.oms.appstore.googleUtils.Inventory;
@@ -47,14 +49,15 @@ import org.onepf.oms.appstore.googleUtils.Purchase;
 import org.onepf.oms.appstore.googleUtils.SkuDetails;
 import org.onepf.oms.util.Logger;
 
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Queue;
 import java.util.Set;
-import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Amazon billing service impl
@@ -74,6 +77,11 @@ public class AmazonAppstoreBillingService implements AppstoreInAppBillingService
     public static final String JSON_KEY_USER_ID = "userId";
     public static final String JSON_KEY_RECEIPT_PURCHASE_TOKEN = "purchaseToken";
 
+    /**
+     * Time to wait for all pages of purchase updates or for product data of a single query.
+     */
+    public static final long INVENTORY_REQUEST_TIMEOUT_MS = 30000;
+
     private final Map<RequestId, IabHelper.OnIabPurchaseFinishedListener> requestListeners =
             new HashMap<RequestId, IabHelper.OnIabPurchaseFinishedListener>();
 
@@ -85,33 +93,48 @@ public class AmazonAppstoreBillingService implements AppstoreInAppBillingService
      * <p>Initialized at {@link #onUserDataResponse(UserDataResponse)} if GetUserIdRequestStatus.SUCCESSFUL
      * during startSetup().
      */
-    private String currentUserId;
+    private volatile String currentUserId;
 
     /**
      * To process {@link #queryInventory(boolean, List, List)} request following steps are done:
      * <p>
-     * {@link #queryInventory(boolean, List, List)} - initialize inventory object, request purchase data by
-     * <code>getPurchaseUpdates()</code> and locks thread on inventoryLatch.
-     * After whole purchase data is received request SKU details by <code>getProductData()</code>
+     * {@link #queryInventory(boolean, List, List)} - creates an inventory for the query, requests purchase data by
+     * <code>getPurchaseUpdates()</code> and waits for the pending request.
+     * After whole purchase data is received requests SKU details by <code>getProductData()</code>
      * <br>
      * {@link #onPurchaseUpdatesResponse(PurchaseUpdatesResponse)} - triggered by Amazon SDK.
-     * Handles purchases data chunk by chunk. Releases inventoryLatch lock after last chunk is handled.
+     * Adds purchases to the inventory of the request chunk by chunk, every next chunk is requested
+     * with a new {@link RequestId}. Finishes the request after the last chunk is handled.
      * <p>
      * {@link #onProductDataResponse(ProductDataResponse)} - triggered by Amazon SDK.
-     * Handles items data. Releases inventoryLatch lock when all data is handled.
+     * Adds items data to the inventory of the request and finishes it.
      * <p/>
      * <p>NOTES:</p>
      * Amazon SDK may trigger on*Response() before queryInventory() is called. It happens
      * when confirmation of processed purchase was not delivered to application (when applications
-     * crashes or relaunched). So inventory object must not be null.
+     * crashes or relaunched). Such responses don't belong to any request and are ignored.
+     * <p>
+     * Some SDK versions answer with a {@link RequestId} that differs from the returned one. Such responses are
+     * matched to the pending request of the same kind only if it is the only one, otherwise they are dropped.
+     * <p>
+     * Guarded by itself. Requests are registered while the lock is held,
+     * so a response can't arrive before its request is known.
      */
-    private final Inventory inventory = new Inventory();
+    private final Map<RequestId, PendingRequest> pendingRequests = new LinkedHashMap<RequestId, PendingRequest>();
+
+    /**
+     * Purchases of the current user known from previous queries, null if receipts aren't persisted.
+     *
+     * @see OpenIabHelper.Options#isAmazonReceiptsPersisted()
+     */
+    @Nullable
+    private final AmazonReceiptStore receiptStore;
+
     /**
-     * Since {@link RequestId} returned by {@link PurchasingService#getPurchaseUpdates(boolean) } doesn't match
-     * the one from {@link PurchasingListener#onPurchaseUpdatesResponse(PurchaseUpdatesResponse)}, we'll just
-     * assume separate requests are equal and use simple queue for synchronization
+     * Purchase updates are paged by a cursor kept by Amazon SDK, so only one query can fetch them at a time.
+     * Also guards changes of {@link #receiptStore} against the queries that load and save it.
      */
-    private final Queue<CountDownLatch> inventoryLatchQueue = new ConcurrentLinkedQueue<CountDownLatch>();
+    private final Object purchaseUpdatesLock = new Object();
 
     /**
      * If not null will be notified from
@@ -121,7 +144,15 @@ public class AmazonAppstoreBillingService implements AppstoreInAppBillingService
 
 
     public AmazonAppstoreBillingService(@NotNull Context context) {
+        this(context, false);
+    }
+
+    /**
+     * @param receiptsPersisted True to keep purchases between inventory queries and app restarts.
+     */
+    public AmazonAppstoreBillingService(@NotNull Context context, boolean receiptsPersisted) {
         this.context = context.getApplicationContext();
+        this.receiptStore = receiptsPersisted ? new AmazonReceiptStore(this.context) : null;
     }
 
     /**
@@ -164,17 +195,17 @@ public class AmazonAppstoreBillingService implements AppstoreInAppBillingService
     }
 
     @Override
-    public Inventory queryInventory(boolean querySkuDetails, @Nullable List<String> moreItemSkus, @Nullable List<String> moreSubsSkus) {
+    public Inventory queryInventory(boolean querySkuDetails, @Nullable List<String> moreItemSkus, @Nullable List<String> moreSubsSkus)
+            throws IabException {
         Logger.d("queryInventory() querySkuDetails: ", querySkuDetails, " moreItemSkus: ",
                 moreItemSkus, " moreSubsSkus: ", moreSubsSkus);
 
-        final CountDownLatch purchaseUpdatesLatch = new CountDownLatch(1);
-        inventoryLatchQueue.offer(purchaseUpdatesLatch);
-        PurchasingService.getPurchaseUpdates(true);
+        final Inventory inventory;
         try {
-            purchaseUpdatesLatch.await();
+            inventory = queryPurchases();
         } catch (InterruptedException e) {
             Logger.e("queryInventory() await interrupted");
+            Thread.currentThread().interrupt();
             return null;
         }
 
@@ -191,13 +222,16 @@ public class AmazonAppstoreBillingService implements AppstoreInAppBillingService
                 for (String sku : querySkus) {
                     queryStoreSkus.add(SkuManager.getInstance().getStoreSku(OpenIabHelper.NAME_AMAZON, sku));
                 }
-                final CountDownLatch productDataLatch = new CountDownLatch(1);
-                inventoryLatchQueue.offer(productDataLatch);
-                PurchasingService.getProductData(queryStoreSkus);
+                final PendingRequest productDataRequest = new PendingRequest(true, inventory);
+                synchronized (pendingRequests) {
+                    pendingRequests.put(PurchasingService.getProductData(queryStoreSkus), productDataRequest);
+                }
                 try {
-                    productDataLatch.await();
+                    await(productDataRequest);
                 } catch (InterruptedException e) {
                     Logger.w("queryInventory() SkuDetails fetching interrupted");
+                    forgetPendingRequest(productDataRequest);
+                    Thread.currentThread().interrupt();
                     return null;
                 }
             }
@@ -206,6 +240,118 @@ public class AmazonAppstoreBillingService implements AppstoreInAppBillingService
         return inventory;
     }
 
+    /**
+     * Requests only purchase updates since the last query if purchases of the current user are known,
+     * the full purchase history otherwise.
+     *
+     * @return The inventory with all purchases of the current user.
+     */
+    @NotNull
+    private Inventory queryPurchases() throws InterruptedException, IabException {
+        synchronized (purchaseUpdatesLock) {
+            final String userId = currentUserId;
+            final List<Purchase> knownPurchases = userId == null || receiptStore == null ? null : receiptStore.load(userId);
+            final boolean reset = knownPurchases == null;
+            Logger.d("queryPurchases() reset: ", reset);
+
+            final Inventory inventory = new Inventory();
+            final PendingRequest request = new PendingRequest(false, new Inventory());
+            synchronized (pendingRequests) {
+                pendingRequests.put(PurchasingService.getPurchaseUpdates(reset), request);
+            }
+            boolean received = false;
+            try {
+                await(request);
+                received = true;
+            } finally {
+                if (!received) {
+                    // The response may still advance the update cursor without being read, start over next time
+                    forgetPendingRequest(request);
+                    if (receiptStore != null) {
+                        receiptStore.clear();
+                    }
+                }
+            }
+
+            if (!reset) {
+                for (final Purchase purchase : knownPurchases) {
+                    inventory.addPurchase(purchase);
+                }
+            }
+            for (final String sku : request.canceledSkus) {
+                inventory.erasePurchase(sku);
+            }
+            for (final Purchase purchase : request.inventory.getAllPurchases()) {
+                inventory.addPurchase(purchase);
+            }
+            if (receiptStore != null && userId != null && !request.otherUser) {
+                receiptStore.save(userId, inventory.getAllPurchases());
+            }
+            return inventory;
+        }
+    }
+
+    /**
+     * Waits for the request to finish, forgets it on timeout.
+     *
+     * @throws IabException if the request failed or timed out.
+     */
+    private void await(@NotNull final PendingRequest request) throws InterruptedException, IabException {
+        if (!request.latch.await(INVENTORY_REQUEST_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+            forgetPendingRequest(request);
+            throw new IabException(IabHelper.BILLING_RESPONSE_RESULT_ERROR,
+                    (request.productData ? "Product data" : "Purchase updates") + " request timed out");
+        }
+        if (!request.successful) {
+            throw new IabException(IabHelper.BILLING_RESPONSE_RESULT_ERROR,
+                    (request.productData ? "Product data" : "Purchase updates") + " request failed");
+        }
+    }
+
+    /**
+     * Removes the request, so its response doesn't match any request.
+     */
+    private void forgetPendingRequest(@NotNull final PendingRequest request) {
+        synchronized (pendingRequests) {
+            pendingRequests.values().removeAll(Collections.singleton(request));
+        }
+    }
+
+    /**
+     * Removes the pending request the response belongs to. A response with an unknown {@link RequestId}
+     * belongs to the pending request of the same kind only if there is exactly one.
+     *
+     * @return The request, null if the response doesn't belong to any request or can't be matched.
+     */
+    @Nullable
+    private PendingRequest removePendingRequest(@Nullable final RequestId requestId, final boolean productData) {
+        synchronized (pendingRequests) {
+            final PendingRequest request = pendingRequests.remove(requestId);
+            if (request != null) {
+                return request;
+            }
+            RequestId matchedRequestId = null;
+            int matchCount = 0;
+            for (final Map.Entry<RequestId, PendingRequest> entry : pendingRequests.entrySet()) {
+                if (entry.getValue().productData == productData) {
+                    matchedRequestId = entry.getKey();
+                    matchCount++;
+                }
+            }
+            if (matchCount == 1) {
+                Logger.d("removePendingRequest() unknown reqId: ", requestId, ", matched to the only pending request");
+                return pendingRequests.remove(matchedRequestId);
+            }
+            if (matchCount > 1) {
+                Logger.w("removePendingRequest() unknown reqId: ", requestId, ", ", matchCount,
+                        " pending requests can match, response dropped");
+                return null;
+            }
+        }
+        Logger.d("removePendingRequest() response doesn't belong to any request, reqId: ", requestId);
+        return null;
+    }
+
     @Override
     public void onPurchaseUpdatesResponse(final PurchaseUpdatesResponse purchaseUpdatesResponse) {
         final PurchaseUpdatesResponse.RequestStatus requestStatus = purchaseUpdatesResponse.getRequestStatus();
@@ -213,33 +359,43 @@ public class AmazonAppstoreBillingService implements AppstoreInAppBillingService
         Logger.d("onPurchaseUpdatesResponse() reqStatus: ", requestStatus,
                 "reqId: ", requestId);
 
+        final PendingRequest request = removePendingRequest(requestId, false);
+        if (request == null) {
+            return;
+        }
         switch (requestStatus) {
             case SUCCESSFUL:
-                for (final String sku : inventory.getAllOwnedSkus()) {
-                    inventory.erasePurchase(sku);
-                }
                 final UserData userData = purchaseUpdatesResponse.getUserData();
                 final String userId = userData.getUserId();
                 if (!userId.equals(currentUserId)) {
                     Logger.w("onPurchaseUpdatesResponse() Current UserId: ", currentUserId,
                             ", purchase UserId: ", userId);
-                    break;
+                    // Purchases of another user are not reported
+                    request.otherUser = true;
+                    request.finish(true);
+                    return;
                 }
                 for (final Receipt receipt : purchaseUpdatesResponse.getReceipts()) {
-                    inventory.addPurchase(getPurchase(receipt));
+                    final Purchase purchase = getPurchase(receipt);
+                    if (receipt.isCanceled()) {
+                        request.inventory.erasePurchase(purchase.getSku());
+                        request.canceledSkus.add(purchase.getSku());
+                    } else {
+                        request.inventory.addPurchase(purchase);
+                        request.canceledSkus.remove(purchase.getSku());
+                    }
                 }
                 if (purchaseUpdatesResponse.hasMore()) {
-                    PurchasingService.getPurchaseUpdates(false);
+                    synchronized (pendingRequests) {
+                        pendingRequests.put(PurchasingService.getPurchaseUpdates(false), request);
+                    }
                     Logger.d("Initiating Another Purchase Updates with offset: ");
                     return;
                 }
+                request.finish(true);
                 break;
-            case FAILED:
-                break;
-        }
-        final CountDownLatch countDownLatch = inventoryLatchQueue.poll();
-        if (countDownLatch != null) {
-            countDownLatch.countDown();
+            default:
+                request.finish(false);
         }
     }
 
@@ -278,22 +434,27 @@ public class AmazonAppstoreBillingService implements AppstoreInAppBillingService
         Logger.d("onItemDataResponse() reqStatus: ", status,
                 ", reqId: ", requestId);
 
+        final PendingRequest request = removePendingRequest(requestId, true);
+        if (request == null) {
+            return;
+        }
         switch (status) {
             case SUCCESSFUL:
                 final Map<String, Product> productData = productDataResponse.getProductData();
                 for (final String key : productData.keySet()) {
                     final Product product = productData.get(key);
-                    inventory.addSkuDetails(getSkuDetails(product));
+                    request.inventory.addSkuDetails(getSkuDetails(product));
                 }
+                request.finish(true);
                 break;
             case FAILED:
                 // Fall through
             case NOT_SUPPORTED:
+                // SKU details are optional, purchases are still reported
+                request.finish(true);
                 break;
-        }
-        final CountDownLatch countDownLatch = inventoryLatchQueue.poll();
-        if (countDownLatch != null) {
-            countDownLatch.countDown();
+            default:
+                request.finish(false);
         }
     }
 
@@ -443,6 +604,13 @@ public class AmazonAppstoreBillingService implements AppstoreInAppBillingService
     @Override
     public void consume(Purchase itemInfo) {
         PurchasingService.notifyFulfillment(itemInfo.getToken(), FulfillmentResult.FULFILLED);
+        // Fulfilled receipts are not reported by purchase updates anymore
+        if (receiptStore != null) {
+            // A query in progress would save the receipt again
+            synchronized (purchaseUpdatesLock) {
+                receiptStore.remove(itemInfo.getToken());
+            }
+        }
     }
 
     @Override
@@ -453,10 +621,51 @@ public class AmazonAppstoreBillingService implements AppstoreInAppBillingService
     @Override
     public void dispose() {
         setupListener = null;
+        synchronized (pendingRequests) {
+            for (final PendingRequest request : pendingRequests.values()) {
+                request.finish(false);
+            }
+            pendingRequests.clear();
+        }
     }
 
     @Override
     public boolean handleActivityResult(int requestCode, int resultCode, Intent data) {
         return false;
     }
+
+    /**
+     * Inventory query waiting for Amazon SDK responses.
+     */
+    private static final class PendingRequest {
+
+        private final boolean productData;
+
+        // Owned by the query, filled by responses
+        @NotNull
+        private final Inventory inventory;
+
+        @NotNull
+        private final CountDownLatch latch = new CountDownLatch(1);
+
+        // Published by the latch
+        private boolean successful;
+
+        // Purchase updates of another user were received, published by the latch
+        private boolean otherUser;
+
+        // SKUs of canceled receipts, filled by responses
+        @NotNull
+        private final Set<String> canceledSkus = new HashSet<String>();
+
+        private PendingRequest(final boolean productData, @NotNull final Inventory inventory) {
+            this.productData = productData;
+            this.inventory = inventory;
+        }
+
+        private void finish(final boolean successful) {
+            this.successful = successful;
+            latch.countDown();
+        }
+    }
 }
@@ -21,15 +21,12 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.text.TextUtils;
-import android.util.Pair;
 
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.onepf.oms.AppstoreInAppBillingService;
 import org.onepf.oms.OpenIabHelper;
 import org.onepf.oms.appstore.fortumoUtils.InappBaseProduct;
-import org.onepf.oms.appstore.fortumoUtils.InappSubscriptionProduct;
-import org.onepf.oms.appstore.fortumoUtils.InappsXMLParser;
 import org.onepf.oms.appstore.googleUtils.IabException;
 import org.onepf.oms.appstore.googleUtils.IabHelper;
 import org.onepf.oms.appstore.googleUtils.IabResult;
@@ -37,17 +34,22 @@ import org.onepf.oms.appstore.googleUtils.Inventory;
 import org.onepf.oms.appstore.googleUtils.Purchase;
 import org.onepf.oms.appstore.googleUtils.SkuDetails;
 import org.onepf.oms.util.Logger;
+import org.onepf.oms.util.TaskExecutors;
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 import org.xmlpull.v1.XmlPullParserFactory;
 
 import java.io.IOException;
-import java.util.Collection;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
 
 import mp.MpUtils;
@@ -60,6 +62,11 @@ import mp.PaymentResponse;
  */
 public class FortumoBillingService implements AppstoreInAppBillingService {
     private static final String SHARED_PREFS_FORTUMO = "onepf_shared_prefs_fortumo";
+
+    private static final long PURCHASE_HISTORY_TIMEOUT_MS = 5000;
+    // Time to reuse fetched price data of a service
+    private static final long PRICE_CACHE_TTL_MS = TimeUnit.MINUTES.toMillis(15);
+
     private boolean isNook;
 
     private int activityRequestCode;
@@ -70,6 +77,13 @@ public class FortumoBillingService implements AppstoreInAppBillingService {
     @Nullable
     private String developerPayload;
 
+    // Billed is the final status, responses are reused by message id
+    @NotNull
+    private final Map<Long, PaymentResponse> billedResponses = new ConcurrentHashMap<Long, PaymentResponse>();
+    // Fetched prices by service id
+    @NotNull
+    private final Map<String, CachedPrice> priceCache = new ConcurrentHashMap<String, CachedPrice>();
+
     public FortumoBillingService(Context context, boolean isNook) {
         this.context = context;
         this.isNook = isNook;
@@ -157,74 +171,151 @@ public class FortumoBillingService implements AppstoreInAppBillingService {
     }
 
     @Override
-    public Inventory queryInventory(boolean querySkuDetails, @Nullable List<String> moreItemSkus, List<String> moreSubsSkus) throws IabException {
+    public Inventory queryInventory(final boolean querySkuDetails, @Nullable List<String> moreItemSkus, List<String> moreSubsSkus) throws IabException {
         Inventory inventory = new Inventory();
+        // Fortumo requests block, they run on the shared pool so they can't wait for tasks of the caller
+        final ExecutorService executor = TaskExecutors.getRequestExecutor();
+
+        /* Request pending payments and purchase histories concurrently */
         SharedPreferences sharedPreferences = context.getSharedPreferences(SHARED_PREFS_FORTUMO, Context.MODE_PRIVATE);
         final Map<String, ?> preferenceMap = sharedPreferences.getAll();
-        if (preferenceMap != null) {
-            final SharedPreferences.Editor editor = sharedPreferences.edit();
-            final Set<String> keySet = preferenceMap.keySet();
-            for (String key : keySet) {
-                final String value = (String) preferenceMap.get(key);
-                if (value != null) {
-                    final Long messageId = Long.valueOf(value);
-                    final PaymentResponse paymentResponse = MpUtils.getPaymentResponse(context, messageId);
-                    if (paymentResponse.getBillingStatus() == MpUtils.MESSAGE_STATUS_BILLED) {
-                        Purchase purchase = purchaseFromPaymentResponse(context, paymentResponse);
-                        inventory.addPurchase(purchase);
-                    } else if (paymentResponse.getBillingStatus() == MpUtils.MESSAGE_STATUS_FAILED) {
-                        editor.remove(key);
+        final Map<String, Future<PaymentResponse>> pendingResponses = new HashMap<String, Future<PaymentResponse>>();
+        final List<Future<PaymentResponse>> historyResponses = new ArrayList<Future<PaymentResponse>>();
+        final Map<String, Future<String>> prices = new HashMap<String, Future<String>>();
+        try {
+            if (preferenceMap != null) {
+                for (Map.Entry<String, ?> entry : preferenceMap.entrySet()) {
+                    final String value = (String) entry.getValue();
+                    if (value != null) {
+                        pendingResponses.put(entry.getKey(), TaskExecutors.submit(executor, new Callable<PaymentResponse>() {
+                            @Override
+                            public PaymentResponse call() {
+                                return getPaymentResponse(Long.valueOf(value));
+                            }
+                        }));
                     }
-                } else {
-                    preferenceMap.remove(key);
                 }
             }
-            editor.commit();
-        }
-        final Collection<FortumoProduct> inappProducts = inappsMap.values();
-        for (FortumoProduct fortumoProduct : inappProducts) {
-            if (!fortumoProduct.isConsumable()) {
-                final List purchaseHistory = MpUtils.getPurchaseHistory(context, fortumoProduct.getServiceId(), fortumoProduct.getInAppSecret(), 5000);
-                if (purchaseHistory != null && purchaseHistory.size() > 0) {
-                    for (Object response : purchaseHistory) {
-                        PaymentResponse paymentResponse = (PaymentResponse) response;
-                        if (paymentResponse.getProductName().equals(fortumoProduct.getProductId())) {
-                            inventory.addPurchase(purchaseFromPaymentResponse(context, paymentResponse));
-                            if (querySkuDetails) {
-                                String fortumoPrice = getSkuPrice(fortumoProduct);
-                                inventory.addSkuDetails(fortumoProduct.toSkuDetails(fortumoPrice));
-                            }
-                            break;
+            for (final FortumoProduct fortumoProduct : inappsMap.values()) {
+                if (!fortumoProduct.isConsumable()) {
+                    historyResponses.add(TaskExecutors.submit(executor, new Callable<PaymentResponse>() {
+                        @Nullable
+                        @Override
+                        public PaymentResponse call() {
+                            return getLastPurchase(fortumoProduct);
                         }
+                    }));
+                }
+            }
+            if (querySkuDetails && moreItemSkus != null) {
+                for (String name : moreItemSkus) {
+                    if (inappsMap.get(name) == null) {
+                        throw new IabException(IabHelper.BILLING_RESPONSE_RESULT_DEVELOPER_ERROR, String.format("Data %s not found", name));
                     }
+                    submitPrice(executor, prices, name);
                 }
             }
-        }
 
-        if (querySkuDetails && moreItemSkus != null && moreItemSkus.size() > 0) {
-            for (String name : moreItemSkus) {
-                final FortumoProduct fortumoProduct = inappsMap.get(name);
-                if (fortumoProduct != null) {
-                    String fortumoPrice = getSkuPrice(fortumoProduct);
-                    inventory.addSkuDetails(fortumoProduct.toSkuDetails(fortumoPrice));
-                } else {
-                    throw new IabException(IabHelper.BILLING_RESPONSE_RESULT_DEVELOPER_ERROR, String.format("Data %s not found", name));
+            final SharedPreferences.Editor editor = sharedPreferences.edit();
+            for (Map.Entry<String, Future<PaymentResponse>> entry : pendingResponses.entrySet()) {
+                final PaymentResponse paymentResponse = TaskExecutors.getResult(entry.getValue());
+                if (paymentResponse.getBillingStatus() == MpUtils.MESSAGE_STATUS_BILLED) {
+                    Purchase purchase = purchaseFromPaymentResponse(context, paymentResponse);
+                    inventory.addPurchase(purchase);
+                } else if (paymentResponse.getBillingStatus() == MpUtils.MESSAGE_STATUS_FAILED) {
+                    editor.remove(entry.getKey());
                 }
             }
+            editor.commit();
+            final List<String> purchasedSkus = new ArrayList<String>();
+            for (Future<PaymentResponse> historyResponse : historyResponses) {
+                final PaymentResponse paymentResponse = TaskExecutors.getResult(historyResponse);
+                if (paymentResponse != null) {
+                    inventory.addPurchase(purchaseFromPaymentResponse(context, paymentResponse));
+                    if (querySkuDetails) {
+                        purchasedSkus.add(paymentResponse.getProductName());
+                        submitPrice(executor, prices, paymentResponse.getProductName());
+                    }
+                }
+            }
+            for (String sku : purchasedSkus) {
+                inventory.addSkuDetails(inappsMap.get(sku).toSkuDetails(TaskExecutors.getResult(prices.get(sku))));
+            }
+            if (querySkuDetails && moreItemSkus != null) {
+                for (String name : moreItemSkus) {
+                    inventory.addSkuDetails(inappsMap.get(name).toSkuDetails(TaskExecutors.getResult(prices.get(name))));
+                }
+            }
+        } finally {
+            TaskExecutors.cancel(pendingResponses.values());
+            TaskExecutors.cancel(historyResponses);
+            TaskExecutors.cancel(prices.values());
         }
         return inventory;
     }
 
-    private String getSkuPrice(@NotNull FortumoProduct fortumoProduct) throws IabException {
+    private void submitPrice(@NotNull ExecutorService executor, @NotNull Map<String, Future<String>> prices, @NotNull String sku) throws IabException {
+        if (prices.containsKey(sku)) {
+            return;
+        }
+        final FortumoProduct fortumoProduct = inappsMap.get(sku);
+        prices.put(sku, TaskExecutors.submit(executor, new Callable<String>() {
+            @Override
+            public String call() {
+                return getSkuPrice(fortumoProduct);
+            }
+        }));
+    }
+
+    /**
+     * @return The payment response, billed responses are requested once.
+     */
+    @NotNull
+    private PaymentResponse getPaymentResponse(final long messageId) {
+        final PaymentResponse billedResponse = billedResponses.get(messageId);
+        if (billedResponse != null) {
+            return billedResponse;
+        }
+        final PaymentResponse paymentResponse = MpUtils.getPaymentResponse(context, messageId);
+        if (paymentResponse.getBillingStatus() == MpUtils.MESSAGE_STATUS_BILLED) {
+            billedResponses.put(messageId, paymentResponse);
+        }
+        return paymentResponse;
+    }
+
+    /**
+     * @return The purchase of the non-consumable product from the purchase history, null if it wasn't purchased.
+     */
+    @Nullable
+    private PaymentResponse getLastPurchase(@NotNull FortumoProduct fortumoProduct) {
+        final List purchaseHistory = MpUtils.getPurchaseHistory(context, fortumoProduct.getServiceId(),
+                fortumoProduct.getInAppSecret(), PURCHASE_HISTORY_TIMEOUT_MS);
+        if (purchaseHistory != null) {
+            for (Object response : purchaseHistory) {
+                PaymentResponse paymentResponse = (PaymentResponse) response;
+                if (paymentResponse.getProductName().equals(fortumoProduct.getProductId())) {
+                    return paymentResponse;
+                }
+            }
+        }
+        return null;
+    }
+
+    private String getSkuPrice(@NotNull FortumoProduct fortumoProduct) {
         String fortumoPrice = fortumoProduct.getFortumoPrice();
         if (!TextUtils.isEmpty(fortumoPrice)) {
             final String serviceId = isNook ? fortumoProduct.getNookServiceId() : fortumoProduct.getServiceId();
             final String appSecret = isNook ? fortumoProduct.getNookInAppSecret() : fortumoProduct.getInAppSecret();
+            final CachedPrice cachedPrice = priceCache.get(serviceId);
+            if (cachedPrice != null && System.currentTimeMillis() - cachedPrice.time < PRICE_CACHE_TTL_MS) {
+                return cachedPrice.price;
+            }
             MpUtils.fetchPaymentData(context, serviceId,
                     appSecret);
             final List fetchedPriceData = MpUtils.getFetchedPriceData(context, serviceId, appSecret);
             if (fetchedPriceData != null && !fetchedPriceData.isEmpty()) {
                 fortumoPrice = (String) fetchedPriceData.get(0);
+                priceCache.put(serviceId, new CachedPrice(fortumoPrice, System.currentTimeMillis()));
             }
         }
         return fortumoPrice;
@@ -272,10 +363,9 @@ public class FortumoBillingService implements AppstoreInAppBillingService {
     @NotNull
     static Map<String, FortumoProduct> getFortumoInapps(@NotNull Context context, boolean isNook) throws IOException, XmlPullParserException, IabException {
         final Map<String, FortumoProduct> map = new HashMap<String, FortumoProduct>();
-        final InappsXMLParser inappsXMLParser = new InappsXMLParser();
-        final Pair<List<InappBaseProduct>, List<InappSubscriptionProduct>> parse = inappsXMLParser.parse(context);
-        final List<InappBaseProduct> allItems = parse.first;
-        final Map<String, FortumoProductParser.FortumoDetails> fortumoSkuDetailsMap = FortumoProductParser.parse(context, isNook);
+        final FortumoCatalog catalog = FortumoCatalog.get(context, isNook);
+        final List<InappBaseProduct> allItems = catalog.getProducts();
+        final Map<String, FortumoProductParser.FortumoDetails> fortumoSkuDetailsMap = catalog.getDetails();
         int itemsNotSupportedCount = 0;
         for (InappBaseProduct item : allItems) {
             final String productId = item.getProductId();
@@ -368,6 +458,17 @@ public class FortumoBillingService implements AppstoreInAppBillingService {
     }
 
 
+    private static final class CachedPrice {
+        private final String price;
+        private final long time;
+
+        private CachedPrice(String price, long time) {
+            this.price = price;
+            this.time = time;
+        }
+    }
+
+
     static void addPendingPayment(@NotNull Context context, String productId, String messageId) {
         final SharedPreferences fortumoSharedPrefs = getFortumoSharedPrefs(context);
         final SharedPreferences.Editor editor = fortumoSharedPrefs.edit();
@@ -0,0 +1,247 @@
+/*
+ * Copyright 2012-2014 One Platform Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onepf.oms.appstore;
+
+import android.content.Context;
+import android.content.pm.PackageManager;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.onepf.oms.appstore.fortumoUtils.InappBaseProduct;
+import org.onepf.oms.appstore.fortumoUtils.InappsXMLParser;
+import org.onepf.oms.util.BinaryFile;
+import org.onepf.oms.util.Logger;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import static org.onepf.oms.util.BinaryFile.readString;
+import static org.onepf.oms.util.BinaryFile.readStringMap;
+import static org.onepf.oms.util.BinaryFile.writeString;
+import static org.onepf.oms.util.BinaryFile.writeStringMap;
+
+/**
+ * Fortumo products parsed from {@link FortumoStore#IN_APP_PRODUCTS_FILE_NAME} and
+ * {@link FortumoStore#FORTUMO_DETAILS_FILE_NAME}.
+ * <p/>
+ * The validated products are compiled to a binary file and read from it on later starts,
+ * while the checksum of both assets and the app version code are the same.
+ * <p/>
+ * File format: key [assets CRC32, app version code, Nook flag], products, details, framed by {@link BinaryFile}.
+ */
+final class FortumoCatalog {
+
+    private static final String FILE_NAME = "onepf_fortumo_catalog";
+
+    private static final int MAGIC = 0x4f464354;
+
+    private static final int VERSION = 1;
+
+    @NotNull
+    private final List<InappBaseProduct> products;
+
+    @NotNull
+    private final Map<String, FortumoBillingService.FortumoProductParser.FortumoDetails> details;
+
+    private FortumoCatalog(@NotNull final List<InappBaseProduct> products,
+                           @NotNull final Map<String, FortumoBillingService.FortumoProductParser.FortumoDetails> details) {
+        this.products = Collections.unmodifiableList(products);
+        this.details = Collections.unmodifiableMap(details);
+    }
+
+    @NotNull
+    List<InappBaseProduct> getProducts() {
+        return products;
+    }
+
+    @NotNull
+    Map<String, FortumoBillingService.FortumoProductParser.FortumoDetails> getDetails() {
+        return details;
+    }
+
+    /**
+     * Reads the compiled catalog, parses the assets if it is missing or outdated.
+     */
+    @NotNull
+    static FortumoCatalog get(@NotNull final Context context, final boolean isNook)
+            throws IOException, XmlPullParserException {
+        final BinaryFile file = new BinaryFile(new File(context.getFilesDir(), FILE_NAME), MAGIC, VERSION);
+        final Key key = new Key(getAssetsCrc(context), getAppVersionCode(context), isNook);
+        final FortumoCatalog compiled = load(file, key);
+        if (compiled != null) {
+            return compiled;
+        }
+
+        final List<InappBaseProduct> products = new InappsXMLParser().parse(context).first;
+        final Map<String, FortumoBillingService.FortumoProductParser.FortumoDetails> details =
+                FortumoBillingService.FortumoProductParser.parse(context, isNook);
+        final FortumoCatalog catalog = new FortumoCatalog(products, details);
+        catalog.save(file, key);
+        return catalog;
+    }
+
+    private static long getAssetsCrc(@NotNull final Context context) throws IOException {
+        final CRC32 crc = new CRC32();
+        final byte[] buffer = new byte[8192];
+        for (final String fileName : new String[]{FortumoStore.IN_APP_PRODUCTS_FILE_NAME, FortumoStore.FORTUMO_DETAILS_FILE_NAME}) {
+            final InputStream inputStream = context.getAssets().open(fileName);
+            try {
+                int count;
+                while ((count = inputStream.read(buffer)) != -1) {
+                    crc.update(buffer, 0, count);
+                }
+            } finally {
+                BinaryFile.close(inputStream);
+            }
+        }
+        return crc.getValue();
+    }
+
+    private static int getAppVersionCode(@NotNull final Context context) {
+        try {
+            return context.getPackageManager().getPackageInfo(context.getPackageName(), 0).versionCode;
+        } catch (PackageManager.NameNotFoundException e) {
+            return 0;
+        }
+    }
+
+    private void save(@NotNull final BinaryFile file, @NotNull final Key key) {
+        final boolean saved = file.save(new BinaryFile.Writer() {
+            @Override
+            public void write(@NotNull final DataOutputStream data) throws IOException {
+                data.writeLong(key.assetsCrc);
+                data.writeInt(key.appVersionCode);
+                data.writeBoolean(key.isNook);
+                data.writeInt(products.size());
+                for (final InappBaseProduct product : products) {
+                    writeProduct(data, product);
+                }
+                data.writeInt(details.size());
+                for (final FortumoBillingService.FortumoProductParser.FortumoDetails fortumoDetails : details.values()) {
+                    writeString(data, fortumoDetails.getId());
+                    data.writeBoolean(fortumoDetails.isConsumable());
+                    writeString(data, fortumoDetails.getServiceId());
+                    writeString(data, fortumoDetails.getServiceInAppSecret());
+                    writeString(data, fortumoDetails.getNookServiceId());
+                    writeString(data, fortumoDetails.getNookInAppSecret());
+                }
+            }
+        });
+        if (saved) {
+            Logger.d("FortumoCatalog.save() products: ", products.size());
+        }
+    }
+
+    @Nullable
+    private static FortumoCatalog load(@NotNull final BinaryFile file, @NotNull final Key key) {
+        return file.load(new BinaryFile.Reader<FortumoCatalog>() {
+            @Nullable
+            @Override
+            public FortumoCatalog read(@NotNull final DataInputStream data) throws IOException {
+                return FortumoCatalog.read(data, key);
+            }
+        });
+    }
+
+    @Nullable
+    private static FortumoCatalog read(@NotNull final DataInputStream data, @NotNull final Key key) throws IOException {
+        if (data.readLong() != key.assetsCrc || data.readInt() != key.appVersionCode || data.readBoolean() != key.isNook) {
+            Logger.d("FortumoCatalog.read() catalog is outdated");
+            return null;
+        }
+        final int productCount = data.readInt();
+        final List<InappBaseProduct> products = new ArrayList<InappBaseProduct>(productCount);
+        for (int i = 0; i < productCount; i++) {
+            products.add(readProduct(data));
+        }
+        final int detailsCount = data.readInt();
+        final Map<String, FortumoBillingService.FortumoProductParser.FortumoDetails> details =
+                new HashMap<String, FortumoBillingService.FortumoProductParser.FortumoDetails>();
+        for (int i = 0; i < detailsCount; i++) {
+            final String id = readString(data);
+            final boolean consumable = data.readBoolean();
+            details.put(id, new FortumoBillingService.FortumoProductParser.FortumoDetails(id, consumable,
+                    readString(data), readString(data), readString(data), readString(data)));
+        }
+        Logger.d("FortumoCatalog.read() products: ", productCount);
+        return new FortumoCatalog(products, details);
+    }
+
+    private static void writeProduct(@NotNull final DataOutputStream data, @NotNull final InappBaseProduct product) throws IOException {
+        writeString(data, product.getProductId());
+        data.writeBoolean(product.isPublished());
+        writeString(data, product.getBaseTitle());
+        writeString(data, product.getBaseDescription());
+        data.writeBoolean(product.isAutoFill());
+        data.writeFloat(product.getBasePrice());
+        writeStringMap(data, product.getTitleLocalizations());
+        writeStringMap(data, product.getDescriptionLocalizations());
+        final Map<String, Float> countryPrices = product.getCountryPrices();
+        data.writeInt(countryPrices.size());
+        for (final Map.Entry<String, Float> entry : countryPrices.entrySet()) {
+            writeString(data, entry.getKey());
+            data.writeFloat(entry.getValue());
+        }
+    }
+
+    @NotNull
+    private static InappBaseProduct readProduct(@NotNull final DataInputStream data) throws IOException {
+        final InappBaseProduct product = new InappBaseProduct();
+        product.setProductId(readString(data));
+        product.setPublished(data.readBoolean() ? InappBaseProduct.PUBLISHED : InappBaseProduct.UNPUBLISHED);
+        product.setBaseTitle(readString(data));
+        product.setBaseDescription(readString(data));
+        product.setAutoFill(data.readBoolean());
+        product.setBasePrice(data.readFloat());
+        for (final Map.Entry<String, String> title : readStringMap(data).entrySet()) {
+            product.addTitleLocalization(title.getKey(), title.getValue());
+        }
+        for (final Map.Entry<String, String> description : readStringMap(data).entrySet()) {
+            product.addDescriptionLocalization(description.getKey(), description.getValue());
+        }
+        final int priceCount = data.readInt();
+        for (int i = 0; i < priceCount; i++) {
+            product.addCountryPrice(readString(data), data.readFloat());
+        }
+        return product;
+    }
+
+    private static final class Key {
+
+        private final long assetsCrc;
+
+        private final int appVersionCode;
+
+        private final boolean isNook;
+
+        private Key(final long assetsCrc, final int appVersionCode, final boolean isNook) {
+            this.assetsCrc = assetsCrc;
+            this.appVersionCode = appVersionCode;
+            this.isNook = isNook;
+        }
+    }
+}
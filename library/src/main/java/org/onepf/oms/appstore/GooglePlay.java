@@ -19,6 +19,7 @@ package org.onepf.oms.appstore;
 import java.util.List;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import android.content.pm.ResolveInfo;
 
@@ -84,11 +85,24 @@ public class GooglePlay extends DefaultAppstore {
      * - check Google Play Vending supports v3 items TYPE_IN-APP (false if Google Play account doesn't exist)
      * </ul>
      *
+     * Waits for the billing service up to {@link OpenIabHelper.Options#DEFAULT_STORE_CHECK_TIMEOUT_MS}.
+     *
      * @return true if Google Play is installed in the system
+     * @see #isBillingAvailable(String, long)
      */
     @Override
     public boolean isBillingAvailable(final String packageName) {
-        Logger.d("isBillingAvailable() packageName: ", packageName);
+        return isBillingAvailable(packageName, OpenIabHelper.Options.DEFAULT_STORE_CHECK_TIMEOUT_MS);
+    }
+
+    /**
+     * Same as {@link #isBillingAvailable(String)}, waits for the billing service only as long as the caller can.
+     *
+     * @param timeoutMs How long to wait for the billing service to answer in milliseconds.
+     * @return true if Google Play is installed in the system
+     */
+    public boolean isBillingAvailable(final String packageName, final long timeoutMs) {
+        Logger.d("isBillingAvailable() packageName: ", packageName, ", timeoutMs: ", timeoutMs);
         if (billingAvailable != null) {
             return billingAvailable; // return previosly checked result
         }
@@ -113,8 +127,13 @@ public class GooglePlay extends DefaultAppstore {
 
         final CountDownLatch latch = new CountDownLatch(1);
         final boolean[] result = new boolean[1];
+        // Guards against unbinding twice when the check times out
+        final AtomicBoolean finished = new AtomicBoolean();
         final ServiceConnection serviceConnection = new ServiceConnection() {
             public void onServiceConnected(ComponentName name, IBinder service) {
+                if (finished.get()) {
+                    return;
+                }
                 final IInAppBillingService mService = IInAppBillingService.Stub.asInterface(service);
                 try {
                     final int response = mService.isBillingSupported(3, packageName, IabHelper.ITEM_TYPE_INAPP);
@@ -123,8 +142,10 @@ public class GooglePlay extends DefaultAppstore {
                     result[0] = false;
                     Logger.e("isBillingAvailable() RemoteException while setting up in-app billing", e);
                 } finally {
-                    latch.countDown();
-                    context.unbindService(this);
+                    if (finished.compareAndSet(false, true)) {
+                        latch.countDown();
+                        context.unbindService(this);
+                    }
                 }
                 Logger.d("isBillingAvailable() Google Play result: ", result[0]);
             }
@@ -132,10 +153,18 @@ public class GooglePlay extends DefaultAppstore {
             public void onServiceDisconnected(ComponentName name) {/*do nothing*/}
         };
         if (context.bindService(intent, serviceConnection, Context.BIND_AUTO_CREATE)) {
+            boolean answered = false;
             try {
-                latch.await();
+                answered = latch.await(timeoutMs, TimeUnit.MILLISECONDS);
             } catch (InterruptedException e) {
                 Logger.e("isBillingAvailable() InterruptedException while setting up in-app billing", e);
+                Thread.currentThread().interrupt();
+            }
+            if (!answered && finished.compareAndSet(false, true)) {
+                // Don't remember the result, the check can be repeated later
+                Logger.e("isBillingAvailable() Google Play billing service didn't answer in time.");
+                context.unbindService(serviceConnection);
+                return false;
             }
         } else {
             result[0] = false;
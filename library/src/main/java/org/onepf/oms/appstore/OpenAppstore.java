@@ -38,6 +38,22 @@ import com.android.vending.billing.IInAppBillingService;
  */
 public class OpenAppstore extends DefaultAppstore {
 
+    /**
+     * Version of the description returned by {@link IOpenAppstore#describe(String)}.
+     */
+    public static final int DESCRIPTION_VERSION = 1;
+
+    // Keys of the description, see IOpenAppstore.aidl
+    public static final String DESCRIPTION_KEY_VERSION = "DESCRIPTION_VERSION";
+    public static final String DESCRIPTION_KEY_APPSTORE_NAME = "APPSTORE_NAME";
+    public static final String DESCRIPTION_KEY_BILLING_SERVICE_INTENT = "BILLING_SERVICE_INTENT";
+    public static final String DESCRIPTION_KEY_PACKAGE_INSTALLER = "IS_PACKAGE_INSTALLER";
+    public static final String DESCRIPTION_KEY_BILLING_AVAILABLE = "IS_BILLING_AVAILABLE";
+    public static final String DESCRIPTION_KEY_PACKAGE_VERSION = "PACKAGE_VERSION";
+
+    // Package the description was requested for, added locally
+    private static final String DESCRIPTION_KEY_PACKAGE_NAME = "PACKAGE_NAME";
+
     private Context context;
     private ServiceConnection serviceConn;
     private IOpenAppstore openAppstoreService;
@@ -54,10 +70,35 @@ public class OpenAppstore extends DefaultAppstore {
      */
     public ComponentName componentName;
 
+    /**
+     * Store description, values for the described package are answered without calling the store.
+     */
+    @Nullable
+    private final Bundle description;
+
     /**
      * @param publicKey - used for signature verification. If <b>null</b> verification is disabled
      */
     public OpenAppstore(@NotNull final Context context, final String appstoreName, final IOpenAppstore openAppstoreService, @Nullable final Intent billingIntent, String publicKey, final ServiceConnection serviceConn) {
+        this(context, appstoreName, openAppstoreService, billingIntent, publicKey, serviceConn, null);
+    }
+
+    /**
+     * @param description - store description returned by {@link #describe(IOpenAppstore, String)}
+     * @param publicKey   - used for signature verification. If <b>null</b> verification is disabled
+     */
+    public OpenAppstore(@NotNull final Context context, final IOpenAppstore openAppstoreService, @NotNull final Bundle description, String publicKey, final ServiceConnection serviceConn) {
+        this(context,
+                description.getString(DESCRIPTION_KEY_APPSTORE_NAME),
+                openAppstoreService,
+                (Intent) description.getParcelable(DESCRIPTION_KEY_BILLING_SERVICE_INTENT),
+                publicKey,
+                serviceConn,
+                description);
+    }
+
+    private OpenAppstore(@NotNull final Context context, final String appstoreName, final IOpenAppstore openAppstoreService, @Nullable final Intent billingIntent, String publicKey, final ServiceConnection serviceConn, @Nullable final Bundle description) {
+        this.description = description;
         this.context = context;
         this.appstoreName = appstoreName;
         this.openAppstoreService = openAppstoreService;
@@ -90,8 +131,40 @@ public class OpenAppstore extends DefaultAppstore {
         }
     }
 
+    /**
+     * Requests the description of the store for the package.
+     * <p/>
+     * Stores supporting {@link IOpenAppstore#describe(String)} are described in a single transaction,
+     * for older stores the name and the billing service intent are requested separately.
+     *
+     * @return The description with at least {@link #DESCRIPTION_KEY_APPSTORE_NAME} and {@link #DESCRIPTION_KEY_BILLING_SERVICE_INTENT}.
+     */
+    @NotNull
+    public static Bundle describe(@NotNull final IOpenAppstore openAppstoreService, @NotNull final String packageName)
+            throws RemoteException {
+        Bundle description = openAppstoreService.describe(packageName);
+        if (description == null || description.getInt(DESCRIPTION_KEY_VERSION) < DESCRIPTION_VERSION) {
+            Logger.d("describe() store doesn't support description, using legacy calls");
+            description = new Bundle();
+            description.putString(DESCRIPTION_KEY_APPSTORE_NAME, openAppstoreService.getAppstoreName());
+            description.putParcelable(DESCRIPTION_KEY_BILLING_SERVICE_INTENT, openAppstoreService.getBillingServiceIntent());
+        }
+        description.putString(DESCRIPTION_KEY_PACKAGE_NAME, packageName);
+        return description;
+    }
+
+    private boolean isDescribed(final String packageName, @NotNull final String key) {
+        return description != null
+                && description.containsKey(key)
+                && packageName != null
+                && packageName.equals(description.getString(DESCRIPTION_KEY_PACKAGE_NAME));
+    }
+
     @Override
     public boolean isPackageInstaller(String packageName) {
+        if (isDescribed(packageName, DESCRIPTION_KEY_PACKAGE_INSTALLER)) {
+            return description.getBoolean(DESCRIPTION_KEY_PACKAGE_INSTALLER);
+        }
         try {
             return openAppstoreService.isPackageInstaller(packageName);
         } catch (RemoteException e) {
@@ -102,6 +175,9 @@ public class OpenAppstore extends DefaultAppstore {
 
     @Override
     public boolean isBillingAvailable(String packageName) {
+        if (isDescribed(packageName, DESCRIPTION_KEY_BILLING_AVAILABLE)) {
+            return description.getBoolean(DESCRIPTION_KEY_BILLING_AVAILABLE);
+        }
         try {
             return openAppstoreService.isBillingAvailable(packageName);
         } catch (RemoteException e) {
@@ -112,6 +188,9 @@ public class OpenAppstore extends DefaultAppstore {
 
     @Override
     public int getPackageVersion(String packageName) {
+        if (isDescribed(packageName, DESCRIPTION_KEY_PACKAGE_VERSION)) {
+            return description.getInt(DESCRIPTION_KEY_PACKAGE_VERSION);
+        }
         try {
             return openAppstoreService.getPackageVersion(packageName);
         } catch (RemoteException e) {
@@ -17,13 +17,23 @@
 package org.onepf.oms.appstore;
 
 import android.app.Activity;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.content.SharedPreferences;
+import android.os.IBinder;
+
+import com.sec.android.iap.IAPConnector;
 
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.onepf.oms.Appstore;
 import org.onepf.oms.AppstoreInAppBillingService;
 import org.onepf.oms.DefaultAppstore;
 import org.onepf.oms.OpenIabHelper;
 
+import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.Signature;
 import android.text.TextUtils;
@@ -35,9 +45,12 @@ import org.onepf.oms.appstore.googleUtils.IabResult;
 import org.onepf.oms.appstore.googleUtils.Inventory;
 import org.onepf.oms.util.CollectionUtils;
 import org.onepf.oms.util.Logger;
+import org.onepf.oms.util.ServiceConnectionPool;
 import org.onepf.oms.util.Utils;
 
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * <p>
@@ -70,6 +83,12 @@ public class SamsungApps extends DefaultAppstore {
     public static final String IAP_PACKAGE_NAME = "com.sec.android.iap";
     public static final String IAP_SERVICE_NAME = "com.sec.android.iap.service.iapService";
 
+    private static final String SHARED_PREFS_SAMSUNG = "onepf_shared_prefs_samsung";
+    private static final String KEY_PROBE_IAP_VERSION = "probe_iap_version";
+    private static final String KEY_PROBE_VERDICT = "probe_verdict";
+    // Time to wait for the IAP service connection in the light probe
+    private static final long PROBE_BIND_TIMEOUT_MS = 5000;
+
     private AppstoreInAppBillingService billingService;
     private Activity activity;
     private OpenIabHelper.Options options;
@@ -103,13 +122,16 @@ public class SamsungApps extends DefaultAppstore {
         }
 
         boolean iapInstalled = false;
+        int iapVersion = 0;
 
         try {
             PackageManager pm = activity.getPackageManager();
             pm.getApplicationInfo(IAP_PACKAGE_NAME, PackageManager.GET_META_DATA);
-            Signature[] signatures = activity.getPackageManager().getPackageInfo(IAP_PACKAGE_NAME, PackageManager.GET_SIGNATURES).signatures;
+            PackageInfo packageInfo = activity.getPackageManager().getPackageInfo(IAP_PACKAGE_NAME, PackageManager.GET_SIGNATURES);
+            Signature[] signatures = packageInfo.signatures;
             if (signatures[0].hashCode() == IAP_SIGNATURE_HASHCODE) {
                 iapInstalled = true;
+                iapVersion = packageInfo.versionCode;
             }
         } catch (Exception e) {
             Logger.d("isBillingAvailable() Samsung IAP Service is not installed");
@@ -125,44 +147,110 @@ public class SamsungApps extends DefaultAppstore {
             return true;
         }
 
+        if (options.isSamsungLightProbeEnabled()) {
+            isBillingAvailable = probeIapService(iapVersion);
+            return isBillingAvailable;
+        }
+
         isBillingAvailable = false;
-        final CountDownLatch mainLatch = new CountDownLatch(1);
+        final CountDownLatch setupLatch = new CountDownLatch(1);
+        final AtomicBoolean setupSuccessful = new AtomicBoolean();
         getInAppBillingService().startSetup(new IabHelper.OnIabSetupFinishedListener() {
             public void onIabSetupFinished(@NotNull final IabResult result) {
-                if (result.isSuccess()) {
-                    new Thread(new Runnable() {
-                        public void run() {
-                            try {
-                                Inventory inventory = getInAppBillingService()
-                                        .queryInventory(true, SkuManager.getInstance()
-                                                .getAllStoreSkus(OpenIabHelper.NAME_SAMSUNG), null);
-                                if (inventory != null && !CollectionUtils.isEmpty(inventory.getSkuMap())) {
-                                    isBillingAvailable = true;
-                                }
-                            } catch (IabException e) {
-                                Logger.e("isBillingAvailable() failed", e);
-                            } finally {
-                                getInAppBillingService().dispose();
-                                mainLatch.countDown();
-                            }
-                        }
-                    }).start();
-                } else {
-                    getInAppBillingService().dispose();
-                    mainLatch.countDown();
-                }
+                setupSuccessful.set(result.isSuccess());
+                setupLatch.countDown();
             }
         });
 
         try {
-            mainLatch.await();
+            setupLatch.await();
+            if (setupSuccessful.get()) {
+                // Queried on the calling thread, it's already a background one
+                Inventory inventory = getInAppBillingService()
+                        .queryInventory(true, SkuManager.getInstance()
+                                .getAllStoreSkus(OpenIabHelper.NAME_SAMSUNG), null);
+                if (inventory != null && !CollectionUtils.isEmpty(inventory.getSkuMap())) {
+                    isBillingAvailable = true;
+                }
+            }
+        } catch (IabException e) {
+            Logger.e("isBillingAvailable() failed", e);
         } catch (InterruptedException e) {
             Logger.e("isBillingAvailable() interrupted", e);
+            Thread.currentThread().interrupt();
+        } finally {
+            getInAppBillingService().dispose();
         }
 
         return isBillingAvailable;
     }
 
+    /**
+     * Checks that the IAP service can be bound. A positive verdict is saved with the IAP package version
+     * and reused until the package is updated. A negative one isn't saved, the service may be disabled
+     * or updating only for now.
+     */
+    private boolean probeIapService(final int iapVersion) {
+        final SharedPreferences sharedPreferences = activity.getSharedPreferences(SHARED_PREFS_SAMSUNG, Context.MODE_PRIVATE);
+        if (sharedPreferences.getBoolean(KEY_PROBE_VERDICT, false)
+                && sharedPreferences.getInt(KEY_PROBE_IAP_VERSION, 0) == iapVersion) {
+            Logger.d("probeIapService() saved positive verdict, IAP version: ", iapVersion);
+            return true;
+        }
+
+        final Boolean verdict = bindIapService();
+        Logger.d("probeIapService() verdict: ", verdict, ", IAP version: ", iapVersion);
+        if (verdict == null || !verdict) {
+            return false;
+        }
+        sharedPreferences.edit()
+                .putInt(KEY_PROBE_IAP_VERSION, iapVersion)
+                .putBoolean(KEY_PROBE_VERDICT, true)
+                .apply();
+        return true;
+    }
+
+    /**
+     * Binds the IAP service through the {@link ServiceConnectionPool}, so the billing service
+     * created right after the check reuses the connection.
+     *
+     * @return true if the service was connected, false if it can't be bound, null if it didn't connect in time.
+     */
+    @Nullable
+    private Boolean bindIapService() {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final boolean[] connected = new boolean[1];
+        final ServiceConnection serviceConnection = new ServiceConnection() {
+            @Override
+            public void onServiceConnected(ComponentName name, IBinder service) {
+                connected[0] = IAPConnector.Stub.asInterface(service) != null;
+                latch.countDown();
+            }
+
+            @Override
+            public void onServiceDisconnected(ComponentName name) {
+            }
+        };
+
+        final ServiceConnectionPool serviceConnectionPool = ServiceConnectionPool.getInstance(activity);
+        if (!serviceConnectionPool.bind(new Intent(IAP_SERVICE_NAME), serviceConnection)) {
+            return false;
+        }
+        try {
+            if (!latch.await(PROBE_BIND_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                Logger.w("bindIapService() IAP service didn't connect in time");
+                return null;
+            }
+            return connected[0];
+        } catch (InterruptedException e) {
+            Logger.e("bindIapService() interrupted", e);
+            Thread.currentThread().interrupt();
+            return null;
+        } finally {
+            serviceConnectionPool.unbind(serviceConnection);
+        }
+    }
+
     @Override
     public int getPackageVersion(String packageName) {
         return Appstore.PACKAGE_VERSION_UNDEFINED;
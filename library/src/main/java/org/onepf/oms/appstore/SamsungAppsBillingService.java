@@ -20,9 +20,12 @@ import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -39,14 +42,21 @@ import org.onepf.oms.appstore.googleUtils.IabResult;
 import org.onepf.oms.appstore.googleUtils.Inventory;
 import org.onepf.oms.appstore.googleUtils.Purchase;
 import org.onepf.oms.appstore.googleUtils.SkuDetails;
+import org.onepf.oms.appstore.samsungUtils.SamsungInboxStore;
+import org.onepf.oms.appstore.samsungUtils.SamsungPagedQuery;
 import org.onepf.oms.util.CollectionUtils;
 import org.onepf.oms.util.Logger;
+import org.onepf.oms.util.ServiceConnectionPool;
+import org.onepf.oms.util.TaskExecutors;
 
+import android.Manifest;
+import android.accounts.Account;
+import android.accounts.AccountManager;
 import android.app.Activity;
 import android.content.ComponentName;
-import android.content.Context;
 import android.content.Intent;
 import android.content.ServiceConnection;
+import android.content.pm.PackageManager;
 import android.content.pm.ResolveInfo;
 import android.os.Bundle;
 import android.os.IBinder;
@@ -62,6 +72,15 @@ import com.sec.android.iap.IAPConnector;
 public class SamsungAppsBillingService implements AppstoreInAppBillingService {
     private static final int ITEM_RESPONSE_COUNT = 100;
 
+    // Pages of an item group requested ahead
+    private static final int QUERY_PIPELINE_DEPTH = 2;
+
+    private static final String INBOX_FULL_START_DATE = "19700101";
+    // Inbox dates have day precision, a sync starts a day before the previous one to not miss items
+    private static final long INBOX_SYNC_OVERLAP_MS = TimeUnit.DAYS.toMillis(1);
+    // Interval of full inbox syncs, to drop items removed from the inbox
+    private static final long INBOX_FULL_SYNC_INTERVAL_MS = TimeUnit.DAYS.toMillis(7);
+
     // IAP Modes are used for IAPConnector.init() 
     public static final int IAP_MODE_COMMERCIAL = 0;
     public static final int IAP_MODE_TEST_SUCCESS = 1;
@@ -70,6 +89,8 @@ public class SamsungAppsBillingService implements AppstoreInAppBillingService {
 
     public static final String IAP_SERVICE_NAME = "com.sec.android.iap.service.iapService";
     public static final String ACCOUNT_ACTIVITY_NAME = "com.sec.android.iap.activity.AccountActivity";
+    // Account type of Samsung accounts in AccountManager
+    private static final String SAMSUNG_ACCOUNT_TYPE = "com.osp.app.signin";
     public static final String PAYMENT_ACTIVITY_NAME = "com.sec.android.iap.activity.PaymentMethodListActivity";
     // ========================================================================
     // BILLING RESPONSE CODE
@@ -151,9 +172,14 @@ public class SamsungAppsBillingService implements AppstoreInAppBillingService {
     private String mItemGroupId;
     private String mExtraData;
 
+    // Null if inbox items aren't persisted, see Options#isSamsungInboxPersisted()
+    @Nullable
+    private final SamsungInboxStore inboxStore;
+
     public SamsungAppsBillingService(Activity context, OpenIabHelper.Options options) {
         this.activity = context;
         this.options = options;
+        this.inboxStore = options.isSamsungInboxPersisted() ? new SamsungInboxStore(context, CURRENT_MODE) : null;
     }
 
     @Override
@@ -170,10 +196,6 @@ public class SamsungAppsBillingService implements AppstoreInAppBillingService {
     public Inventory queryInventory(boolean querySkuDetails, @Nullable List<String> moreItemSkus, @Nullable List<String> moreSubsSkus) throws IabException {
         Inventory inventory = new Inventory();
 
-        Date date = new Date();
-        SimpleDateFormat simpleDateFormat = new SimpleDateFormat("yyyyMMdd", Locale.getDefault());
-        String today = simpleDateFormat.format(date);
-
         /* Get all itemGroupIds from existing skus */
         Set<String> itemGroupIds = new HashSet<String>();
         final List<String> allStoreSkus = SkuManager.getInstance().getAllStoreSkus(OpenIabHelper.NAME_SAMSUNG);
@@ -183,61 +205,129 @@ public class SamsungAppsBillingService implements AppstoreInAppBillingService {
             }
         }
 
-        /* Query getItemsInbox for each itemGroupId */
-        for (String itemGroupId : itemGroupIds) {
-            int startNum = 1;
-            int endNum = ITEM_RESPONSE_COUNT;
-            Bundle itemInbox;
-            do {
-                itemInbox = null;
-                try {
-                    Logger.d("getItemsInbox, startNum = ", startNum, ", endNum = ", endNum);
-                    itemInbox = mIapConnector.getItemsInbox(activity.getPackageName(), itemGroupId, startNum, endNum, "19700101", today);
-                } catch (RemoteException e) {
-                    Logger.e("Samsung getItemsInbox: ", e);
-                }
-                startNum += ITEM_RESPONSE_COUNT;
-                endNum += ITEM_RESPONSE_COUNT;
+        try {
+            for (Map.Entry<String, List<String>> inbox : queryItemsInbox(itemGroupIds).entrySet()) {
+                processItems(inbox.getValue(), inbox.getKey(), inventory, querySkuDetails, true, false, null);
             }
-            while (processItemsBundle(itemInbox, itemGroupId, inventory, querySkuDetails, true, false, null));
-        }
-        if (querySkuDetails) {
-            Set<String> queryItemGroupIds = new HashSet<String>();
-            Set<String> queryItemIds = new HashSet<String>();
-            if (moreItemSkus != null) {
-                for (String sku : moreItemSkus) {
-                    queryItemGroupIds.add(getItemGroupId(sku));
-                    queryItemIds.add(getItemId(sku));
+            if (querySkuDetails) {
+                Set<String> queryItemGroupIds = new HashSet<String>();
+                Set<String> queryItemIds = new HashSet<String>();
+                if (moreItemSkus != null) {
+                    for (String sku : moreItemSkus) {
+                        queryItemGroupIds.add(getItemGroupId(sku));
+                        queryItemIds.add(getItemId(sku));
+                    }
                 }
-            }
-            if (moreSubsSkus != null) {
-                for (String sku : moreSubsSkus) {
-                    queryItemGroupIds.add(getItemGroupId(sku));
-                    queryItemIds.add(getItemId(sku));
+                if (moreSubsSkus != null) {
+                    for (String sku : moreSubsSkus) {
+                        queryItemGroupIds.add(getItemGroupId(sku));
+                        queryItemIds.add(getItemId(sku));
+                    }
                 }
-            }
-            if (!queryItemIds.isEmpty()) {
-                for (String itemGroupId : queryItemGroupIds) {
-                    int startNum = 1;
-                    int endNum = ITEM_RESPONSE_COUNT;
-                    Bundle itemList;
-                    do {
-                        itemList = null;
-                        try {
-                            itemList = mIapConnector.getItemList(CURRENT_MODE, activity.getPackageName(), itemGroupId, startNum, endNum, ITEM_TYPE_ALL);
-                        } catch (RemoteException e) {
-                            Logger.e("Samsung getItemList: ", e);
-                        }
-                        startNum += ITEM_RESPONSE_COUNT;
-                        endNum += ITEM_RESPONSE_COUNT;
+                if (!queryItemIds.isEmpty()) {
+                    final Map<String, SamsungPagedQuery.Result> itemLists = newPagedQuery().query(queryItemGroupIds,
+                            new SamsungPagedQuery.PageLoader() {
+                                @Nullable
+                                @Override
+                                public Bundle loadPage(@NotNull String itemGroupId, int startNum, int endNum) throws RemoteException {
+                                    final IAPConnector iapConnector = mIapConnector;
+                                    return iapConnector == null ? null : iapConnector.getItemList(CURRENT_MODE,
+                                            activity.getPackageName(), itemGroupId, startNum, endNum, ITEM_TYPE_ALL);
+                                }
+                            });
+                    for (Map.Entry<String, SamsungPagedQuery.Result> itemList : itemLists.entrySet()) {
+                        processItems(itemList.getValue().getItems(), itemList.getKey(), inventory, querySkuDetails, false, true, queryItemIds);
                     }
-                    while (processItemsBundle(itemList, itemGroupId, inventory, querySkuDetails, false, true, queryItemIds));
                 }
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IabException(IabHelper.BILLING_RESPONSE_RESULT_ERROR, "Inventory query interrupted", e);
         }
         return inventory;
     }
 
+    /**
+     * Requests inbox items of the item groups. If inbox items are persisted, only items since the previous sync
+     * are requested for groups synced recently, they are merged with the stored items.
+     *
+     * @return Inbox items by item group.
+     */
+    @NotNull
+    private Map<String, List<String>> queryItemsInbox(@NotNull Set<String> itemGroupIds) throws InterruptedException {
+        final long syncTime = System.currentTimeMillis();
+        final SimpleDateFormat simpleDateFormat = new SimpleDateFormat("yyyyMMdd", Locale.getDefault());
+        final String today = simpleDateFormat.format(new Date(syncTime));
+
+        final Map<String, SamsungInboxStore.Inbox> knownInboxes = new LinkedHashMap<String, SamsungInboxStore.Inbox>();
+        final Map<String, String> startDates = new LinkedHashMap<String, String>();
+        for (String itemGroupId : itemGroupIds) {
+            final SamsungInboxStore.Inbox inbox = inboxStore == null ? null : inboxStore.load(itemGroupId);
+            if (inbox != null && inbox.getSyncTime() <= syncTime
+                    && syncTime - inbox.getFullSyncTime() < INBOX_FULL_SYNC_INTERVAL_MS) {
+                knownInboxes.put(itemGroupId, inbox);
+                startDates.put(itemGroupId, simpleDateFormat.format(new Date(inbox.getSyncTime() - INBOX_SYNC_OVERLAP_MS)));
+            } else {
+                startDates.put(itemGroupId, INBOX_FULL_START_DATE);
+            }
+        }
+        Logger.d("queryItemsInbox() incremental: ", knownInboxes.keySet(), ", full: ", startDates.size() - knownInboxes.size());
+
+        final Map<String, SamsungPagedQuery.Result> results = newPagedQuery().query(itemGroupIds,
+                new SamsungPagedQuery.PageLoader() {
+                    @Nullable
+                    @Override
+                    public Bundle loadPage(@NotNull String itemGroupId, int startNum, int endNum) throws RemoteException {
+                        final IAPConnector iapConnector = mIapConnector;
+                        return iapConnector == null ? null : iapConnector.getItemsInbox(activity.getPackageName(),
+                                itemGroupId, startNum, endNum, startDates.get(itemGroupId), today);
+                    }
+                });
+
+        final Map<String, List<String>> inboxes = new LinkedHashMap<String, List<String>>();
+        for (Map.Entry<String, SamsungPagedQuery.Result> entry : results.entrySet()) {
+            final String itemGroupId = entry.getKey();
+            final SamsungPagedQuery.Result result = entry.getValue();
+            final SamsungInboxStore.Inbox knownInbox = knownInboxes.get(itemGroupId);
+
+            // Items are identified by purchase id, received items replace the known ones
+            final Map<String, String> items = new LinkedHashMap<String, String>();
+            if (knownInbox != null) {
+                putItems(items, knownInbox.getItems());
+            }
+            putItems(items, result.getItems());
+            final List<String> itemList = new ArrayList<String>(items.values());
+            inboxes.put(itemGroupId, itemList);
+
+            if (inboxStore == null) {
+                continue;
+            }
+            if (result.isComplete()) {
+                final long fullSyncTime = knownInbox == null ? syncTime : knownInbox.getFullSyncTime();
+                inboxStore.save(itemGroupId, syncTime, fullSyncTime, itemList);
+            } else {
+                Logger.w("queryItemsInbox() inbox wasn't fully received, not stored: ", itemGroupId);
+            }
+        }
+        return inboxes;
+    }
+
+    private static void putItems(@NotNull Map<String, String> items, @NotNull List<String> newItems) {
+        for (String item : newItems) {
+            try {
+                items.put(new JSONObject(item).getString(JSON_KEY_PURCHASE_ID), item);
+            } catch (JSONException e) {
+                Logger.e("JSON parse error", e);
+            }
+        }
+    }
+
+    @NotNull
+    private SamsungPagedQuery newPagedQuery() {
+        // Page requests run on the shared pool, so they can't wait for tasks of the caller
+        return new SamsungPagedQuery(TaskExecutors.getRequestExecutor(), ITEM_RESPONSE_COUNT, QUERY_PIPELINE_DEPTH);
+    }
+
     @Override
     public void launchPurchaseFlow(@NotNull Activity activity, @NotNull String sku, String itemType, int requestCode, OnIabPurchaseFinishedListener listener, String extraData) {
         String itemGroupId = getItemGroupId(sku);
@@ -265,6 +355,13 @@ public class SamsungAppsBillingService implements AppstoreInAppBillingService {
     @Override
     public boolean handleActivityResult(int requestCode, int resultCode, @Nullable Intent data) {
         if (requestCode == options.getSamsungCertificationRequestCode()) {
+            if (inboxStore != null) {
+                if (resultCode == Activity.RESULT_OK) {
+                    inboxStore.setAccount(getSamsungAccountName());
+                } else {
+                    inboxStore.clear();
+                }
+            }
             if (resultCode == Activity.RESULT_OK) {
                 bindIapService();
             } else if (resultCode == Activity.RESULT_CANCELED) {
@@ -344,13 +441,26 @@ public class SamsungAppsBillingService implements AppstoreInAppBillingService {
     @Override
     public void dispose() {
         if (serviceConnection != null && isBound) {
-            activity.getApplicationContext().unbindService(serviceConnection);
+            ServiceConnectionPool.getInstance(activity).unbind(serviceConnection);
             isBound = false;
         }
         serviceConnection = null;
         mIapConnector = null;
     }
 
+    /**
+     * @return The name of the Samsung account, null if it can't be read.
+     */
+    @Nullable
+    private String getSamsungAccountName() {
+        if (activity.checkCallingOrSelfPermission(Manifest.permission.GET_ACCOUNTS) != PackageManager.PERMISSION_GRANTED) {
+            Logger.d("getSamsungAccountName() no GET_ACCOUNTS permission, inbox isn't stored");
+            return null;
+        }
+        final Account[] accounts = AccountManager.get(activity).getAccountsByType(SAMSUNG_ACCOUNT_TYPE);
+        return accounts.length == 1 ? accounts[0].name : null;
+    }
+
     private String getItemGroupId(@NotNull String sku) {
         SamsungApps.checkSku(sku);
         String[] skuParts = sku.split("/");
@@ -390,7 +500,8 @@ public class SamsungAppsBillingService implements AppstoreInAppBillingService {
             final ComponentName component = new ComponentName(packageName, className);
             final Intent serviceIntent = new Intent(implicitIntent);
             serviceIntent.setComponent(component);
-            isBound = activity.getApplicationContext().bindService(serviceIntent, serviceConnection, Context.BIND_AUTO_CREATE);
+            // Shares the connection opened by the billing availability check
+            isBound = ServiceConnectionPool.getInstance(activity).bind(serviceIntent, serviceConnection);
         } else {
             isBound = false;
         }
@@ -416,12 +527,7 @@ public class SamsungAppsBillingService implements AppstoreInAppBillingService {
         setupListener.onIabSetupFinished(new IabResult(errorCode, errorMsg));
     }
 
-    private boolean processItemsBundle(@Nullable Bundle itemsBundle, String itemGroupId, @NotNull Inventory inventory, boolean querySkuDetails, boolean addPurchase, boolean addConsumable, @Nullable Set<String> queryItemIds) {
-        if (itemsBundle == null || itemsBundle.getInt(KEY_NAME_STATUS_CODE) != IAP_ERROR_NONE) {
-            return false;
-        }
-
-        ArrayList<String> nameResults = itemsBundle.getStringArrayList(KEY_NAME_RESULT_LIST);
+    private void processItems(@NotNull List<String> nameResults, String itemGroupId, @NotNull Inventory inventory, boolean querySkuDetails, boolean addPurchase, boolean addConsumable, @Nullable Set<String> queryItemIds) {
         for (String nameResult : nameResults) {
             try {
                 JSONObject item = new JSONObject(nameResult);
@@ -462,7 +568,6 @@ public class SamsungAppsBillingService implements AppstoreInAppBillingService {
                 Logger.e("JSON parse error", e);
             }
         }
-        return nameResults.size() == ITEM_RESPONSE_COUNT;
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2012-2014 One Platform Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onepf.oms.appstore.amazonUtils;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.text.TextUtils;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.onepf.oms.OpenIabHelper;
+import org.onepf.oms.appstore.googleUtils.Purchase;
+import org.onepf.oms.util.Logger;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Persists purchases built from Amazon receipts for a single user, so inventory queries can request
+ * only the purchase updates since the last query.
+ * <p/>
+ * The stored purchases are valid only for the user they were saved for. The store is used only if
+ * {@link OpenIabHelper.Options#isAmazonReceiptsPersisted()} is set.
+ */
+public final class AmazonReceiptStore {
+
+    private static final String SHARED_PREFS_AMAZON_RECEIPTS = "onepf_shared_prefs_amazon_receipts";
+
+    private static final String KEY_VERSION = "version";
+    private static final String KEY_USER_ID = "user_id";
+    private static final String KEY_RECEIPTS = "receipts";
+
+    private static final String JSON_KEY_SKU = "sku";
+    private static final String JSON_KEY_TOKEN = "token";
+    private static final String JSON_KEY_ITEM_TYPE = "itemType";
+
+    private static final int VERSION = 1;
+
+    @NotNull
+    private final SharedPreferences sharedPreferences;
+
+    public AmazonReceiptStore(@NotNull final Context context) {
+        sharedPreferences = context.getSharedPreferences(SHARED_PREFS_AMAZON_RECEIPTS, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * @return Purchases saved for the user, null if there are none or they are invalid.
+     */
+    @Nullable
+    public synchronized List<Purchase> load(@NotNull final String userId) {
+        if (sharedPreferences.getInt(KEY_VERSION, 0) != VERSION
+                || !TextUtils.equals(userId, sharedPreferences.getString(KEY_USER_ID, null))) {
+            return null;
+        }
+        final String receipts = sharedPreferences.getString(KEY_RECEIPTS, null);
+        if (receipts == null) {
+            return null;
+        }
+        try {
+            final JSONArray jsonArray = new JSONArray(receipts);
+            final List<Purchase> purchases = new ArrayList<Purchase>(jsonArray.length());
+            for (int i = 0; i < jsonArray.length(); i++) {
+                final JSONObject json = jsonArray.getJSONObject(i);
+                final Purchase purchase = new Purchase(OpenIabHelper.NAME_AMAZON);
+                purchase.setSku(json.getString(JSON_KEY_SKU));
+                purchase.setToken(json.getString(JSON_KEY_TOKEN));
+                purchase.setItemType(json.optString(JSON_KEY_ITEM_TYPE, null));
+                purchases.add(purchase);
+            }
+            return purchases;
+        } catch (JSONException e) {
+            Logger.e("AmazonReceiptStore.load() invalid receipts, cleared", e);
+            clear();
+            return null;
+        }
+    }
+
+    public synchronized void save(@NotNull final String userId, @NotNull final Collection<Purchase> purchases) {
+        final JSONArray jsonArray = new JSONArray();
+        try {
+            for (final Purchase purchase : purchases) {
+                final JSONObject json = new JSONObject();
+                json.put(JSON_KEY_SKU, purchase.getSku());
+                json.put(JSON_KEY_TOKEN, purchase.getToken());
+                json.put(JSON_KEY_ITEM_TYPE, purchase.getItemType());
+                jsonArray.put(json);
+            }
+        } catch (JSONException e) {
+            Logger.e("AmazonReceiptStore.save() failed, cleared", e);
+            clear();
+            return;
+        }
+        sharedPreferences.edit()
+                .putInt(KEY_VERSION, VERSION)
+                .putString(KEY_USER_ID, userId)
+                .putString(KEY_RECEIPTS, jsonArray.toString())
+                .apply();
+    }
+
+    /**
+     * Removes the purchase with the receipt, e.g. after fulfillment.
+     */
+    public synchronized void remove(@NotNull final String token) {
+        final String userId = sharedPreferences.getString(KEY_USER_ID, null);
+        if (userId == null) {
+            return;
+        }
+        final List<Purchase> purchases = load(userId);
+        if (purchases == null) {
+            return;
+        }
+        final List<Purchase> remaining = new ArrayList<Purchase>(purchases.size());
+        for (final Purchase purchase : purchases) {
+            if (!token.equals(purchase.getToken())) {
+                remaining.add(purchase);
+            }
+        }
+        if (remaining.size() != purchases.size()) {
+            save(userId, remaining);
+        }
+    }
+
+    /**
+     * Forces the next query to request the full purchase history.
+     */
+    public synchronized void clear() {
+        sharedPreferences.edit().clear().apply();
+    }
+}
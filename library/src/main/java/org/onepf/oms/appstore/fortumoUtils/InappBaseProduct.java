@@ -20,9 +20,11 @@ import android.text.TextUtils;
 
 import org.jetbrains.annotations.NotNull;
 
+import java.util.Collections;
 import java.util.Currency;
 import java.util.HashMap;
 import java.util.Locale;
+import java.util.Map;
 
 /**
  * @author akarimova@onepf.org
@@ -129,6 +131,21 @@ public class InappBaseProduct {
         return getDescriptionByLocale(Locale.getDefault().toString());
     }
 
+    @NotNull
+    public Map<String, String> getTitleLocalizations() {
+        return Collections.unmodifiableMap(localeToTitleMap);
+    }
+
+    @NotNull
+    public Map<String, String> getDescriptionLocalizations() {
+        return Collections.unmodifiableMap(localeToDescriptionMap);
+    }
+
+    @NotNull
+    public Map<String, Float> getCountryPrices() {
+        return Collections.unmodifiableMap(localeToPrice);
+    }
+
     public void addCountryPrice(String countryCode, float price) {
         localeToPrice.put(countryCode, price);
     }
@@ -36,6 +36,7 @@ package org.onepf.oms.appstore.googleUtils;
 import junit.framework.Assert;
 
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.onepf.oms.BuildConfig;
 
 /**
@@ -433,27 +434,150 @@ public class Base64 {
     /**
      * Decodes data from Base64 notation.
      *
-     * @param s the string to decode (decoded in default encoding)
+     * @param s the string to decode
      * @return the decoded data
      * @since 1.4
      */
     @NotNull
     public static byte[] decode(@NotNull String s) throws Base64DecoderException {
-        byte[] bytes = s.getBytes();
-        return decode(bytes, 0, bytes.length);
+        return decode((CharSequence) s);
     }
 
     /**
      * Decodes data from web safe Base64 notation.
      * Web safe encoding uses '-' instead of '+', '_' instead of '/'
      *
-     * @param s the string to decode (decoded in default encoding)
+     * @param s the string to decode
      * @return the decoded data
      */
     @NotNull
     public static byte[] decodeWebSafe(@NotNull String s) throws Base64DecoderException {
-        byte[] bytes = s.getBytes();
-        return decodeWebSafe(bytes, 0, bytes.length);
+        return decode(s, 0, s.length(), WEBSAFE_DECODABET);
+    }
+
+    /**
+     * Decodes data from Base64 notation without converting the characters to bytes first.
+     * The characters are read twice: to validate them and size the result, then to decode them.
+     *
+     * @param s the characters to decode
+     * @return the decoded data
+     */
+    @NotNull
+    public static byte[] decode(@NotNull CharSequence s) throws Base64DecoderException {
+        return decode(s, 0, s.length(), DECODABET);
+    }
+
+    /**
+     * Decodes Base64 characters using the supplied decodabet and returns
+     * the decoded byte array of the exact size.
+     *
+     * @param source    the Base64 encoded characters
+     * @param off       the offset of where to begin decoding
+     * @param len       the number of characters to decode
+     * @param decodabet the decodabet for decoding Base64 content
+     * @return decoded data
+     */
+    @NotNull
+    public static byte[] decode(@NotNull CharSequence source, int off, int len, byte[] decodabet)
+            throws Base64DecoderException {
+        final byte[] out = new byte[decode(source, off, len, decodabet, null, 0)];
+        decode(source, off, len, decodabet, out, 0);
+        return out;
+    }
+
+    /**
+     * Decodes Base64 characters into the supplied array.
+     * The array must have room for the decoded data, at most {@code len * 3 / 4 + 2} bytes.
+     *
+     * @param source      the Base64 encoded characters
+     * @param off         the offset of where to begin decoding
+     * @param len         the number of characters to decode
+     * @param destination the array to hold the decoded data
+     * @param destOffset  the index where the decoded data will be put
+     * @return the number of decoded bytes
+     * @throws IllegalArgumentException if the decoded data doesn't fit into the destination
+     */
+    public static int decode(@NotNull CharSequence source, int off, int len,
+                             @NotNull byte[] destination, int destOffset) throws Base64DecoderException {
+        return decode(source, off, len, DECODABET, destination, destOffset);
+    }
+
+    /**
+     * Decodes Base64 characters the same way as {@link #decode(byte[], int, int, byte[])}.
+     * Only counts the decoded bytes if the destination is null.
+     *
+     * @return the number of decoded bytes
+     */
+    private static int decode(@NotNull CharSequence source, int off, int len, byte[] decodabet,
+                              @Nullable byte[] destination, int destOffset) throws Base64DecoderException {
+        int outBuffPosn = destOffset;
+        // The 6-bit values of the current quantum
+        int quantum = 0;
+        int b4Posn = 0;
+        for (int i = 0; i < len; i++) {
+            final char c = source.charAt(i + off);
+            final byte sbiDecode = c < decodabet.length ? decodabet[c] : -9;
+            if (sbiDecode < WHITE_SPACE_ENC) {
+                throw new Base64DecoderException("Bad Base64 input character at " + i
+                        + ": " + (int) c + "(decimal)");
+            }
+            if (sbiDecode < EQUALS_SIGN_ENC) {
+                continue;
+            }
+            if (c == EQUALS_SIGN) {
+                // An equals sign (for padding) must not occur at position 0 or 1
+                // and must be the last characters in the encoded value
+                final int bytesLeft = len - i;
+                final char lastChar = source.charAt(len - 1 + off);
+                if (b4Posn == 0 || b4Posn == 1) {
+                    throw new Base64DecoderException(
+                            "invalid padding byte '=' at byte offset " + i);
+                } else if (b4Posn == 3 && bytesLeft > 2) {
+                    throw new Base64DecoderException(
+                            "padding byte '=' falsely signals end of encoded value "
+                                    + "at offset " + i);
+                } else if (lastChar != EQUALS_SIGN && lastChar != NEW_LINE) {
+                    throw new Base64DecoderException(
+                            "encoded value has invalid trailing byte");
+                }
+                break;
+            }
+
+            quantum = (quantum << 6) | sbiDecode;
+            if (++b4Posn == 4) {
+                outBuffPosn = put(destination, outBuffPosn, quantum, 3);
+                quantum = 0;
+                b4Posn = 0;
+            }
+        }
+
+        // Non padded values end with two or three characters
+        if (b4Posn == 1) {
+            throw new Base64DecoderException("single trailing character at offset "
+                    + (len - 1));
+        } else if (b4Posn == 2) {
+            outBuffPosn = put(destination, outBuffPosn, quantum << 12, 1);
+        } else if (b4Posn == 3) {
+            outBuffPosn = put(destination, outBuffPosn, quantum << 6, 2);
+        }
+        return outBuffPosn - destOffset;
+    }
+
+    /**
+     * Puts the first count bytes of the 24-bit value into the destination.
+     *
+     * @return the index after the last put byte
+     */
+    private static int put(@Nullable byte[] destination, int destOffset, int value, int count) {
+        if (destination != null) {
+            if (destOffset + count > destination.length) {
+                throw new IllegalArgumentException("Decoded data doesn't fit into the destination");
+            }
+            for (int i = 0; i < count; i++) {
+                destination[destOffset + i] = (byte) (value >>> (16 - 8 * i));
+            }
+        }
+        return destOffset + count;
     }
 
     /**
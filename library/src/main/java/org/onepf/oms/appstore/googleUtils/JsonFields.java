@@ -0,0 +1,428 @@
+/*
+ * Copyright 2012-2014 One Platform Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onepf.oms.appstore.googleUtils;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Arrays;
+
+/**
+ * Finds values of top-level keys in a JSON object without building a {@link org.json.JSONObject}.
+ * <p/>
+ * {@link #scan(String, String[])} validates the whole object and remembers where the values of the keys are,
+ * the values are converted only when they are read. Conversions follow {@link org.json.JSONObject}'s
+ * optString(), optLong() and optInt().
+ * <p/>
+ * Only strict JSON is scanned. Input {@link org.json.JSONObject} is lenient about, e.g. comments or unquoted
+ * strings, is left to it.
+ */
+final class JsonFields {
+
+    /**
+     * Start of the value of a key that isn't in the object.
+     */
+    static final int ABSENT = -1;
+
+    private static final int FAIL = -1;
+
+    // Deeper values are left to JSONObject
+    private static final int MAX_DEPTH = 32;
+
+    // Longer numbers without an exponent can exceed the double range
+    private static final int MAX_FINITE_DIGITS = 300;
+
+    private JsonFields() {
+    }
+
+    /**
+     * @param json JSON object.
+     * @param keys Top-level keys to find.
+     * @return Start and end of the value of every key, {@link #ABSENT} for missing keys.
+     * Null if the JSON must be parsed by {@link org.json.JSONObject}: it isn't strict JSON, or a value of a key
+     * is an object or an array.
+     */
+    @Nullable
+    static int[] scan(@NotNull final String json, @NotNull final String[] keys) {
+        final int[] fields = new int[keys.length * 2];
+        Arrays.fill(fields, ABSENT);
+        final int length = json.length();
+        int pos = skipWhitespace(json, 0);
+        if (pos >= length || json.charAt(pos) != '{') {
+            return null;
+        }
+        pos = skipWhitespace(json, pos + 1);
+        if (pos < length && json.charAt(pos) == '}') {
+            pos++;
+        } else {
+            while (true) {
+                final int keyStart = pos;
+                pos = skipString(json, pos);
+                if (pos == FAIL) {
+                    return null;
+                }
+                final int keyEnd = pos;
+                pos = skipWhitespace(json, pos);
+                if (pos >= length || json.charAt(pos) != ':') {
+                    return null;
+                }
+                final int valueStart = skipWhitespace(json, pos + 1);
+                pos = skipValue(json, valueStart, 1);
+                if (pos == FAIL) {
+                    return null;
+                }
+                if (hasEscape(json, keyStart + 1, keyEnd - 1)) {
+                    // Escaped keys are rare, JSONObject unescapes them
+                    return null;
+                }
+                final int key = indexOf(keys, json, keyStart + 1, keyEnd - 1);
+                if (key >= 0) {
+                    final char first = json.charAt(valueStart);
+                    if (first == '{' || first == '[') {
+                        return null;
+                    }
+                    // Later values replace earlier ones like in JSONObject
+                    fields[key * 2] = valueStart;
+                    fields[key * 2 + 1] = pos;
+                }
+                pos = skipWhitespace(json, pos);
+                if (pos >= length) {
+                    return null;
+                }
+                final char separator = json.charAt(pos++);
+                if (separator == '}') {
+                    break;
+                } else if (separator != ',') {
+                    return null;
+                }
+                pos = skipWhitespace(json, pos);
+            }
+        }
+        return skipWhitespace(json, pos) == length ? fields : null;
+    }
+
+    /**
+     * @return The value as {@link org.json.JSONObject#optString(String, String)} returns it.
+     */
+    @NotNull
+    static String optString(@NotNull final String json, @NotNull final int[] fields, final int key,
+                            @NotNull final String fallback) {
+        final int start = fields[key * 2];
+        if (start == ABSENT) {
+            return fallback;
+        }
+        final int end = fields[key * 2 + 1];
+        switch (json.charAt(start)) {
+            case '"':
+                return unescape(json, start + 1, end - 1);
+            case 't':
+            case 'f':
+            case 'n':
+                return json.substring(start, end);
+            default:
+                return String.valueOf(parseNumber(json.substring(start, end)));
+        }
+    }
+
+    /**
+     * @return The value as {@link org.json.JSONObject#optLong(String)} returns it.
+     */
+    static long optLong(@NotNull final String json, @NotNull final int[] fields, final int key) {
+        final Number number = toNumber(json, fields, key);
+        return number == null ? 0 : number.longValue();
+    }
+
+    /**
+     * @return The value as {@link org.json.JSONObject#optInt(String)} returns it.
+     */
+    static int optInt(@NotNull final String json, @NotNull final int[] fields, final int key) {
+        final Number number = toNumber(json, fields, key);
+        return number == null ? 0 : number.intValue();
+    }
+
+    @Nullable
+    private static Number toNumber(@NotNull final String json, @NotNull final int[] fields, final int key) {
+        final int start = fields[key * 2];
+        if (start == ABSENT) {
+            return null;
+        }
+        final char first = json.charAt(start);
+        if (first == 't' || first == 'f' || first == 'n') {
+            return null;
+        }
+        if (first != '"') {
+            return parseNumber(json.substring(start, fields[key * 2 + 1]));
+        }
+        try {
+            return Double.parseDouble(unescape(json, start + 1, fields[key * 2 + 1] - 1));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Parses a number literal into the type {@link org.json.JSONObject} keeps it as.
+     */
+    @NotNull
+    private static Number parseNumber(@NotNull final String literal) {
+        if (literal.indexOf('.') == -1) {
+            try {
+                final long longValue = Long.parseLong(literal);
+                if (longValue <= Integer.MAX_VALUE && longValue >= Integer.MIN_VALUE) {
+                    return (int) longValue;
+                }
+                return longValue;
+            } catch (NumberFormatException ignored) {
+                // Exponent or out of the long range
+            }
+        }
+        return Double.valueOf(literal);
+    }
+
+    @NotNull
+    private static String unescape(@NotNull final String json, final int start, final int end) {
+        int escape = indexOfEscape(json, start, end);
+        if (escape == -1) {
+            return json.substring(start, end);
+        }
+        final StringBuilder builder = new StringBuilder(end - start);
+        int pos = start;
+        while (escape != -1) {
+            builder.append(json, pos, escape);
+            final char c = json.charAt(escape + 1);
+            pos = escape + 2;
+            switch (c) {
+                case 'b':
+                    builder.append('\b');
+                    break;
+                case 'f':
+                    builder.append('\f');
+                    break;
+                case 'n':
+                    builder.append('\n');
+                    break;
+                case 'r':
+                    builder.append('\r');
+                    break;
+                case 't':
+                    builder.append('\t');
+                    break;
+                case 'u':
+                    builder.append((char) Integer.parseInt(json.substring(pos, pos + 4), 16));
+                    pos += 4;
+                    break;
+                default:
+                    builder.append(c);
+                    break;
+            }
+            escape = indexOfEscape(json, pos, end);
+        }
+        builder.append(json, pos, end);
+        return builder.toString();
+    }
+
+    private static boolean hasEscape(@NotNull final String json, final int start, final int end) {
+        return indexOfEscape(json, start, end) != -1;
+    }
+
+    private static int indexOfEscape(@NotNull final String json, final int start, final int end) {
+        for (int i = start; i < end; i++) {
+            if (json.charAt(i) == '\\') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int indexOf(@NotNull final String[] keys, @NotNull final String json, final int start, final int end) {
+        final int length = end - start;
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i].length() == length && json.regionMatches(start, keys[i], 0, length)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int skipWhitespace(@NotNull final String json, int pos) {
+        final int length = json.length();
+        while (pos < length) {
+            final char c = json.charAt(pos);
+            if (c != ' ' && c != '\t' && c != '\n' && c != '\r') {
+                break;
+            }
+            pos++;
+        }
+        return pos;
+    }
+
+    /**
+     * @return The position after the value, {@link #FAIL} if it isn't strict JSON.
+     */
+    private static int skipValue(@NotNull final String json, final int pos, final int depth) {
+        if (pos >= json.length()) {
+            return FAIL;
+        }
+        final char c = json.charAt(pos);
+        switch (c) {
+            case '"':
+                return skipString(json, pos);
+            case '{':
+            case '[':
+                return depth < MAX_DEPTH ? skipContainer(json, pos, depth + 1) : FAIL;
+            case 't':
+                return skipLiteral(json, pos, "true");
+            case 'f':
+                return skipLiteral(json, pos, "false");
+            case 'n':
+                return skipLiteral(json, pos, "null");
+            default:
+                return c == '-' || (c >= '0' && c <= '9') ? skipNumber(json, pos) : FAIL;
+        }
+    }
+
+    private static int skipContainer(@NotNull final String json, int pos, final int depth) {
+        final boolean object = json.charAt(pos) == '{';
+        final char close = object ? '}' : ']';
+        final int length = json.length();
+        pos = skipWhitespace(json, pos + 1);
+        if (pos < length && json.charAt(pos) == close) {
+            return pos + 1;
+        }
+        while (true) {
+            if (object) {
+                pos = skipString(json, pos);
+                if (pos == FAIL) {
+                    return FAIL;
+                }
+                pos = skipWhitespace(json, pos);
+                if (pos >= length || json.charAt(pos) != ':') {
+                    return FAIL;
+                }
+                pos = skipWhitespace(json, pos + 1);
+            }
+            pos = skipValue(json, pos, depth);
+            if (pos == FAIL) {
+                return FAIL;
+            }
+            pos = skipWhitespace(json, pos);
+            if (pos >= length) {
+                return FAIL;
+            }
+            final char separator = json.charAt(pos++);
+            if (separator == close) {
+                return pos;
+            } else if (separator != ',') {
+                return FAIL;
+            }
+            pos = skipWhitespace(json, pos);
+        }
+    }
+
+    private static int skipString(@NotNull final String json, final int pos) {
+        final int length = json.length();
+        if (pos >= length || json.charAt(pos) != '"') {
+            return FAIL;
+        }
+        int i = pos + 1;
+        while (i < length) {
+            final char c = json.charAt(i);
+            if (c == '"') {
+                return i + 1;
+            } else if (c == '\\') {
+                if (i + 1 >= length) {
+                    return FAIL;
+                }
+                final char escaped = json.charAt(i + 1);
+                if (escaped == 'u') {
+                    if (i + 6 > length) {
+                        return FAIL;
+                    }
+                    for (int j = i + 2; j < i + 6; j++) {
+                        if (Character.digit(json.charAt(j), 16) == -1) {
+                            return FAIL;
+                        }
+                    }
+                    i += 6;
+                } else if ("\"\\/bfnrt".indexOf(escaped) != -1) {
+                    i += 2;
+                } else {
+                    return FAIL;
+                }
+            } else if (c < 0x20) {
+                return FAIL;
+            } else {
+                i++;
+            }
+        }
+        return FAIL;
+    }
+
+    private static int skipLiteral(@NotNull final String json, final int pos, @NotNull final String literal) {
+        return json.startsWith(literal, pos) ? pos + literal.length() : FAIL;
+    }
+
+    private static int skipNumber(@NotNull final String json, final int pos) {
+        final int length = json.length();
+        int i = pos;
+        if (json.charAt(i) == '-') {
+            i++;
+        }
+        if (i < length && json.charAt(i) == '0') {
+            i++;
+        } else {
+            final int digits = skipDigits(json, i);
+            if (digits == i) {
+                return FAIL;
+            }
+            i = digits;
+        }
+        if (i < length && json.charAt(i) == '.') {
+            final int digits = skipDigits(json, i + 1);
+            if (digits == i + 1) {
+                return FAIL;
+            }
+            i = digits;
+        }
+        boolean exponent = false;
+        if (i < length && (json.charAt(i) == 'e' || json.charAt(i) == 'E')) {
+            i++;
+            if (i < length && (json.charAt(i) == '+' || json.charAt(i) == '-')) {
+                i++;
+            }
+            final int digits = skipDigits(json, i);
+            if (digits == i) {
+                return FAIL;
+            }
+            i = digits;
+            exponent = true;
+        }
+        // JSONObject rejects numbers out of the double range
+        if ((exponent || i - pos > MAX_FINITE_DIGITS) && Double.isInfinite(Double.parseDouble(json.substring(pos, i)))) {
+            return FAIL;
+        }
+        return i;
+    }
+
+    private static int skipDigits(@NotNull final String json, int pos) {
+        final int length = json.length();
+        while (pos < length && json.charAt(pos) >= '0' && json.charAt(pos) <= '9') {
+            pos++;
+        }
+        return pos;
+    }
+}
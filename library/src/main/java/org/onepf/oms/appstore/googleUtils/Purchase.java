@@ -33,6 +33,17 @@ import org.json.JSONObject;
  * <p><b>TODO</b>: add getStoreSku() to use mapped value in Appstore's inner code
  */
 public class Purchase implements Cloneable {
+    private static final String[] JSON_KEYS = {"orderId", "packageName", "productId", "purchaseTime",
+            "purchaseState", "developerPayload", "token", "purchaseToken"};
+    private static final int KEY_ORDER_ID = 0;
+    private static final int KEY_PACKAGE_NAME = 1;
+    private static final int KEY_PRODUCT_ID = 2;
+    private static final int KEY_PURCHASE_TIME = 3;
+    private static final int KEY_PURCHASE_STATE = 4;
+    private static final int KEY_DEVELOPER_PAYLOAD = 5;
+    private static final int KEY_TOKEN = 6;
+    private static final int KEY_PURCHASE_TOKEN = 7;
+
     String mItemType;  // ITEM_TYPE_INAPP or ITEM_TYPE_SUBS
     String mOrderId;
     String mPackageName;
@@ -45,6 +56,9 @@ public class Purchase implements Cloneable {
     String mSignature;
     @Nullable
     String appstoreName;
+    // Positions of the values in mOriginalJson until the fields are read from it, see JsonFields
+    @Nullable
+    private volatile int[] mJsonFields;
 
     public Purchase(@Nullable String appstoreName) {
         if (appstoreName == null)
@@ -53,6 +67,7 @@ public class Purchase implements Cloneable {
     }
 
     public void setOriginalJson(String originalJson) {
+        readJsonFields();
         mOriginalJson = originalJson;
     }
 
@@ -61,30 +76,37 @@ public class Purchase implements Cloneable {
     }
 
     public void setOrderId(String orderId) {
+        readJsonFields();
         mOrderId = orderId;
     }
 
     public void setPackageName(String packageName) {
+        readJsonFields();
         mPackageName = packageName;
     }
 
     public void setSku(String sku) {
+        readJsonFields();
         mSku = sku;
     }
 
     public void setPurchaseTime(long purchaseTime) {
+        readJsonFields();
         mPurchaseTime = purchaseTime;
     }
 
     public void setPurchaseState(int purchaseState) {
+        readJsonFields();
         mPurchaseState = purchaseState;
     }
 
     public void setDeveloperPayload(String developerPayload) {
+        readJsonFields();
         mDeveloperPayload = developerPayload;
     }
 
     public void setToken(String token) {
+        readJsonFields();
         mToken = token;
     }
 
@@ -92,6 +114,12 @@ public class Purchase implements Cloneable {
         this.appstoreName = appstoreName;
         mItemType = itemType;
         mOriginalJson = jsonPurchaseInfo;
+        mSignature = signature;
+        // Fields are read on first access, only JSON the scanner can't handle is parsed now
+        mJsonFields = JsonFields.scan(jsonPurchaseInfo, JSON_KEYS);
+        if (mJsonFields != null) {
+            return;
+        }
         JSONObject o = new JSONObject(mOriginalJson);
         mOrderId = o.optString("orderId");
         mPackageName = o.optString("packageName");
@@ -100,7 +128,28 @@ public class Purchase implements Cloneable {
         mPurchaseState = o.optInt("purchaseState");
         mDeveloperPayload = o.optString("developerPayload");
         mToken = o.optString("token", o.optString("purchaseToken"));
-        mSignature = signature;
+    }
+
+    private void readJsonFields() {
+        if (mJsonFields == null) {
+            return;
+        }
+        synchronized (this) {
+            final int[] fields = mJsonFields;
+            if (fields == null) {
+                return;
+            }
+            final String json = mOriginalJson;
+            mOrderId = JsonFields.optString(json, fields, KEY_ORDER_ID, "");
+            mPackageName = JsonFields.optString(json, fields, KEY_PACKAGE_NAME, "");
+            mSku = JsonFields.optString(json, fields, KEY_PRODUCT_ID, "");
+            mPurchaseTime = JsonFields.optLong(json, fields, KEY_PURCHASE_TIME);
+            mPurchaseState = JsonFields.optInt(json, fields, KEY_PURCHASE_STATE);
+            mDeveloperPayload = JsonFields.optString(json, fields, KEY_DEVELOPER_PAYLOAD, "");
+            mToken = JsonFields.optString(json, fields, KEY_TOKEN,
+                    JsonFields.optString(json, fields, KEY_PURCHASE_TOKEN, ""));
+            mJsonFields = null;
+        }
     }
 
     public Object clone() {
@@ -116,30 +165,37 @@ public class Purchase implements Cloneable {
     }
 
     public String getOrderId() {
+        readJsonFields();
         return mOrderId;
     }
 
     public String getPackageName() {
+        readJsonFields();
         return mPackageName;
     }
 
     public String getSku() {
+        readJsonFields();
         return mSku;
     }
 
     public long getPurchaseTime() {
+        readJsonFields();
         return mPurchaseTime;
     }
 
     public int getPurchaseState() {
+        readJsonFields();
         return mPurchaseState;
     }
 
     public String getDeveloperPayload() {
+        readJsonFields();
         return mDeveloperPayload;
     }
 
     public String getToken() {
+        readJsonFields();
         return mToken;
     }
 
@@ -159,6 +215,7 @@ public class Purchase implements Cloneable {
     @NotNull
     @Override
     public String toString() {
+        readJsonFields();
         return "PurchaseInfo(type:" + mItemType + "): "
                 + "{\"orderId\":" + mOrderId
                 + ",\"packageName\":" + mPackageName
@@ -16,19 +16,33 @@
 
 package org.onepf.oms.appstore.googleUtils;
 
+import java.io.UnsupportedEncodingException;
 import java.security.InvalidKeyException;
 import java.security.KeyFactory;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
 import java.security.Signature;
 import java.security.SignatureException;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.X509EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 
 import android.text.TextUtils;
 
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.onepf.oms.util.Logger;
+import org.onepf.oms.util.TaskExecutors;
 
 /**
  * Security-related methods. For a secure implementation, all of this code
@@ -43,6 +57,70 @@ public class Security {
 
     private static final String KEY_FACTORY_ALGORITHM = "RSA";
     private static final String SIGNATURE_ALGORITHM = "SHA1withRSA";
+    private static final String DIGEST_ALGORITHM = "SHA-256";
+    private static final String CHARSET = "UTF-8";
+
+    // Apps have a key per store, the limit only guards against unbounded growth
+    private static final int MAX_CACHED_PUBLIC_KEYS = 16;
+
+    /**
+     * Batches with fewer purchases are verified in the calling thread.
+     */
+    public static final int PARALLEL_VERIFICATION_THRESHOLD = 32;
+
+    // Created on the first parallel verification
+    @Nullable
+    private static ExecutorService verificationExecutor;
+
+    /**
+     * Parsed public keys by their Base64 encoding.
+     */
+    private static final Map<String, PublicKey> publicKeys = new ConcurrentHashMap<String, PublicKey>();
+
+    /**
+     * Verified purchases rarely change, inventory refreshes verify the same ones again.
+     */
+    public static final int MAX_VERIFIED_PURCHASES = 512;
+
+    /**
+     * Digests of verified (key, data, signature) triples, in access order. Failed verifications aren't kept.
+     */
+    private static final LinkedHashMap<String, Boolean> verifiedPurchases =
+            new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(final Map.Entry<String, Boolean> eldest) {
+                    return size() > MAX_VERIFIED_PURCHASES;
+                }
+            };
+
+    private static final ThreadLocal<MessageDigest> digests = new ThreadLocal<MessageDigest>() {
+        @Nullable
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance(DIGEST_ALGORITHM);
+            } catch (NoSuchAlgorithmException e) {
+                Logger.e("NoSuchAlgorithmException.");
+                return null;
+            }
+        }
+    };
+
+    /**
+     * Signature instances aren't thread safe, each thread reuses its own.
+     */
+    private static final ThreadLocal<Signature> signatures = new ThreadLocal<Signature>() {
+        @Nullable
+        @Override
+        protected Signature initialValue() {
+            try {
+                return Signature.getInstance(SIGNATURE_ALGORITHM);
+            } catch (NoSuchAlgorithmException e) {
+                Logger.e("NoSuchAlgorithmException.");
+                return null;
+            }
+        }
+    };
 
     /**
      * Verifies that the data was signed with the given signature, and returns
@@ -61,8 +139,247 @@ public class Security {
             return false;
         }
 
-        PublicKey key = Security.generatePublicKey(base64PublicKey);
-        return Security.verify(key, signedData, signature);
+        final String digest = digest(base64PublicKey, signedData, signature);
+        if (isVerified(digest)) {
+            return true;
+        }
+        PublicKey key = Security.getPublicKey(base64PublicKey);
+        final boolean verified = Security.verify(key, signedData, signature);
+        if (verified) {
+            setVerified(digest);
+        }
+        return verified;
+    }
+
+    /**
+     * Verifies purchases signed with the same key. The key is parsed once.
+     *
+     * @param base64PublicKey the base64-encoded public key to use for verifying.
+     * @param signedData      the signed JSON strings
+     * @param signatures      the signatures for the data, in the same order
+     * @return verification results in the order of the data
+     * @throws IllegalArgumentException if the key is invalid or the lists have different sizes
+     * @see #verifyPurchases(List)
+     */
+    @NotNull
+    public static boolean[] verifyPurchases(@NotNull String base64PublicKey, @NotNull List<String> signedData,
+                                            @NotNull List<String> signatures) {
+        if (signedData.size() != signatures.size()) {
+            throw new IllegalArgumentException("Each signed data must have a signature.");
+        }
+        if (signedData.isEmpty()) {
+            return new boolean[0];
+        }
+        if (TextUtils.isEmpty(base64PublicKey)) {
+            Logger.e("Purchase verification failed: missing data.");
+            return new boolean[signedData.size()];
+        }
+        // Fails fast on an invalid key
+        Security.getPublicKey(base64PublicKey);
+        final List<SignedData> purchases = new ArrayList<SignedData>(signedData.size());
+        for (int i = 0; i < signedData.size(); i++) {
+            purchases.add(new SignedData(base64PublicKey, signedData.get(i), signatures.get(i)));
+        }
+        return verifyPurchases(purchases);
+    }
+
+    /**
+     * Verifies purchases, possibly signed with different keys. Batches of at least
+     * {@link #PARALLEL_VERIFICATION_THRESHOLD} purchases are split between the available processors,
+     * the calling thread verifies a part too.
+     *
+     * @param purchases the purchases to verify
+     * @return verification results in the order of the purchases, false for purchases with an invalid key
+     */
+    @NotNull
+    public static boolean[] verifyPurchases(@NotNull final List<SignedData> purchases) {
+        final boolean[] results = new boolean[purchases.size()];
+        final int parts = Math.min(Runtime.getRuntime().availableProcessors(),
+                purchases.size() / PARALLEL_VERIFICATION_THRESHOLD);
+        if (parts <= 1) {
+            verifyPart(purchases, results, 0, results.length);
+            return results;
+        }
+
+        final int partSize = (results.length + parts - 1) / parts;
+        final List<Future<?>> futures = new ArrayList<Future<?>>(parts - 1);
+        // The calling thread takes the first part
+        for (int start = partSize; start < results.length; start += partSize) {
+            final int from = start;
+            final int to = Math.min(start + partSize, results.length);
+            try {
+                futures.add(getVerificationExecutor().submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        verifyPart(purchases, results, from, to);
+                    }
+                }));
+            } catch (RejectedExecutionException e) {
+                verifyPart(purchases, results, from, to);
+            }
+        }
+        verifyPart(purchases, results, 0, Math.min(partSize, results.length));
+
+        // Parts are short CPU bound work, results of all parts are needed
+        boolean interrupted = false;
+        for (final Future<?> future : futures) {
+            while (true) {
+                try {
+                    future.get();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    throw new IllegalStateException(e.getCause());
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        return results;
+    }
+
+    private static void verifyPart(@NotNull final List<SignedData> purchases, @NotNull final boolean[] results,
+                                   final int from, final int to) {
+        for (int i = from; i < to; i++) {
+            results[i] = verifyPurchase(purchases.get(i));
+        }
+    }
+
+    private static boolean verifyPurchase(@NotNull final SignedData purchase) {
+        if (TextUtils.isEmpty(purchase.base64PublicKey) || TextUtils.isEmpty(purchase.signedData)
+                || TextUtils.isEmpty(purchase.signature)) {
+            Logger.e("Purchase verification failed: missing data.");
+            return false;
+        }
+        final String digest = digest(purchase.base64PublicKey, purchase.signedData, purchase.signature);
+        if (isVerified(digest)) {
+            return true;
+        }
+        final PublicKey key;
+        try {
+            key = Security.getPublicKey(purchase.base64PublicKey);
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+        final boolean verified = Security.verify(key, purchase.signedData, purchase.signature);
+        if (verified) {
+            setVerified(digest);
+        }
+        return verified;
+    }
+
+    /**
+     * Returns digests of the purchases verified recently, to persist them with {@link #addVerifiedDigests(Collection)}.
+     * A digest covers the public key, the signed data and the signature.
+     *
+     * @return Base64-encoded digests, the least recently used first.
+     */
+    @NotNull
+    public static List<String> getVerifiedDigests() {
+        synchronized (verifiedPurchases) {
+            return new ArrayList<String>(verifiedPurchases.keySet());
+        }
+    }
+
+    /**
+     * Treats purchases with the given digests as verified, without checking their signatures again.
+     * Only pass digests from {@link #getVerifiedDigests()} stored where other apps can't change them.
+     *
+     * @param verifiedDigests Base64-encoded digests, the least recently used first.
+     */
+    public static void addVerifiedDigests(@NotNull Collection<String> verifiedDigests) {
+        synchronized (verifiedPurchases) {
+            for (final String digest : verifiedDigests) {
+                if (!verifiedPurchases.containsKey(digest)) {
+                    verifiedPurchases.put(digest, Boolean.TRUE);
+                }
+            }
+        }
+    }
+
+    /**
+     * Forgets verified purchases, the next verification of every purchase checks its signature.
+     */
+    public static void clearVerifiedDigests() {
+        synchronized (verifiedPurchases) {
+            verifiedPurchases.clear();
+        }
+    }
+
+    private static boolean isVerified(@Nullable final String digest) {
+        if (digest == null) {
+            return false;
+        }
+        synchronized (verifiedPurchases) {
+            return verifiedPurchases.get(digest) != null;
+        }
+    }
+
+    private static void setVerified(@Nullable final String digest) {
+        if (digest == null) {
+            return;
+        }
+        synchronized (verifiedPurchases) {
+            verifiedPurchases.put(digest, Boolean.TRUE);
+        }
+    }
+
+    /**
+     * @return Base64-encoded digest of the triple, null if it can't be computed.
+     */
+    @Nullable
+    private static String digest(@NotNull final String base64PublicKey, @NotNull final String signedData,
+                                 @NotNull final String signature) {
+        final MessageDigest messageDigest = digests.get();
+        if (messageDigest == null) {
+            return null;
+        }
+        try {
+            // Lengths keep the boundaries between the strings
+            for (final String value : new String[]{base64PublicKey, signedData, signature}) {
+                final byte[] bytes = value.getBytes(CHARSET);
+                final int length = bytes.length;
+                messageDigest.update(new byte[]{
+                        (byte) (length >>> 24), (byte) (length >>> 16), (byte) (length >>> 8), (byte) length});
+                messageDigest.update(bytes);
+            }
+            return Base64.encode(messageDigest.digest());
+        } catch (UnsupportedEncodingException e) {
+            messageDigest.reset();
+            return null;
+        }
+    }
+
+    /**
+     * Verification is CPU bound, the pool has a thread per processor.
+     */
+    @NotNull
+    private static synchronized ExecutorService getVerificationExecutor() {
+        if (verificationExecutor == null) {
+            verificationExecutor = TaskExecutors.newPool("Security", Runtime.getRuntime().availableProcessors(), true);
+        }
+        return verificationExecutor;
+    }
+
+    /**
+     * Returns the PublicKey parsed from the Base64-encoded public key, parses every key once.
+     *
+     * @param encodedPublicKey Base64-encoded public key
+     * @throws IllegalArgumentException if encodedPublicKey is invalid
+     */
+    @NotNull
+    public static PublicKey getPublicKey(@NotNull String encodedPublicKey) {
+        PublicKey publicKey = publicKeys.get(encodedPublicKey);
+        if (publicKey == null) {
+            publicKey = generatePublicKey(encodedPublicKey);
+            if (publicKeys.size() >= MAX_CACHED_PUBLIC_KEYS) {
+                publicKeys.clear();
+            }
+            publicKeys.put(encodedPublicKey, publicKey);
+        }
+        return publicKey;
     }
 
     /**
@@ -98,9 +415,12 @@ public class Security {
      * @return true if the data and signature match
      */
     public static boolean verify(PublicKey publicKey, @NotNull String signedData, @NotNull String signature) {
-        Signature sig;
+        final Signature sig = signatures.get();
+        if (sig == null) {
+            return false;
+        }
         try {
-            sig = Signature.getInstance(SIGNATURE_ALGORITHM);
+            // Resets the state left by a previous call
             sig.initVerify(publicKey);
             sig.update(signedData.getBytes());
             if (!sig.verify(Base64.decode(signature))) {
@@ -108,8 +428,6 @@ public class Security {
                 return false;
             }
             return true;
-        } catch (NoSuchAlgorithmException e) {
-            Logger.e("NoSuchAlgorithmException.");
         } catch (InvalidKeyException e) {
             Logger.e("Invalid key specification.");
         } catch (SignatureException e) {
@@ -119,4 +437,30 @@ public class Security {
         }
         return false;
     }
+
+    /**
+     * Signed purchase data with the key to verify it.
+     */
+    public static final class SignedData {
+
+        @NotNull
+        private final String base64PublicKey;
+
+        @NotNull
+        private final String signedData;
+
+        @NotNull
+        private final String signature;
+
+        /**
+         * @param base64PublicKey the base64-encoded public key to use for verifying.
+         * @param signedData      the signed JSON string
+         * @param signature       the signature for the data
+         */
+        public SignedData(@NotNull String base64PublicKey, @NotNull String signedData, @NotNull String signature) {
+            this.base64PublicKey = base64PublicKey;
+            this.signedData = signedData;
+            this.signature = signature;
+        }
+    }
 }
@@ -16,6 +16,7 @@
 
 package org.onepf.oms.appstore.googleUtils;
 
+import org.jetbrains.annotations.Nullable;
 import org.json.JSONException;
 import org.json.JSONObject;
 
@@ -23,6 +24,13 @@ import org.json.JSONObject;
  * Represents an in-app product's listing details.
  */
 public class SkuDetails {
+    private static final String[] JSON_KEYS = {"productId", "type", "price", "title", "description"};
+    private static final int KEY_PRODUCT_ID = 0;
+    private static final int KEY_TYPE = 1;
+    private static final int KEY_PRICE = 2;
+    private static final int KEY_TITLE = 3;
+    private static final int KEY_DESCRIPTION = 4;
+
     String mItemType;
     String mSku;
     String mType;
@@ -30,6 +38,9 @@ public class SkuDetails {
     String mTitle;
     String mDescription;
     String mJson;
+    // Positions of the values in mJson until the fields are read from it, see JsonFields
+    @Nullable
+    private volatile int[] mJsonFields;
 
     public SkuDetails(String jsonSkuDetails) throws JSONException {
         this(IabHelper.ITEM_TYPE_INAPP, jsonSkuDetails);
@@ -53,6 +64,11 @@ public class SkuDetails {
     public SkuDetails(String itemType, String jsonSkuDetails) throws JSONException {
         mItemType = itemType;
         mJson = jsonSkuDetails;
+        // Fields are read on first access, only JSON the scanner can't handle is parsed now
+        mJsonFields = JsonFields.scan(jsonSkuDetails, JSON_KEYS);
+        if (mJsonFields != null) {
+            return;
+        }
         JSONObject o = new JSONObject(mJson);
         mSku = o.optString("productId");
         mType = o.optString("type");
@@ -61,23 +77,46 @@ public class SkuDetails {
         mDescription = o.optString("description");
     }
 
+    private void readJsonFields() {
+        if (mJsonFields == null) {
+            return;
+        }
+        synchronized (this) {
+            final int[] fields = mJsonFields;
+            if (fields == null) {
+                return;
+            }
+            mSku = JsonFields.optString(mJson, fields, KEY_PRODUCT_ID, "");
+            mType = JsonFields.optString(mJson, fields, KEY_TYPE, "");
+            mPrice = JsonFields.optString(mJson, fields, KEY_PRICE, "");
+            mTitle = JsonFields.optString(mJson, fields, KEY_TITLE, "");
+            mDescription = JsonFields.optString(mJson, fields, KEY_DESCRIPTION, "");
+            mJsonFields = null;
+        }
+    }
+
     public String getSku() {
+        readJsonFields();
         return mSku;
     }
 
     public String getType() {
+        readJsonFields();
         return mType;
     }
 
     public String getPrice() {
+        readJsonFields();
         return mPrice;
     }
 
     public String getTitle() {
+        readJsonFields();
         return mTitle;
     }
 
     public String getDescription() {
+        readJsonFields();
         return mDescription;
     }
 
@@ -90,11 +129,13 @@ public class SkuDetails {
     }
 
     public void setSku(String sku) {
+        readJsonFields();
         this.mSku = sku;
     }
 
     @Override
     public String toString() {
+        readJsonFields();
         return String.format("SkuDetails: type = %s, SKU = %s, title = %s, price = %s, description = %s", mItemType, mSku, mTitle, mPrice, mDescription);
     }
 }
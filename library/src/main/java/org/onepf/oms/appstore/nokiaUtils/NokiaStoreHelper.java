@@ -38,9 +38,15 @@ import org.onepf.oms.appstore.NokiaStore;
 import org.onepf.oms.appstore.googleUtils.*;
 import org.onepf.oms.util.CollectionUtils;
 import org.onepf.oms.util.Logger;
+import org.onepf.oms.util.TaskExecutors;
 
 import java.util.ArrayList;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 public class NokiaStoreHelper implements AppstoreInAppBillingService {
     //todo why own constants?
@@ -56,6 +62,9 @@ public class NokiaStoreHelper implements AppstoreInAppBillingService {
 
     public static final int RESULT_BAD_RESPONSE = -1002;
 
+    // SKUs per request, keeps requests and responses well under the binder transaction limit
+    private static final int ITEM_ID_LIST_CHUNK_SIZE = 100;
+
     private final Context mContext;
     int mRequestCode;
 
@@ -452,38 +461,109 @@ public class NokiaStoreHelper implements AppstoreInAppBillingService {
         Logger.d("querySkuDetails = ", querySkuDetails);
         Logger.d("moreItemSkus = ", moreItemSkus);
 
-        if (querySkuDetails) {
-            refreshItemDetails(moreItemSkus, inventory);
+        final INokiaIAPService service = mService;
+        if (service == null) {
+            Logger.e("Unable to refresh inventory.");
+            throw new IabException(RESULT_BAD_RESPONSE, "Error refreshing inventory (querying owned items).");
         }
 
-        refreshPurchasedItems(moreItemSkus, inventory);
+        // Details and purchases of every chunk are requested at once
+        final List<ArrayList<String>> chunks = getStoreSkuChunks(moreItemSkus);
+        // Service requests block, they run on the shared pool so they can't wait for tasks of the caller
+        final ExecutorService executor = TaskExecutors.getRequestExecutor();
+        final List<Future<List<String>>> detailsFutures = new ArrayList<Future<List<String>>>();
+        final List<Future<List<String>>> purchasesFutures = new ArrayList<Future<List<String>>>();
+        try {
+            for (final ArrayList<String> chunk : chunks) {
+                if (querySkuDetails) {
+                    detailsFutures.add(TaskExecutors.submit(executor, new Callable<List<String>>() {
+                        @Nullable
+                        @Override
+                        public List<String> call() throws IabException {
+                            return refreshItemDetails(service, chunk);
+                        }
+                    }));
+                }
+                purchasesFutures.add(TaskExecutors.submit(executor, new Callable<List<String>>() {
+                    @Nullable
+                    @Override
+                    public List<String> call() throws IabException {
+                        return refreshPurchasedItems(service, chunk);
+                    }
+                }));
+            }
+
+            for (final Future<List<String>> future : detailsFutures) {
+                final List<String> detailsList = TaskExecutors.getResult(future, RESULT_BAD_RESPONSE,
+                        "Error refreshing inventory.");
+                if (detailsList != null) {
+                    try {
+                        processDetailsList(detailsList, inventory);
+                    } catch (JSONException e) {
+                        Logger.e(e, "Exception: ", e);
+                    }
+                }
+            }
+            for (final Future<List<String>> future : purchasesFutures) {
+                final List<String> purchasedDataList = TaskExecutors.getResult(future, RESULT_BAD_RESPONSE,
+                        "Error refreshing inventory.");
+                if (purchasedDataList != null) {
+                    processPurchasedList(purchasedDataList, inventory);
+                }
+            }
+        } finally {
+            TaskExecutors.cancel(detailsFutures);
+            TaskExecutors.cancel(purchasesFutures);
+        }
 
         return inventory;
     }
 
-    private void refreshPurchasedItems(@Nullable final List<String> moreItemSkus, @NotNull final Inventory inventory)
-            throws IabException {
-        Logger.i("NokiaStoreHelper.refreshPurchasedItems");
-
-        final ArrayList<String> storeSkus = new ArrayList<String>(
-                SkuManager.getInstance().getAllStoreSkus(OpenIabHelper.NAME_NOKIA));
-        final Bundle storeSkusBundle = new Bundle(32);
-
+    /**
+     * Resolves store SKUs of the app and the additional SKUs once for both requests.
+     *
+     * @return Store SKUs split into chunks of {@link #ITEM_ID_LIST_CHUNK_SIZE}.
+     */
+    @NotNull
+    private static List<ArrayList<String>> getStoreSkuChunks(@Nullable final List<String> moreItemSkus) {
+        final Set<String> storeSkus = new LinkedHashSet<String>();
+        final List<String> allNokiaStoreSkus = SkuManager.getInstance().getAllStoreSkus(OpenIabHelper.NAME_NOKIA);
+        if (!CollectionUtils.isEmpty(allNokiaStoreSkus)) {
+            storeSkus.addAll(allNokiaStoreSkus);
+        }
         if (moreItemSkus != null) {
             for (final String moreItemSku : moreItemSkus) {
-                storeSkus.add(moreItemSku);
+                storeSkus.add(SkuManager.getInstance().getStoreSku(OpenIabHelper.NAME_NOKIA, moreItemSku));
             }
         }
 
+        final List<ArrayList<String>> chunks = new ArrayList<ArrayList<String>>();
+        ArrayList<String> chunk = new ArrayList<String>(ITEM_ID_LIST_CHUNK_SIZE);
+        for (final String storeSku : storeSkus) {
+            if (chunk.size() == ITEM_ID_LIST_CHUNK_SIZE) {
+                chunks.add(chunk);
+                chunk = new ArrayList<String>(ITEM_ID_LIST_CHUNK_SIZE);
+            }
+            chunk.add(storeSku);
+        }
+        // The request without SKUs still returns purchases
+        chunks.add(chunk);
+        return chunks;
+    }
+
+    /**
+     * @return Purchase data of the SKUs, null if the service failed.
+     */
+    @Nullable
+    private List<String> refreshPurchasedItems(@NotNull final INokiaIAPService service, @NotNull final ArrayList<String> storeSkus)
+            throws IabException {
+        Logger.i("NokiaStoreHelper.refreshPurchasedItems");
+
+        final Bundle storeSkusBundle = new Bundle(32);
         storeSkusBundle.putStringArrayList("ITEM_ID_LIST", storeSkus);
 
         try {
-            if (mService == null) {
-                Logger.e("Unable to refresh purchased items.");
-                throw new IabException(RESULT_BAD_RESPONSE, "Error refreshing inventory (querying owned items).");
-            }
-
-            final Bundle purchasedBundle = mService.getPurchases(
+            final Bundle purchasedBundle = service.getPurchases(
                     3, getPackageName(), OpenIabHelper.ITEM_TYPE_INAPP, storeSkusBundle, null
             );
 
@@ -499,14 +579,15 @@ public class NokiaStoreHelper implements AppstoreInAppBillingService {
                 throw new IabException(new NokiaResult(responseCode, "Error refreshing inventory (querying owned items)."));
             }
 
-            processPurchasedList(purchasedDataList, inventory);
+            return purchasedDataList;
 
         } catch (RemoteException e) {
             Logger.e(e, "Exception: ", e);
         }
+        return null;
     }
 
-    private void processPurchasedList(@NotNull final ArrayList<String> purchasedDataList, @NotNull final Inventory inventory) {
+    private void processPurchasedList(@NotNull final List<String> purchasedDataList, @NotNull final Inventory inventory) {
         Logger.i("NokiaStoreHelper.processPurchasedList");
 
         for (final String data : purchasedDataList) {
@@ -526,34 +607,19 @@ public class NokiaStoreHelper implements AppstoreInAppBillingService {
         }
     }
 
-    private void refreshItemDetails(@Nullable final List<String> moreItemSkus, @NotNull final Inventory inventory) throws IabException {
+    /**
+     * @return Details of the SKUs, null if the service failed.
+     */
+    @Nullable
+    private List<String> refreshItemDetails(@NotNull final INokiaIAPService service, @NotNull final ArrayList<String> storeSkus)
+            throws IabException {
         Logger.i("NokiaStoreHelper.refreshItemDetails");
 
         final Bundle storeSkusBundle = new Bundle(32);
-
-        final ArrayList<String> combinedStoreSkus = new ArrayList<String>(32);
-
-        List<String> allNokiaStoreSkus = SkuManager.getInstance().getAllStoreSkus(OpenIabHelper.NAME_NOKIA);
-
-        if (!CollectionUtils.isEmpty(allNokiaStoreSkus)) {
-            combinedStoreSkus.addAll(allNokiaStoreSkus);
-        }
-
-        if (moreItemSkus != null) {
-            for (final String moreItemSku : moreItemSkus) {
-                combinedStoreSkus.add(SkuManager.getInstance().getStoreSku(OpenIabHelper.NAME_NOKIA, moreItemSku));
-            }
-        }
-
-        storeSkusBundle.putStringArrayList("ITEM_ID_LIST", combinedStoreSkus);
+        storeSkusBundle.putStringArrayList("ITEM_ID_LIST", storeSkus);
 
         try {
-            if (mService == null) {
-                Logger.e("Unable to refresh item details.");
-                throw new IabException(RESULT_BAD_RESPONSE, "Error refreshing item details.");
-            }
-
-            final Bundle productDetailBundle = mService.getProductDetails(
+            final Bundle productDetailBundle = service.getProductDetails(
                     3, getPackageName(), OpenIabHelper.ITEM_TYPE_INAPP, storeSkusBundle
             );
 
@@ -567,13 +633,12 @@ public class NokiaStoreHelper implements AppstoreInAppBillingService {
                 throw new IabException(new NokiaResult(responseCode, "Error refreshing inventory (querying prices of items)."));
             }
 
-            processDetailsList(detailsList, inventory);
+            return detailsList;
 
         } catch (RemoteException e) {
             Logger.e(e, "Exception: ", e);
-        } catch (JSONException e) {
-            Logger.e(e, "Exception: ", e);
         }
+        return null;
     }
 
     private void processDetailsList(@NotNull final List<String> detailsList, @NotNull final Inventory inventory)
@@ -0,0 +1,207 @@
+/*
+ * Copyright 2012-2014 One Platform Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onepf.oms.appstore.samsungUtils;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.onepf.oms.appstore.googleUtils.Base64;
+import org.onepf.oms.util.Logger;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Persists inbox items of Samsung item groups with the time of the last successful sync,
+ * so inventory queries can request only the items purchased since then.
+ * <p/>
+ * Items are kept as JSON returned by {@code getItemsInbox()}. The stored items are valid only for the Samsung account
+ * and the IAP mode they were saved with. Nothing is stored until the account is known, see {@link #setAccount(String)}.
+ */
+public final class SamsungInboxStore {
+
+    private static final String SHARED_PREFS_SAMSUNG_INBOX = "onepf_shared_prefs_samsung_inbox";
+
+    private static final String KEY_VERSION = "version";
+    private static final String KEY_MODE = "mode";
+    private static final String KEY_ACCOUNT = "account";
+    private static final String KEY_PREFIX_SYNC_TIME = "sync_time_";
+    private static final String KEY_PREFIX_FULL_SYNC_TIME = "full_sync_time_";
+    private static final String KEY_PREFIX_ITEMS = "items_";
+
+    private static final int VERSION = 2;
+
+    private static final String DIGEST_ALGORITHM = "SHA-256";
+
+    @NotNull
+    private final SharedPreferences sharedPreferences;
+
+    private final int mode;
+
+    // Digest of the certified account, null if unknown. Guarded by this
+    @Nullable
+    private String account;
+
+    /**
+     * @param mode The IAP mode passed to {@code IAPConnector.init()}.
+     */
+    public SamsungInboxStore(@NotNull final Context context, final int mode) {
+        this.sharedPreferences = context.getSharedPreferences(SHARED_PREFS_SAMSUNG_INBOX, Context.MODE_PRIVATE);
+        this.mode = mode;
+    }
+
+    /**
+     * Sets the Samsung account certified for the session. Items of another account are cleared.
+     *
+     * @param accountName The account name, null if it is unknown.
+     */
+    public synchronized void setAccount(@Nullable final String accountName) {
+        account = accountName == null ? null : digest(accountName);
+        final String storedAccount = sharedPreferences.getString(KEY_ACCOUNT, null);
+        if (storedAccount != null && !storedAccount.equals(account)) {
+            Logger.d("SamsungInboxStore.setAccount() account changed, inbox cleared");
+            clear();
+        }
+    }
+
+    /**
+     * @return The inbox of the item group, null if it was never synced, is invalid or belongs to another account.
+     */
+    @Nullable
+    public synchronized Inbox load(@NotNull final String itemGroupId) {
+        if (!isValid()) {
+            return null;
+        }
+        final long syncTime = sharedPreferences.getLong(KEY_PREFIX_SYNC_TIME + itemGroupId, 0);
+        final long fullSyncTime = sharedPreferences.getLong(KEY_PREFIX_FULL_SYNC_TIME + itemGroupId, 0);
+        final String items = sharedPreferences.getString(KEY_PREFIX_ITEMS + itemGroupId, null);
+        if (syncTime == 0 || fullSyncTime == 0 || items == null) {
+            return null;
+        }
+        try {
+            final JSONArray jsonArray = new JSONArray(items);
+            final List<String> itemList = new ArrayList<String>(jsonArray.length());
+            for (int i = 0; i < jsonArray.length(); i++) {
+                itemList.add(jsonArray.getString(i));
+            }
+            return new Inbox(syncTime, fullSyncTime, itemList);
+        } catch (JSONException e) {
+            Logger.e(e, "SamsungInboxStore.load() invalid inbox, cleared: ", itemGroupId);
+            clear();
+            return null;
+        }
+    }
+
+    /**
+     * @param syncTime     The time the sync was started at.
+     * @param fullSyncTime The time the last full sync was started at.
+     * @param items        All inbox items of the group.
+     */
+    public synchronized void save(@NotNull final String itemGroupId, final long syncTime, final long fullSyncTime,
+                                  @NotNull final Collection<String> items) {
+        if (account == null) {
+            return;
+        }
+        final SharedPreferences.Editor editor = sharedPreferences.edit();
+        if (!isValid()) {
+            editor.clear();
+        }
+        editor.putInt(KEY_VERSION, VERSION)
+                .putInt(KEY_MODE, mode)
+                .putString(KEY_ACCOUNT, account)
+                .putLong(KEY_PREFIX_SYNC_TIME + itemGroupId, syncTime)
+                .putLong(KEY_PREFIX_FULL_SYNC_TIME + itemGroupId, fullSyncTime)
+                .putString(KEY_PREFIX_ITEMS + itemGroupId, new JSONArray(items).toString())
+                .apply();
+    }
+
+    /**
+     * Forces the next query of every item group to request the full inbox.
+     */
+    public synchronized void clear() {
+        sharedPreferences.edit().clear().apply();
+    }
+
+    private boolean isValid() {
+        return account != null
+                && sharedPreferences.getInt(KEY_VERSION, 0) == VERSION
+                && sharedPreferences.getInt(KEY_MODE, 0) == mode
+                && account.equals(sharedPreferences.getString(KEY_ACCOUNT, null));
+    }
+
+    /**
+     * Account names aren't stored as is.
+     */
+    @NotNull
+    private static String digest(@NotNull final String accountName) {
+        try {
+            final MessageDigest messageDigest = MessageDigest.getInstance(DIGEST_ALGORITHM);
+            return Base64.encode(messageDigest.digest(accountName.getBytes("UTF-8")));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Inbox items of an item group known from previous queries.
+     */
+    public static final class Inbox {
+
+        private final long syncTime;
+
+        private final long fullSyncTime;
+
+        @NotNull
+        private final List<String> items;
+
+        private Inbox(final long syncTime, final long fullSyncTime, @NotNull final List<String> items) {
+            this.syncTime = syncTime;
+            this.fullSyncTime = fullSyncTime;
+            this.items = Collections.unmodifiableList(items);
+        }
+
+        /**
+         * @return The time the last successful sync was started at.
+         */
+        public long getSyncTime() {
+            return syncTime;
+        }
+
+        /**
+         * @return The time the last successful full sync was started at.
+         */
+        public long getFullSyncTime() {
+            return fullSyncTime;
+        }
+
+        @NotNull
+        public List<String> getItems() {
+            return items;
+        }
+    }
+}
@@ -0,0 +1,251 @@
+/*
+ * Copyright 2012-2014 One Platform Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onepf.oms.appstore.samsungUtils;
+
+import android.os.Bundle;
+import android.os.RemoteException;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.onepf.oms.util.Logger;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+
+import static org.onepf.oms.appstore.SamsungAppsBillingService.IAP_ERROR_NONE;
+import static org.onepf.oms.appstore.SamsungAppsBillingService.KEY_NAME_RESULT_LIST;
+import static org.onepf.oms.appstore.SamsungAppsBillingService.KEY_NAME_STATUS_CODE;
+
+/**
+ * Pages a Samsung IAP list request through several item groups at once.
+ * <p/>
+ * Groups are queried concurrently. Within a group up to {@code pipelineDepth} pages are requested ahead,
+ * the next page is requested as soon as a full page is received. A short page ends the group.
+ * Page requests don't wait for each other, so they can share an executor with a few threads.
+ */
+public final class SamsungPagedQuery {
+
+    /**
+     * Requests one page of the list.
+     */
+    public interface PageLoader {
+        /**
+         * @param startNum The first item index, starting from 1.
+         * @param endNum   The last item index, inclusive.
+         * @return The response bundle, can be null.
+         */
+        @Nullable
+        Bundle loadPage(@NotNull String itemGroupId, int startNum, int endNum) throws RemoteException;
+    }
+
+    @NotNull
+    private final Executor executor;
+
+    private final int pageSize;
+
+    private final int pipelineDepth;
+
+    public SamsungPagedQuery(@NotNull final Executor executor, final int pageSize, final int pipelineDepth) {
+        if (pageSize <= 0) {
+            throw new IllegalArgumentException("Page size must be a positive value");
+        }
+        if (pipelineDepth <= 0) {
+            throw new IllegalArgumentException("Pipeline depth must be a positive value");
+        }
+        this.executor = executor;
+        this.pageSize = pageSize;
+        this.pipelineDepth = pipelineDepth;
+    }
+
+    /**
+     * Requests all pages of every item group, blocks until they are received.
+     *
+     * @return Results by item group.
+     * @throws InterruptedException if the thread was interrupted, requests in flight are cancelled.
+     */
+    @NotNull
+    public Map<String, Result> query(@NotNull final Collection<String> itemGroupIds, @NotNull final PageLoader loader)
+            throws InterruptedException {
+        final CompletionService<Page> completionService = new ExecutorCompletionService<Page>(executor);
+        final List<Future<Page>> futures = new ArrayList<Future<Page>>();
+        final Map<String, Group> groups = new HashMap<String, Group>();
+        int inFlight = 0;
+        try {
+            for (final String itemGroupId : itemGroupIds) {
+                final Group group = new Group();
+                groups.put(itemGroupId, group);
+                for (int i = 0; i < pipelineDepth; i++) {
+                    futures.add(submit(completionService, loader, itemGroupId, group.nextPage++));
+                    inFlight++;
+                }
+            }
+            while (inFlight > 0) {
+                final Page page = getPage(completionService.take());
+                inFlight--;
+                final Group group = groups.get(page.itemGroupId);
+                if (page.number > group.lastPage) {
+                    // Requested ahead past the end of the list
+                    continue;
+                }
+                if (page.items == null || page.items.size() < pageSize) {
+                    group.lastPage = page.number;
+                }
+                if (page.items == null) {
+                    group.failed = true;
+                    continue;
+                }
+                group.pages.put(page.number, page.items);
+                if (group.lastPage == Integer.MAX_VALUE) {
+                    futures.add(submit(completionService, loader, page.itemGroupId, group.nextPage++));
+                    inFlight++;
+                }
+            }
+        } finally {
+            for (final Future<Page> future : futures) {
+                future.cancel(true);
+            }
+        }
+
+        final Map<String, Result> results = new HashMap<String, Result>();
+        for (final Map.Entry<String, Group> entry : groups.entrySet()) {
+            final Group group = entry.getValue();
+            final List<String> items = new ArrayList<String>();
+            int expectedPage = 0;
+            for (final Map.Entry<Integer, List<String>> page : group.pages.headMap(group.lastPage, true).entrySet()) {
+                // Pages past a failed one don't continue the list
+                if (page.getKey() != expectedPage) {
+                    break;
+                }
+                items.addAll(page.getValue());
+                expectedPage++;
+            }
+            final boolean complete = !group.failed && expectedPage == group.lastPage + 1;
+            results.put(entry.getKey(), new Result(items, complete));
+        }
+        return results;
+    }
+
+    @NotNull
+    private Future<Page> submit(@NotNull final CompletionService<Page> completionService,
+                                @NotNull final PageLoader loader,
+                                @NotNull final String itemGroupId,
+                                final int number) {
+        return completionService.submit(new Callable<Page>() {
+            @NotNull
+            @Override
+            public Page call() {
+                final int startNum = number * pageSize + 1;
+                final int endNum = startNum + pageSize - 1;
+                Logger.d("SamsungPagedQuery: ", itemGroupId, ", startNum = ", startNum, ", endNum = ", endNum);
+                Bundle bundle = null;
+                try {
+                    bundle = loader.loadPage(itemGroupId, startNum, endNum);
+                } catch (RemoteException e) {
+                    Logger.e(e, "SamsungPagedQuery page request failed: ", itemGroupId);
+                }
+                if (bundle == null || bundle.getInt(KEY_NAME_STATUS_CODE) != IAP_ERROR_NONE) {
+                    return new Page(itemGroupId, number, null);
+                }
+                final ArrayList<String> items = bundle.getStringArrayList(KEY_NAME_RESULT_LIST);
+                return new Page(itemGroupId, number, items == null ? Collections.<String>emptyList() : items);
+            }
+        });
+    }
+
+    @NotNull
+    private static Page getPage(@NotNull final Future<Page> future) throws InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            // Page requests catch their exceptions
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * Items of an item group.
+     */
+    public static final class Result {
+
+        @NotNull
+        private final List<String> items;
+
+        private final boolean complete;
+
+        private Result(@NotNull final List<String> items, final boolean complete) {
+            this.items = items;
+            this.complete = complete;
+        }
+
+        /**
+         * @return JSON of the received items in list order.
+         */
+        @NotNull
+        public List<String> getItems() {
+            return items;
+        }
+
+        /**
+         * @return true if every page was received.
+         */
+        public boolean isComplete() {
+            return complete;
+        }
+    }
+
+    private static final class Group {
+
+        @NotNull
+        private final TreeMap<Integer, List<String>> pages = new TreeMap<Integer, List<String>>();
+
+        private int nextPage;
+
+        // The short or failed page with the lowest number
+        private int lastPage = Integer.MAX_VALUE;
+
+        private boolean failed;
+    }
+
+    private static final class Page {
+
+        @NotNull
+        private final String itemGroupId;
+
+        private final int number;
+
+        // Null if the request failed
+        @Nullable
+        private final List<String> items;
+
+        private Page(@NotNull final String itemGroupId, final int number, @Nullable final List<String> items) {
+            this.itemGroupId = itemGroupId;
+            this.number = number;
+            this.items = items;
+        }
+    }
+}
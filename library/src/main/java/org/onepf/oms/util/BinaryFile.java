@@ -0,0 +1,228 @@
+/*
+ * Copyright 2012-2014 One Platform Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onepf.oms.util;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * A file with data written by {@link DataOutputStream}, framed by a magic number, a format version
+ * and a CRC32 of the preceding bytes.
+ * <p/>
+ * The file is replaced atomically on save. A file that is corrupted or has another format is deleted on load.
+ * Strings are written as the length of their UTF-8 bytes followed by the bytes, -1 for null.
+ */
+public final class BinaryFile {
+
+    private static final String CHARSET = "UTF-8";
+
+    // Size of the CRC32 at the end of the file
+    private static final int CRC_SIZE = 8;
+
+    @NotNull
+    private final File file;
+
+    private final int magic;
+
+    private final int version;
+
+    /**
+     * @param magic   The number the file starts with.
+     * @param version The format version, files of other versions are deleted.
+     */
+    public BinaryFile(@NotNull final File file, final int magic, final int version) {
+        this.file = file;
+        this.magic = magic;
+        this.version = version;
+    }
+
+    /**
+     * Writes the content of the file.
+     */
+    public interface Writer {
+        void write(@NotNull DataOutputStream data) throws IOException;
+    }
+
+    /**
+     * Reads the content of the file.
+     */
+    public interface Reader<T> {
+        /**
+         * @return The content, null if it can't be used.
+         * @throws IOException If the content is invalid, the file is deleted.
+         */
+        @Nullable
+        T read(@NotNull DataInputStream data) throws IOException;
+    }
+
+    /**
+     * Replaces the file with the content written by the writer.
+     *
+     * @return true if the file was saved.
+     */
+    public boolean save(@NotNull final Writer writer) {
+        final File tmpFile = new File(file.getPath() + ".tmp");
+        OutputStream outputStream = null;
+        try {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            final DataOutputStream data = new DataOutputStream(bytes);
+            data.writeInt(magic);
+            data.writeInt(version);
+            writer.write(data);
+            data.flush();
+            final CRC32 crc = new CRC32();
+            crc.update(bytes.toByteArray());
+            data.writeLong(crc.getValue());
+            data.flush();
+
+            outputStream = new BufferedOutputStream(new FileOutputStream(tmpFile));
+            bytes.writeTo(outputStream);
+            outputStream.close();
+            outputStream = null;
+            if (!tmpFile.renameTo(file)) {
+                throw new IOException("Can't rename " + tmpFile + " to " + file);
+            }
+            return true;
+        } catch (IOException exception) {
+            Logger.e(exception, "BinaryFile.save() failed: ", file.getName());
+            //noinspection ResultOfMethodCallIgnored
+            tmpFile.delete();
+            return false;
+        } finally {
+            close(outputStream);
+        }
+    }
+
+    /**
+     * Reads the file if it exists and is valid, deletes an invalid file.
+     *
+     * @return The content returned by the reader, null if there is no valid file.
+     */
+    @Nullable
+    public <T> T load(@NotNull final Reader<T> reader) {
+        if (!file.exists()) {
+            return null;
+        }
+        InputStream inputStream = null;
+        try {
+            final byte[] bytes = new byte[(int) file.length()];
+            inputStream = new BufferedInputStream(new FileInputStream(file));
+            new DataInputStream(inputStream).readFully(bytes);
+            if (bytes.length < CRC_SIZE) {
+                throw new IOException("File is truncated");
+            }
+            final int length = bytes.length - CRC_SIZE;
+            final CRC32 crc = new CRC32();
+            crc.update(bytes, 0, length);
+            final long storedCrc = new DataInputStream(new ByteArrayInputStream(bytes, length, CRC_SIZE)).readLong();
+            if (storedCrc != crc.getValue()) {
+                throw new IOException("Checksum mismatch");
+            }
+            final DataInputStream data = new DataInputStream(new ByteArrayInputStream(bytes, 0, length));
+            if (data.readInt() != magic || data.readInt() != version) {
+                throw new IOException("Unknown format");
+            }
+            return reader.read(data);
+        } catch (IOException exception) {
+            Logger.e(exception, "BinaryFile.load() invalid file, deleted: ", file.getName());
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+        } finally {
+            close(inputStream);
+        }
+        return null;
+    }
+
+    public static void writeString(@NotNull final DataOutputStream data, @Nullable final String value) throws IOException {
+        if (value == null) {
+            data.writeInt(-1);
+            return;
+        }
+        final byte[] bytes = value.getBytes(CHARSET);
+        data.writeInt(bytes.length);
+        data.write(bytes);
+    }
+
+    @Nullable
+    public static String readString(@NotNull final DataInputStream data) throws IOException {
+        final int length = data.readInt();
+        if (length == -1) {
+            return null;
+        }
+        if (length < 0 || length > data.available()) {
+            throw new IOException("Invalid string length: " + length);
+        }
+        final byte[] bytes = new byte[length];
+        data.readFully(bytes);
+        return new String(bytes, CHARSET);
+    }
+
+    public static void writeStringMap(@NotNull final DataOutputStream data, @NotNull final Map<String, String> map)
+            throws IOException {
+        data.writeInt(map.size());
+        for (final Map.Entry<String, String> entry : map.entrySet()) {
+            writeString(data, entry.getKey());
+            writeString(data, entry.getValue());
+        }
+    }
+
+    /**
+     * @return The map in the order it was written.
+     */
+    @NotNull
+    public static Map<String, String> readStringMap(@NotNull final DataInputStream data) throws IOException {
+        final int count = data.readInt();
+        if (count < 0) {
+            throw new IOException("Invalid map size: " + count);
+        }
+        final Map<String, String> map = new LinkedHashMap<String, String>();
+        for (int i = 0; i < count; i++) {
+            map.put(readString(data), readString(data));
+        }
+        return map;
+    }
+
+    /**
+     * Closes the stream, ignores errors.
+     */
+    public static void close(@Nullable final Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException ignore) {
+        }
+    }
+}
@@ -0,0 +1,379 @@
+/*
+ * Copyright 2012-2014 One Platform Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onepf.oms.util;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.content.pm.ResolveInfo;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Process-wide pool of service connections keyed by component and bind flags.
+ * <p/>
+ * Every {@link #bind(Intent, ServiceConnection, int)} takes a lease on a single shared connection to the service,
+ * every {@link #unbind(ServiceConnection)} returns it. The service is unbound
+ * {@link #IDLE_UNBIND_DELAY_MS} after the last lease is returned, so a billing availability check
+ * and the billing helper created right after it share one connection.
+ * <p/>
+ * Callbacks of the leases are delivered on the UI thread, as the system does for ordinary connections.
+ */
+public final class ServiceConnectionPool {
+
+    /**
+     * Time to keep an unused connection before unbinding the service.
+     */
+    public static final long IDLE_UNBIND_DELAY_MS = 5000;
+
+    @Nullable
+    private static volatile ServiceConnectionPool instance;
+
+    @NotNull
+    private final Context context;
+
+    @NotNull
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    @NotNull
+    private final Map<ConnectionKey, PooledConnection> connections = new HashMap<ConnectionKey, PooledConnection>();
+
+    @NotNull
+    private final Map<ServiceConnection, PooledConnection> leases = new HashMap<ServiceConnection, PooledConnection>();
+
+    // Connections bound without the pool because their intent couldn't be resolved
+    @NotNull
+    private final Set<ServiceConnection> directConnections = new HashSet<ServiceConnection>();
+
+    @NotNull
+    public static ServiceConnectionPool getInstance(@NotNull final Context context) {
+        ServiceConnectionPool pool = instance;
+        if (pool == null) {
+            synchronized (ServiceConnectionPool.class) {
+                pool = instance;
+                if (pool == null) {
+                    instance = pool = new ServiceConnectionPool(context.getApplicationContext());
+                }
+            }
+        }
+        return pool;
+    }
+
+    private ServiceConnectionPool(@NotNull final Context context) {
+        this.context = context;
+    }
+
+    /**
+     * Wraps the context to route {@link Context#bindService(Intent, ServiceConnection, int)}
+     * and {@link Context#unbindService(ServiceConnection)} through the pool.
+     *
+     * @param context The context to wrap.
+     * @return The wrapped context.
+     */
+    @NotNull
+    public Context wrap(@NotNull final Context context) {
+        return new ContextWrapper(context) {
+            @Override
+            public Context getApplicationContext() {
+                return this;
+            }
+
+            @Override
+            public boolean bindService(final Intent service, @NotNull final ServiceConnection conn, final int flags) {
+                return bind(service, conn, flags);
+            }
+
+            @Override
+            public void unbindService(@NotNull final ServiceConnection conn) {
+                unbind(conn);
+            }
+        };
+    }
+
+    /**
+     * Same as {@link #bind(Intent, ServiceConnection, int)} with {@link Context#BIND_AUTO_CREATE}.
+     */
+    public boolean bind(@NotNull final Intent service, @NotNull final ServiceConnection connection) {
+        return bind(service, connection, Context.BIND_AUTO_CREATE);
+    }
+
+    /**
+     * Takes a lease on the connection to the service. Implicit intents are resolved to the first matching service.
+     * Leases with different flags use different connections.
+     * <p/>
+     * If the service is being bound by another lease, waits until the system accepts or rejects the bind.
+     *
+     * @param service    The intent of the service to bind.
+     * @param connection Receives the service binder.
+     * @param flags      Flags of {@link Context#bindService(Intent, ServiceConnection, int)}.
+     * @return true if the service is bound or being bound, false otherwise.
+     */
+    public boolean bind(@NotNull final Intent service, @NotNull final ServiceConnection connection, final int flags) {
+        final ComponentName component = resolveComponent(service);
+        if (component == null) {
+            Logger.d("bind() service can't be resolved, binding directly: ", service);
+            if (!context.bindService(service, connection, flags)) {
+                return false;
+            }
+            synchronized (this) {
+                directConnections.add(connection);
+            }
+            return true;
+        }
+
+        final ConnectionKey key = new ConnectionKey(component, flags);
+        final PooledConnection pooledConnection;
+        final boolean newConnection;
+        synchronized (this) {
+            final PooledConnection existing = connections.get(key);
+            newConnection = existing == null;
+            pooledConnection = newConnection ? new PooledConnection(key) : existing;
+            if (newConnection) {
+                connections.put(key, pooledConnection);
+            }
+            handler.removeCallbacks(pooledConnection);
+            pooledConnection.clients.add(connection);
+            leases.put(connection, pooledConnection);
+        }
+
+        if (!newConnection) {
+            if (!awaitBound(pooledConnection)) {
+                Logger.e("bind() shared bind failed: ", component);
+                return false;
+            }
+            Logger.d("bind() reusing connection: ", component);
+            pooledConnection.deliverIfConnected(connection);
+            return true;
+        }
+
+        final Intent explicitIntent = new Intent(service);
+        explicitIntent.setComponent(component);
+        final boolean bound = context.bindService(explicitIntent, pooledConnection, flags);
+        synchronized (this) {
+            pooledConnection.bound = bound;
+            if (!bound) {
+                // Every lease taken while binding fails with this one
+                for (final ServiceConnection client : pooledConnection.clients) {
+                    leases.remove(client);
+                }
+                pooledConnection.clients.clear();
+                connections.remove(key);
+            }
+            notifyAll();
+        }
+        if (!bound) {
+            Logger.e("bind() can't bind to service: ", component);
+            context.unbindService(pooledConnection);
+            return false;
+        }
+        Logger.d("bind() new connection: ", component);
+        return true;
+    }
+
+    /**
+     * Waits until the system answers the bind of the connection.
+     *
+     * @return true if the service was bound.
+     */
+    private synchronized boolean awaitBound(@NotNull final PooledConnection pooledConnection) {
+        boolean interrupted = false;
+        // bindService() returns quickly, the wait is short
+        while (pooledConnection.bound == null) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        return pooledConnection.bound;
+    }
+
+    /**
+     * Returns the lease taken by {@link #bind(Intent, ServiceConnection, int)}.
+     * Connections bound directly because their intent couldn't be resolved are unbound directly.
+     * Does nothing if the connection has no lease, e.g. the bind failed.
+     *
+     * @param connection The connection passed to {@link #bind(Intent, ServiceConnection, int)}.
+     */
+    public void unbind(@NotNull final ServiceConnection connection) {
+        synchronized (this) {
+            final PooledConnection pooledConnection = leases.remove(connection);
+            if (pooledConnection != null) {
+                pooledConnection.clients.remove(connection);
+                pooledConnection.connectedClients.remove(connection);
+                if (pooledConnection.clients.isEmpty()) {
+                    handler.postDelayed(pooledConnection, IDLE_UNBIND_DELAY_MS);
+                }
+                return;
+            }
+            if (!directConnections.remove(connection)) {
+                Logger.w("unbind() connection isn't bound: ", connection);
+                return;
+            }
+        }
+        context.unbindService(connection);
+    }
+
+    @Nullable
+    private ComponentName resolveComponent(@NotNull final Intent service) {
+        if (service.getComponent() != null) {
+            return service.getComponent();
+        }
+        final List<ResolveInfo> infos = context.getPackageManager().queryIntentServices(service, 0);
+        if (CollectionUtils.isEmpty(infos)) {
+            return null;
+        }
+        final ResolveInfo resolveInfo = infos.get(0);
+        return new ComponentName(resolveInfo.serviceInfo.packageName, resolveInfo.serviceInfo.name);
+    }
+
+    /**
+     * The single system connection to a service shared by all its leases.
+     * Runs as the idle unbind task.
+     */
+    private final class PooledConnection implements ServiceConnection, Runnable {
+
+        @NotNull
+        private final ConnectionKey key;
+
+        @NotNull
+        private final ComponentName component;
+
+        // Result of bindService(), null while binding, guarded by the pool
+        @Nullable
+        private Boolean bound;
+
+        // Guarded by the pool
+        @NotNull
+        private final Set<ServiceConnection> clients = new LinkedHashSet<ServiceConnection>();
+
+        // Clients notified about the current binder, guarded by the pool
+        @NotNull
+        private final Set<ServiceConnection> connectedClients = new HashSet<ServiceConnection>();
+
+        // Guarded by the pool
+        @Nullable
+        private IBinder binder;
+
+        private PooledConnection(@NotNull final ConnectionKey key) {
+            this.key = key;
+            this.component = key.component;
+        }
+
+        private void deliverIfConnected(@NotNull final ServiceConnection client) {
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    final IBinder service;
+                    synchronized (ServiceConnectionPool.this) {
+                        if (!clients.contains(client) || (service = binder) == null || !connectedClients.add(client)) {
+                            return;
+                        }
+                    }
+                    client.onServiceConnected(component, service);
+                }
+            });
+        }
+
+        @Override
+        public void onServiceConnected(final ComponentName name, final IBinder service) {
+            final List<ServiceConnection> clientsToNotify = new ArrayList<ServiceConnection>();
+            synchronized (ServiceConnectionPool.this) {
+                binder = service;
+                for (final ServiceConnection client : clients) {
+                    if (connectedClients.add(client)) {
+                        clientsToNotify.add(client);
+                    }
+                }
+            }
+            for (final ServiceConnection client : clientsToNotify) {
+                client.onServiceConnected(name, service);
+            }
+        }
+
+        @Override
+        public void onServiceDisconnected(final ComponentName name) {
+            final ServiceConnection[] clientsToNotify;
+            synchronized (ServiceConnectionPool.this) {
+                binder = null;
+                connectedClients.clear();
+                clientsToNotify = clients.toArray(new ServiceConnection[clients.size()]);
+            }
+            for (final ServiceConnection client : clientsToNotify) {
+                client.onServiceDisconnected(name);
+            }
+        }
+
+        /**
+         * Idle unbind.
+         */
+        @Override
+        public void run() {
+            synchronized (ServiceConnectionPool.this) {
+                if (!clients.isEmpty() || connections.get(key) != this) {
+                    return;
+                }
+                connections.remove(key);
+            }
+            Logger.d("run() unbinding idle connection: ", component);
+            context.unbindService(this);
+        }
+    }
+
+    private static final class ConnectionKey {
+
+        @NotNull
+        private final ComponentName component;
+
+        private final int flags;
+
+        private ConnectionKey(@NotNull final ComponentName component, final int flags) {
+            this.component = component;
+            this.flags = flags;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            final ConnectionKey that = (ConnectionKey) o;
+            return flags == that.flags && component.equals(that.component);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * component.hashCode() + flags;
+        }
+    }
+}
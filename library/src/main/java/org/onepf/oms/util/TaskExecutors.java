@@ -0,0 +1,171 @@
+/*
+ * Copyright 2012-2014 One Platform Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onepf.oms.util;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.onepf.oms.appstore.googleUtils.IabException;
+import org.onepf.oms.appstore.googleUtils.IabHelper;
+
+import java.util.Collection;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Thread pools of the library.
+ */
+public final class TaskExecutors {
+
+    /**
+     * Time to keep idle threads of the pools.
+     */
+    public static final long KEEP_ALIVE_MS = 30000;
+
+    // Store requests in flight at the same time
+    private static final int REQUEST_POOL_SIZE = 4;
+
+    // Created on the first request
+    @Nullable
+    private static ExecutorService requestExecutor;
+
+    private TaskExecutors() {
+    }
+
+    /**
+     * Returns the pool for blocking requests to store services, shared by all stores.
+     * Its tasks must not wait for other tasks of the pool, so callers can wait for them from any thread.
+     * The pool isn't shut down, idle threads are terminated.
+     */
+    @NotNull
+    public static synchronized ExecutorService getRequestExecutor() {
+        if (requestExecutor == null) {
+            requestExecutor = newPool("OpenIAB request", REQUEST_POOL_SIZE, true);
+        }
+        return requestExecutor;
+    }
+
+    /**
+     * Creates a pool of at most poolSize threads. Threads are created on demand and terminated when idle,
+     * tasks wait in an unbounded queue.
+     *
+     * @param name     Prefix of the thread names.
+     * @param poolSize The maximum number of threads.
+     * @param daemon   True if the threads must not keep the process alive.
+     */
+    @NotNull
+    public static ExecutorService newPool(@NotNull final String name, final int poolSize, final boolean daemon) {
+        final ThreadPoolExecutor threadPoolExecutor = new ThreadPoolExecutor(
+                poolSize, poolSize,
+                KEEP_ALIVE_MS, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    private final AtomicInteger threadNumber = new AtomicInteger();
+
+                    @NotNull
+                    @Override
+                    public Thread newThread(@NotNull final Runnable runnable) {
+                        final Thread thread = new Thread(runnable, name + " #" + threadNumber.incrementAndGet());
+                        thread.setDaemon(daemon);
+                        return thread;
+                    }
+                });
+        threadPoolExecutor.allowCoreThreadTimeOut(true);
+        return threadPoolExecutor;
+    }
+
+    /**
+     * Submits the task, reports a rejection as {@link IabException} with
+     * {@link IabHelper#BILLING_RESPONSE_RESULT_ERROR}.
+     */
+    @NotNull
+    public static <T> Future<T> submit(@NotNull final ExecutorService executor, @NotNull final Callable<T> task)
+            throws IabException {
+        return submit(executor, task, IabHelper.BILLING_RESPONSE_RESULT_ERROR, "Request rejected");
+    }
+
+    /**
+     * Submits the task, reports a rejection as {@link IabException}.
+     *
+     * @param errorCode The error code of the exception.
+     * @param message   The message of the exception.
+     */
+    @NotNull
+    public static <T> Future<T> submit(@NotNull final ExecutorService executor, @NotNull final Callable<T> task,
+                                       final int errorCode, @NotNull final String message) throws IabException {
+        try {
+            return executor.submit(task);
+        } catch (RejectedExecutionException e) {
+            throw new IabException(errorCode, message, e);
+        }
+    }
+
+    /**
+     * Waits for the result of the task, other failures than {@link IabException} and runtime exceptions
+     * are reported with {@link IabHelper#BILLING_RESPONSE_RESULT_ERROR}.
+     *
+     * @see #getResult(Future, int, String)
+     */
+    public static <T> T getResult(@NotNull final Future<T> future) throws IabException {
+        return getResult(future, IabHelper.BILLING_RESPONSE_RESULT_ERROR, "Request failed");
+    }
+
+    /**
+     * Waits for the result of the task. {@link IabException} and runtime exceptions of the task are rethrown,
+     * other failures are reported as {@link IabException}.
+     *
+     * @param errorCode The error code of the exception.
+     * @param message   The message of the exception.
+     */
+    public static <T> T getResult(@NotNull final Future<T> future, final int errorCode, @NotNull final String message)
+            throws IabException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IabException(errorCode, message + " (interrupted)", e);
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IabException) {
+                throw (IabException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IabException(errorCode, message, (Exception) cause);
+        }
+    }
+
+    /**
+     * Cancels the tasks, interrupting the running ones.
+     */
+    public static void cancel(@NotNull final Collection<? extends Future<?>> futures) {
+        for (final Future<?> future : futures) {
+            future.cancel(true);
+        }
+    }
+}